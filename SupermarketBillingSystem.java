@@ -1,5 +1,43 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.CRC32;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.management.*;
 
 // Enum for product categories
 enum Category 
@@ -11,20 +49,112 @@ enum Category
     HOME_APPLIANCES
 }
 
+// Money class for exact, allocation-free arithmetic on amounts held as long cents
+final class Money 
+{
+    public static final long BASIS_POINTS_PER_UNIT = 10_000; // 100% = 10000 basis points
+
+    private Money() 
+    {
+    }
+
+    public static long times(long cents, int quantity) 
+    {
+        return Math.multiplyExact(cents, (long) quantity);
+    }
+
+    // Percentage of an amount in basis points, rounded half away from zero
+    public static long percentOf(long cents, long basisPoints) 
+    {
+        long scaled = Math.multiplyExact(cents, basisPoints);
+        long half = BASIS_POINTS_PER_UNIT / 2;
+        return scaled >= 0 ? (scaled + half) / BASIS_POINTS_PER_UNIT : (scaled - half) / BASIS_POINTS_PER_UNIT;
+    }
+
+    public static String format(long cents) 
+    {
+        return appendTo(new StringBuilder(16), cents, true).toString();
+    }
+
+    // Parses "12", "12.5", "12.50" or "$12.50" into cents; amounts are never negative
+    public static long parse(String text) 
+    {
+        String amount = text.trim();
+        if (amount.startsWith("$")) 
+        {
+            amount = amount.substring(1);
+        }
+        int dot = amount.indexOf('.');
+        String whole = dot < 0 ? amount : amount.substring(0, dot);
+        String fraction = dot < 0 ? "" : amount.substring(dot + 1);
+        if ((whole.isEmpty() && fraction.isEmpty()) || fraction.length() > 2 || !isDigits(whole) || !isDigits(fraction)) 
+        {
+            throw new NumberFormatException("Not an amount: " + text);
+        }
+        long cents = fraction.isEmpty() ? 0 : Long.parseLong(fraction) * (fraction.length() == 1 ? 10 : 1);
+        return Math.addExact(Math.multiplyExact(whole.isEmpty() ? 0 : Long.parseLong(whole), 100), cents);
+    }
+
+    private static boolean isDigits(String text) 
+    {
+        for (int i = 0; i < text.length(); i++) 
+        {
+            if (text.charAt(i) < '0' || text.charAt(i) > '9') 
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Writes the amount as [-][$]dollars.cents without creating any intermediate strings
+    public static StringBuilder appendTo(StringBuilder out, long cents, boolean withSymbol) 
+    {
+        long absolute = Math.abs(cents);
+        long fraction = absolute % 100;
+        if (cents < 0) 
+        {
+            out.append('-');
+        }
+        if (withSymbol) 
+        {
+            out.append('$');
+        }
+        return out.append(absolute / 100).append(fraction < 10 ? ".0" : ".").append(fraction);
+    }
+}
+
 // Item class to represent products in the supermarket
 class Item implements Serializable 
 {
+    private final int sku;
+    private final String barcode;
     private String name;
-    private double price;
+    private long price; // In cents, as of the last published CatalogUpdate that folded into it
+    private transient volatile PriceChange pendingPrice; // The latest staged price, live once its update is published
     private Category category;
-    private int quantityAvailable; // Quantity available in the supermarket
+    private final AtomicInteger quantityAvailable; // Quantity available in the supermarket, shared by all lanes
+    private transient volatile CategoryShelf shelf; // Notified when the item goes in or out of stock
+    private transient int shelfPosition;           // Guarded by the shelf
 
-    public Item(String name, double price, Category category, int quantityAvailable) 
+    public Item(int sku, String barcode, String name, long price, Category category, int quantityAvailable) 
     {
+        this.sku = sku;
+        this.barcode = barcode;
         this.name = name;
         this.price = price;
         this.category = category;
-        this.quantityAvailable = quantityAvailable;
+        this.quantityAvailable = new AtomicInteger(quantityAvailable);
+    }
+
+    public int getSku() 
+    {
+        return sku;
+    }
+
+    public String getBarcode() 
+    {
+        return barcode;
     }
 
     public String getName()
@@ -32,9 +162,42 @@ class Item implements Serializable
         return name;
     }
 
-    public double getPrice() 
+    public long getPrice() 
+    {
+        PriceChange change = pendingPrice;
+        return change != null && change.update.isPublished() ? change.price : price;
+    }
+
+    // PriceChange class to pair a staged price with the update that makes it live
+    private static final class PriceChange 
+    {
+        final long price;
+        final CatalogUpdate update;
+
+        PriceChange(long price, CatalogUpdate update) 
+        {
+            this.price = price;
+            this.update = update;
+        }
+    }
+
+    // Only one update is staged at a time. A published change is folded into price first; since price is written
+    // before pendingPrice, any reader that sees the new, unpublished change also sees the folded price.
+    void stagePrice(CatalogUpdate update, long newPrice) 
+    {
+        PriceChange previous = pendingPrice;
+        if (previous != null && previous.update.isPublished()) 
+        {
+            price = previous.price;
+        }
+        pendingPrice = new PriceChange(newPrice, update);
+    }
+
+    // For journal replay at startup, before any reader
+    void restorePrice(long restored) 
     {
-        return price;
+        price = restored;
+        pendingPrice = null;
     }
 
     public Category getCategory() 
@@ -44,385 +207,8569 @@ class Item implements Serializable
 
     public int getQuantityAvailable() 
     {
-        return quantityAvailable;
+        return quantityAvailable.get();
     }
 
     public void setQuantityAvailable(int quantityAvailable) 
     {
-        this.quantityAvailable = quantityAvailable;
+        this.quantityAvailable.set(quantityAvailable);
+        stockChanged();
+    }
+
+    // Atomically takes stock off the shelf; fails without side effects if not enough is left
+    public boolean reserve(int quantity) 
+    {
+        if (quantity <= 0) 
+        {
+            return false;
+        }
+        while (true) 
+        {
+            int current = quantityAvailable.get();
+            if (current < quantity) 
+            {
+                return false;
+            }
+            if (quantityAvailable.compareAndSet(current, current - quantity)) 
+            {
+                if (current == quantity) 
+                {
+                    stockChanged();
+                }
+                return true;
+            }
+        }
+    }
+
+    // Atomically puts previously reserved stock back on the shelf
+    public void release(int quantity) 
+    {
+        if (quantity > 0 && quantityAvailable.getAndAdd(quantity) == 0) 
+        {
+            stockChanged();
+        }
+    }
+
+    void attachTo(CategoryShelf shelf, int shelfPosition) 
+    {
+        this.shelfPosition = shelfPosition;
+        this.shelf = shelf;
+    }
+
+    int getShelfPosition() 
+    {
+        return shelfPosition;
+    }
+
+    private void stockChanged() 
+    {
+        CategoryShelf current = shelf;
+        if (current != null) 
+        {
+            current.stockChanged(this);
+        }
     }
 }
 
-// ShoppingCart class to manage items added to the cart
-class ShoppingCart implements Serializable 
-  {
-    private HashMap<Item, Integer> items;
+// CategoryShelf class to keep one category's items in a stable name order with O(log n) in-stock ranking
+class CategoryShelf 
+{
+    static final Comparator<Item> ORDER = Comparator.comparing(Item::getName).thenComparingInt(Item::getSku);
 
-    public ShoppingCart() 
+    private Item[] items = new Item[0]; // Null where a snapshot record has not been materialized yet
+    private boolean[] inStock = new boolean[0];
+    private int[] tree = new int[1]; // Fenwick tree over the in-stock flags, 1-based
+    private CatalogSnapshot snapshot; // Backs the null entries, record snapshotStart + position
+    private int snapshotStart;
+
+    // Takes the shelf straight from a snapshot's category range without creating any Item
+    public synchronized void loadSnapshot(CatalogSnapshot snapshot, int start, int end) 
     {
-        items = new HashMap<>();
+        this.snapshot = snapshot;
+        this.snapshotStart = start;
+        items = new Item[end - start];
+        inStock = new boolean[items.length];
+        for (int i = 0; i < items.length; i++) 
+        {
+            inStock[i] = snapshot.getQuantity(start + i) > 0;
+        }
+        buildTree();
     }
 
-    public void addItem(Item item, int quantity) 
+    public synchronized void addAll(Collection<Item> added) 
     {
-        if (items.containsKey(item)) 
+        Item[] merged = Arrays.copyOf(items, items.length + added.size());
+        for (int i = 0; i < items.length; i++) 
+        {
+            merged[i] = itemAt(i);
+        }
+        snapshot = null;
+        int size = items.length;
+        for (Item item : added) 
+        {
+            merged[size++] = item;
+        }
+        Arrays.sort(merged, ORDER);
+        items = merged;
+        inStock = new boolean[merged.length];
+        for (int i = 0; i < merged.length; i++) 
         {
-            quantity += items.get(item);
+            merged[i].attachTo(this, i);
+            inStock[i] = merged[i].getQuantityAvailable() > 0;
         }
-        items.put(item, quantity);
+        buildTree();
     }
 
-    public void removeItem(Item item, int quantity) 
+    private void buildTree() 
     {
-        if (items.containsKey(item)) 
+        tree = new int[items.length + 1];
+        for (int i = 0; i < items.length; i++) 
         {
-            int currentQuantity = items.get(item);
-            if (currentQuantity <= quantity) 
+            if (inStock[i]) 
             {
-                items.remove(item);
-            } else 
+                tree[i + 1]++;
+            }
+        }
+        for (int i = 1; i <= items.length; i++) 
+        {
+            int parent = i + (i & -i);
+            if (parent <= items.length) 
             {
-                items.put(item, currentQuantity - quantity);
+                tree[parent] += tree[i];
             }
         }
     }
 
-    public double calculateTotal()
+    // Links an item materialized from this shelf's snapshot (e.g. by a SKU lookup) to its position
+    public synchronized void attachSnapshotItem(Item item, int recordIndex) 
     {
-        double total = 0;
-        for (Map.Entry<Item, Integer> entry : items.entrySet()) 
+        if (snapshot != null) 
         {
-            Item item = entry.getKey();
-            int quantity = entry.getValue();
-            total += item.getPrice() * quantity;
+            int position = recordIndex - snapshotStart;
+            if (items[position] == null) 
+            {
+                items[position] = item;
+                item.attachTo(this, position);
+                setInStock(position, item.getQuantityAvailable() > 0);
+            }
         }
-        return total;
     }
 
-    public void displayReceipt(String customerName, String customerEmail) 
+    private Item itemAt(int position) 
     {
-        System.out.println("\n----- Receipt -----\n");
-        System.out.println("Customer: " + customerName);
-        System.out.println("Email: " + customerEmail);
-        System.out.println("Date: " + new Date());
-        System.out.println("\n--- Items ---");
-        for (Map.Entry<Item, Integer> entry : items.entrySet()) 
+        Item item = items[position];
+        if (item == null) 
         {
-            Item item = entry.getKey();
-            int quantity = entry.getValue();
-            double itemTotal = item.getPrice() * quantity;
-            System.out.println(item.getName() + " - Quantity: " + quantity + " - $" + itemTotal);
+            item = snapshot.getItem(snapshotStart + position);
+            items[position] = item;
+            item.attachTo(this, position);
+            setInStock(position, item.getQuantityAvailable() > 0);
         }
-        System.out.println("\nTotal: $" + calculateTotal());
-        System.out.println("--- Thank you for shopping with us! ---");
+        return item;
     }
 
-    public HashMap<Item, Integer> getItems() 
+    public synchronized void stockChanged(Item item) 
     {
-        return items;
+        int position = item.getShelfPosition();
+        if (position < items.length && items[position] == item) 
+        {
+            setInStock(position, item.getQuantityAvailable() > 0);
+        }
     }
 
-    public void clearCart() 
+    private void setInStock(int position, boolean available) 
+    {
+        if (inStock[position] != available) 
+        {
+            inStock[position] = available;
+            int delta = available ? 1 : -1;
+            for (int i = position + 1; i < tree.length; i += i & -i) 
+            {
+                tree[i] += delta;
+            }
+        }
+    }
+
+    public synchronized int inStockCount() 
+    {
+        int count = 0;
+        for (int i = items.length; i > 0; i -= i & -i) 
+        {
+            count += tree[i];
+        }
+        return count;
+    }
+
+    // Returns the choice-th (1-based) in-stock item in name order, or null
+    public synchronized Item getInStock(int choice) 
+    {
+        if (choice <= 0) 
+        {
+            return null;
+        }
+        int position = 0;
+        int remaining = choice;
+        for (int step = Integer.highestOneBit(Math.max(1, items.length)); step > 0; step >>= 1) 
+        {
+            int next = position + step;
+            if (next <= items.length && tree[next] < remaining) 
+            {
+                position = next;
+                remaining -= tree[next];
+            }
+        }
+        return position < items.length ? itemAt(position) : null;
+    }
+
+    public synchronized List<Item> getInStockItems() 
+    {
+        List<Item> available = new ArrayList<>(inStockCount());
+        for (int i = 0; i < items.length; i++) 
+        {
+            if (inStock[i]) 
+            {
+                available.add(itemAt(i));
+            }
+        }
+        return available;
+    }
+
+    // Reads unmaterialized items' stock straight from the snapshot instead of creating them
+    public synchronized long totalStock() 
+    {
+        long total = 0;
+        for (int i = 0; i < items.length; i++) 
+        {
+            total += items[i] != null ? items[i].getQuantityAvailable() : snapshot.getQuantity(snapshotStart + i);
+        }
+        return total;
+    }
+
+    // Visits every SKU on the shelf in name order without materializing snapshot records
+    public synchronized void forEachSku(IntConsumer action) 
+    {
+        for (int i = 0; i < items.length; i++) 
+        {
+            action.accept(items[i] != null ? items[i].getSku() : snapshot.getSku(snapshotStart + i));
+        }
+    }
+
+    // Materializes every item on the shelf; for exports, not for the till
+    public synchronized List<Item> getAllItems() 
     {
-        items.clear();
+        List<Item> all = new ArrayList<>(items.length);
+        for (int i = 0; i < items.length; i++) 
+        {
+            all.add(itemAt(i));
+        }
+        return all;
     }
 }
 
-// Discount class to represent discounts
-class Discount implements Serializable 
+// CatalogIndex class to look items up by SKU or barcode and browse each category's in-stock items
+class CatalogIndex 
 {
-    private String name;
-    private double amount;
-    private boolean isPercentage;
+    private final EnumMap<Category, CategoryShelf> shelves = new EnumMap<>(Category.class);
+    private final ConcurrentHashMap<Integer, Item> bySku = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Item> byBarcode = new ConcurrentHashMap<>();
+    private volatile CatalogSnapshot snapshot; // Items not added at runtime are resolved from here on demand
 
-    public Discount(String name, double amount, boolean isPercentage) 
-  {
-        this.name = name;
-        this.amount = amount;
-        this.isPercentage = isPercentage;
+    public CatalogIndex() 
+    {
+        for (Category category : Category.values()) 
+        {
+            shelves.put(category, new CategoryShelf());
+        }
     }
 
-    public double applyDiscount(double price) 
-  {
-        if (isPercentage) 
+    public void loadSnapshot(CatalogSnapshot snapshot) 
+    {
+        for (Category category : Category.values()) 
         {
-            return price - (price * amount / 100);
-        } else 
+            shelves.get(category).loadSnapshot(snapshot, snapshot.getCategoryStart(category), snapshot.getCategoryEnd(category));
+        }
+        this.snapshot = snapshot;
+    }
+
+    public void add(Item item) 
+    {
+        addAll(Collections.singletonList(item));
+    }
+
+    // Bulk loads sort each shelf once instead of once per item
+    public void addAll(Collection<Item> items) 
+    {
+        EnumMap<Category, List<Item>> grouped = new EnumMap<>(Category.class);
+        for (Item item : items) 
         {
-            return price - amount;
+            bySku.put(item.getSku(), item);
+            if (item.getBarcode() != null) 
+            {
+                byBarcode.put(item.getBarcode(), item);
+            }
+            grouped.computeIfAbsent(item.getCategory(), c -> new ArrayList<>()).add(item);
+        }
+        for (Map.Entry<Category, List<Item>> entry : grouped.entrySet()) 
+        {
+            shelves.get(entry.getKey()).addAll(entry.getValue());
         }
     }
 
-    public String getName() 
+    public Item getBySku(int sku) 
     {
-        return name;
+        Item item = bySku.get(sku);
+        CatalogSnapshot current = snapshot;
+        if (item == null && current != null) 
+        {
+            item = materialize(current, current.findSku(sku));
+        }
+        return item;
+    }
+
+    public Item getByBarcode(String barcode) 
+    {
+        Item item = byBarcode.get(barcode);
+        CatalogSnapshot current = snapshot;
+        if (item == null && current != null) 
+        {
+            item = materialize(current, current.findBarcode(barcode));
+        }
+        return item;
+    }
+
+    private Item materialize(CatalogSnapshot current, int recordIndex) 
+    {
+        if (recordIndex < 0) 
+        {
+            return null;
+        }
+        Item item = current.getItem(recordIndex);
+        shelves.get(item.getCategory()).attachSnapshotItem(item, recordIndex);
+        return item;
+    }
+
+    public CategoryShelf getShelf(Category category) 
+    {
+        return shelves.get(category);
     }
 }
 
-// User class for authentication and personalized experience
-class User implements Serializable 
+// ProductSearch class to find in-stock products by name as the cashier types
+// A radix tree over the words in product names answers prefixes, shortest completion first; a trigram index over the
+// same words catches typos. Products are added incrementally, and stock is checked as results are gathered, so items
+// going in or out of stock need no index update.
+class ProductSearch 
 {
-    private String name;
-    private String email;
-    private String password; // Hashed password for security
-    private ShoppingCart cart;
-    private ArrayList<Item> favoriteItems;
-    private ArrayList<Item> purchasedItems;
-    // Add more user-related fields as needed
+    private static final Node[] NO_CHILDREN = new Node[0];
 
-    public User(String name, String email, String password) 
+    // Node class for one radix tree edge and the node it leads to
+    private static final class Node 
     {
-        this.name = name;
-        this.email = email;
-        this.password = password;
-        this.cart = new ShoppingCart();
-        this.favoriteItems = new ArrayList<>();
-        this.purchasedItems = new ArrayList<>();
+        String label; // The characters on the edge from the parent
+        final int depth; // Length of the word spelled out at this node
+        Node[] children = NO_CHILDREN; // Sorted by first character
+        int term = -1; // The word ending here, if any
+        int count; // Postings of the words in this subtree, to pick the most selective query word
+
+        Node(String label, int depth) 
+        {
+            this.label = label;
+            this.depth = depth;
+        }
     }
 
-    public String getName() 
+    // IntList class for a growable array of ints
+    private static final class IntList 
     {
-        return name;
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) 
+        {
+            if (size == values.length) 
+            {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
     }
 
-    public String getEmail()
+    // Postings class for the products using one word, in rank order up to sorted and in arrival order after it
+    private static final class Postings 
     {
-        return email;
+        final IntList docs = new IntList();
+        int sorted;
+
+        // Merges newly added products into rank order; called under the read lock, so it locks itself
+        synchronized int[] seal(Comparator<Integer> rank) 
+        {
+            if (sorted < docs.size) 
+            {
+                Integer[] tail = new Integer[docs.size - sorted];
+                for (int i = 0; i < tail.length; i++) 
+                {
+                    tail[i] = docs.values[sorted + i];
+                }
+                Arrays.sort(tail, rank);
+                int[] merged = new int[docs.values.length];
+                int head = 0;
+                int next = 0;
+                for (int out = 0; out < docs.size; out++) 
+                {
+                    merged[out] = next == tail.length || (head < sorted && rank.compare(docs.values[head], tail[next]) <= 0) ? docs.values[head++] : tail[next++];
+                }
+                docs.values = merged;
+                sorted = docs.size;
+            }
+            return docs.values;
+        }
+    }
+
+    private final Function<Integer, Item> resolver; // SKU to live Item, for stock and results
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Node root = new Node("", 0);
+    private final HashMap<String, Integer> termIds = new HashMap<>();
+    private final ArrayList<String> terms = new ArrayList<>();
+    private final ArrayList<Postings> postings = new ArrayList<>();
+    private final HashMap<Long, IntList> trigrams = new HashMap<>(); // Trigram of "^" + word to the words containing it
+    private final IntList docSkus = new IntList();
+    private final IntList docTerms = new IntList(); // Every product's words, one run per product
+    private final IntList docTermEnds = new IntList(); // Where each product's run ends
+    private final ArrayList<String> docNames = new ArrayList<>();
+    // Shorter names first, so "Milk" comes before "Milk Chocolate Bar", then by name
+    private final Comparator<Integer> rank = (a, b) -> 
+    {
+        String left = docNames.get(a);
+        String right = docNames.get(b);
+        int order = Integer.compare(left.length(), right.length());
+        return order != 0 ? order : order(left, right, a, b);
+    };
+
+    public ProductSearch(Function<Integer, Item> resolver) 
+    {
+        this.resolver = resolver;
+    }
+
+    private static int order(String left, String right, int a, int b) 
+    {
+        int order = left.compareTo(right);
+        return order != 0 ? order : Integer.compare(a, b);
+    }
+
+    public void addAll(Collection<Item> items) 
+    {
+        lock.writeLock().lock();
+        try 
+        {
+            for (Item item : items) 
+            {
+                add(item.getSku(), item.getName());
+            }
+        } finally 
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Indexes a memory-mapped catalog from its records, without creating any Item
+    public void addSnapshot(CatalogSnapshot snapshot) 
+    {
+        lock.writeLock().lock();
+        try 
+        {
+            for (int record = 0; record < snapshot.size(); record++) 
+            {
+                add(snapshot.getSku(record), snapshot.getName(record));
+            }
+        } finally 
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void add(int sku, String name) 
+    {
+        int doc = docNames.size();
+        docSkus.add(sku);
+        docNames.add(name);
+        for (String word : words(name)) 
+        {
+            int term = term(word);
+            postings.get(term).docs.add(doc);
+            docTerms.add(term);
+            Node node = root;
+            for (int i = 0; i < word.length(); i += node.label.length()) 
+            {
+                node = node.children[childIndex(node, word.charAt(i))];
+                node.count++;
+            }
+        }
+        docTermEnds.add(docTerms.size);
+    }
+
+    private int term(String word) 
+    {
+        Integer existing = termIds.get(word);
+        if (existing != null) 
+        {
+            return existing;
+        }
+        int id = terms.size();
+        termIds.put(word, id);
+        terms.add(word);
+        postings.add(new Postings());
+        insert(word, id);
+        String padded = "^" + word;
+        Set<Long> seen = new HashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) 
+        {
+            Long gram = trigram(padded, i);
+            if (seen.add(gram)) 
+            {
+                trigrams.computeIfAbsent(gram, key -> new IntList()).add(id);
+            }
+        }
+        return id;
+    }
+
+    private void insert(String word, int id) 
+    {
+        Node node = root;
+        int i = 0;
+        while (i < word.length()) 
+        {
+            int index = childIndex(node, word.charAt(i));
+            if (index < 0) 
+            {
+                Node leaf = new Node(word.substring(i), word.length());
+                leaf.term = id;
+                int at = -index - 1;
+                Node[] children = new Node[node.children.length + 1];
+                System.arraycopy(node.children, 0, children, 0, at);
+                children[at] = leaf;
+                System.arraycopy(node.children, at, children, at + 1, node.children.length - at);
+                node.children = children;
+                return;
+            }
+            Node child = node.children[index];
+            int common = commonPrefix(child.label, word, i);
+            if (common < child.label.length()) 
+            {
+                // Split the edge where the word leaves it
+                Node middle = new Node(child.label.substring(0, common), i + common);
+                middle.count = child.count;
+                child.label = child.label.substring(common);
+                middle.children = new Node[] { child };
+                node.children[index] = middle;
+                child = middle;
+            }
+            node = child;
+            i += common;
+        }
+        node.term = id;
+    }
+
+    private static int childIndex(Node node, char first) 
+    {
+        int low = 0;
+        int high = node.children.length - 1;
+        while (low <= high) 
+        {
+            int middle = (low + high) >>> 1;
+            char c = node.children[middle].label.charAt(0);
+            if (c < first) 
+            {
+                low = middle + 1;
+            } else if (c > first) 
+            {
+                high = middle - 1;
+            } else 
+            {
+                return middle;
+            }
+        }
+        return -low - 1;
+    }
+
+    private static int commonPrefix(String label, String word, int from) 
+    {
+        int common = 0;
+        while (common < label.length() && from + common < word.length() && label.charAt(common) == word.charAt(from + common)) 
+        {
+            common++;
+        }
+        return common;
+    }
+
+    // The node whose subtree holds every word starting with prefix, or null
+    private Node find(String prefix) 
+    {
+        Node node = root;
+        int i = 0;
+        while (i < prefix.length()) 
+        {
+            int index = childIndex(node, prefix.charAt(i));
+            if (index < 0) 
+            {
+                return null;
+            }
+            node = node.children[index];
+            int common = commonPrefix(node.label, prefix, i);
+            if (i + common == prefix.length()) 
+            {
+                return node;
+            }
+            if (common < node.label.length()) 
+            {
+                return null;
+            }
+            i += common;
+        }
+        return node;
+    }
+
+    // Up to limit in-stock products matching every word of the query, best first. One query word drives the search:
+    // one that starts no word at all (likely a typo), otherwise the one starting the fewest. Words it starts come
+    // first, shortest word first, then words within a small edit distance of it; the other query words must start
+    // words of the name.
+    public List<Item> search(String query, int limit) 
+    {
+        List<String> words = words(query);
+        List<Item> results = new ArrayList<>(Math.max(0, Math.min(limit, 64)));
+        if (words.isEmpty() || limit <= 0) 
+        {
+            return results;
+        }
+        Set<Integer> seen = new HashSet<>();
+        lock.readLock().lock();
+        try 
+        {
+            int driver = 0;
+            Node start = null;
+            for (int i = 0; i < words.size(); i++) 
+            {
+                Node node = find(words.get(i));
+                if (node == null) 
+                {
+                    driver = i;
+                    start = null;
+                    break;
+                }
+                if (start == null || node.count < start.count) 
+                {
+                    driver = i;
+                    start = node;
+                }
+            }
+            List<String> required = new ArrayList<>(words);
+            required.remove(driver);
+            if (start != null) 
+            {
+                PriorityQueue<Node> pending = new PriorityQueue<>(Comparator.comparingInt((Node node) -> node.depth));
+                pending.add(start);
+                while (!pending.isEmpty() && results.size() < limit) 
+                {
+                    Node node = pending.poll();
+                    if (node.term >= 0) 
+                    {
+                        gather(node.term, required, limit, seen, results);
+                    }
+                    Collections.addAll(pending, node.children);
+                }
+            }
+            if (results.size() < limit && words.get(driver).length() >= 3) 
+            {
+                for (int term : similarTerms(words.get(driver))) 
+                {
+                    gather(term, required, limit, seen, results);
+                    if (results.size() >= limit) 
+                    {
+                        break;
+                    }
+                }
+            }
+        } finally 
+        {
+            lock.readLock().unlock();
+        }
+        return results;
+    }
+
+    private void gather(int term, List<String> required, int limit, Set<Integer> seen, List<Item> results) 
+    {
+        Postings list = postings.get(term);
+        int[] docs;
+        int size;
+        synchronized (list) 
+        {
+            docs = list.seal(rank);
+            size = list.sorted;
+        }
+        for (int i = 0; i < size && results.size() < limit; i++) 
+        {
+            int sku = docSkus.values[docs[i]];
+            if (seen.contains(sku) || !matchesAll(docs[i], required)) 
+            {
+                continue;
+            }
+            Item item = resolver.apply(sku);
+            if (item != null && item.getQuantityAvailable() > 0) 
+            {
+                seen.add(sku);
+                results.add(item);
+            }
+        }
+    }
+
+    // The other query words must each start a word of the product's name
+    private boolean matchesAll(int doc, List<String> required) 
+    {
+        int from = doc == 0 ? 0 : docTermEnds.values[doc - 1];
+        int to = docTermEnds.values[doc];
+        for (String word : required) 
+        {
+            boolean found = false;
+            for (int i = from; i < to && !found; i++) 
+            {
+                found = terms.get(docTerms.values[i]).startsWith(word);
+            }
+            if (!found) 
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Words whose start is within one edit of the query word (two for words over four letters), nearest first;
+    // an edit changes at most three trigrams, which bounds how few a candidate may share
+    private List<Integer> similarTerms(String word) 
+    {
+        int maxDistance = word.length() <= 4 ? 1 : 2;
+        String padded = "^" + word;
+        int grams = padded.length() - 2;
+        List<IntList> lists = new ArrayList<>(grams);
+        Set<Long> seen = new HashSet<>();
+        int touched = 0;
+        for (int i = 0; i < grams; i++) 
+        {
+            Long gram = trigram(padded, i);
+            IntList containing = seen.add(gram) ? trigrams.get(gram) : null;
+            if (containing != null) 
+            {
+                lists.add(containing);
+                touched += containing.size;
+            }
+        }
+        // Shared trigram counts in an open-addressed table sized to the words touched, not the whole vocabulary
+        int mask = Integer.highestOneBit(Math.max(8, touched * 2) - 1) * 2 - 1;
+        int[] keys = new int[mask + 1];
+        int[] shared = new int[mask + 1];
+        Arrays.fill(keys, -1);
+        for (IntList containing : lists) 
+        {
+            for (int j = 0; j < containing.size; j++) 
+            {
+                int term = containing.values[j];
+                int slot = (term * 0x9E3779B9) >>> 7 & mask;
+                while (keys[slot] != term && keys[slot] >= 0) 
+                {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = term;
+                shared[slot]++;
+            }
+        }
+        int threshold = Math.max(1, grams - 3 * maxDistance);
+        List<long[]> matches = new ArrayList<>(); // Distance, word length, term
+        for (int slot = 0; slot <= mask; slot++) 
+        {
+            int term = keys[slot];
+            if (term >= 0 && shared[slot] >= threshold) 
+            {
+                int distance = prefixDistance(word, terms.get(term), maxDistance);
+                if (distance > 0 && distance <= maxDistance) 
+                {
+                    matches.add(new long[] { distance, terms.get(term).length(), term });
+                }
+            }
+        }
+        matches.sort(Comparator.<long[]>comparingLong(match -> match[0]).thenComparingLong(match -> match[1]).thenComparingLong(match -> match[2]));
+        List<Integer> similar = new ArrayList<>(matches.size());
+        for (long[] match : matches) 
+        {
+            similar.add((int) match[2]);
+        }
+        return similar;
+    }
+
+    // Edit distance from word to the closest prefix of candidate, or more than max once that is certain
+    private static int prefixDistance(String word, String candidate, int max) 
+    {
+        int columns = Math.min(candidate.length(), word.length() + max);
+        int[] previous = new int[columns + 1];
+        int[] current = new int[columns + 1];
+        for (int j = 0; j <= columns; j++) 
+        {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= word.length(); i++) 
+        {
+            current[0] = i;
+            int best = i;
+            for (int j = 1; j <= columns; j++) 
+            {
+                int substitute = previous[j - 1] + (word.charAt(i - 1) == candidate.charAt(j - 1) ? 0 : 1);
+                current[j] = Math.min(substitute, Math.min(previous[j], current[j - 1]) + 1);
+                best = Math.min(best, current[j]);
+            }
+            if (best > max) 
+            {
+                return max + 1;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        int distance = previous[0];
+        for (int j = 1; j <= columns; j++) 
+        {
+            distance = Math.min(distance, previous[j]);
+        }
+        return distance;
+    }
+
+    private static Long trigram(String text, int at) 
+    {
+        return ((long) text.charAt(at) << 32) | ((long) text.charAt(at + 1) << 16) | text.charAt(at + 2);
+    }
+
+    // Lower-cased runs of letters and digits
+    static List<String> words(String text) 
+    {
+        List<String> words = new ArrayList<>(4);
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) 
+        {
+            boolean part = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (part && start < 0) 
+            {
+                start = i;
+            } else if (!part && start >= 0) 
+            {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+}
+
+// CatalogSnapshot class to memory-map a binary catalog file and hand out Item views on first use
+// Layout: header, fixed-width records sorted by category then name, SKU and barcode hash tables, string table
+class CatalogSnapshot 
+{
+    private static final int MAGIC = 0x53424353; // "SBCS"
+    private static final int FORMAT_VERSION = 1;
+    private static final int CATEGORIES = Category.values().length;
+    // Magic, version, record count, SKU table slots, barcode table slots, then the first record of each category and the end
+    private static final int HEADER_BYTES = 20 + 4 * (CATEGORIES + 1);
+    private static final int RECORD_BYTES = 32;
+    // Offsets within a record
+    private static final int SKU = 0;
+    private static final int PRICE = 4;
+    private static final int QUANTITY = 12;
+    private static final int CATEGORY = 16;
+    private static final int NAME_LENGTH = 18;
+    private static final int NAME_OFFSET = 20;
+    private static final int BARCODE_OFFSET = 24;
+    private static final int BARCODE_LENGTH = 28; // -1 when the item has no barcode
+
+    private final ByteBuffer buffer;
+    private final int recordCount;
+    private final int skuSlots;
+    private final int barcodeSlots;
+    private final int skuTable;
+    private final int barcodeTable;
+    private final int stringTable;
+    private final AtomicReferenceArray<Item> materialized;
+
+    private CatalogSnapshot(ByteBuffer buffer) throws IOException 
+    {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) 
+        {
+            throw new IOException("Not a catalog snapshot (or an unsupported version)");
+        }
+        recordCount = buffer.getInt(8);
+        skuSlots = buffer.getInt(12);
+        barcodeSlots = buffer.getInt(16);
+        skuTable = HEADER_BYTES + recordCount * RECORD_BYTES;
+        barcodeTable = skuTable + skuSlots * 4;
+        stringTable = barcodeTable + barcodeSlots * 4;
+        materialized = new AtomicReferenceArray<>(recordCount);
+    }
+
+    // The mapping is read-only and shared through the page cache by every JVM that opens the same file
+    public static CatalogSnapshot open(Path path) throws IOException 
+    {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) 
+        {
+            return new CatalogSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public static void write(Path path, Collection<Item> catalog) throws IOException 
+    {
+        List<Item> records = new ArrayList<>(catalog);
+        records.sort(Comparator.comparing(Item::getCategory).thenComparing(Item::getName).thenComparingInt(Item::getSku));
+        int skuSlots = tableSize(records.size());
+        int barcodeSlots = tableSize(records.size());
+
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        ByteBuffer body = ByteBuffer.allocate(HEADER_BYTES + records.size() * RECORD_BYTES + (skuSlots + barcodeSlots) * 4);
+        body.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(records.size()).putInt(skuSlots).putInt(barcodeSlots);
+        int index = 0;
+        for (Category category : Category.values()) 
+        {
+            while (index < records.size() && records.get(index).getCategory().compareTo(category) < 0) 
+            {
+                index++;
+            }
+            body.putInt(index);
+        }
+        body.putInt(records.size());
+
+        int skuTable = HEADER_BYTES + records.size() * RECORD_BYTES;
+        int barcodeTable = skuTable + skuSlots * 4;
+        for (int i = 0; i < records.size(); i++) 
+        {
+            Item item = records.get(i);
+            byte[] name = item.getName().getBytes(StandardCharsets.UTF_8);
+            byte[] barcode = item.getBarcode() == null ? null : item.getBarcode().getBytes(StandardCharsets.UTF_8);
+            int record = HEADER_BYTES + i * RECORD_BYTES;
+            body.putInt(record + SKU, item.getSku());
+            body.putLong(record + PRICE, item.getPrice());
+            body.putInt(record + QUANTITY, item.getQuantityAvailable());
+            body.put(record + CATEGORY, (byte) item.getCategory().ordinal());
+            body.putShort(record + NAME_LENGTH, (short) name.length);
+            body.putInt(record + NAME_OFFSET, strings.size());
+            strings.write(name);
+            body.putInt(record + BARCODE_LENGTH, barcode == null ? -1 : barcode.length);
+            body.putInt(record + BARCODE_OFFSET, strings.size());
+            if (barcode != null) 
+            {
+                strings.write(barcode);
+                insert(body, barcodeTable, barcodeSlots, barcodeHash(barcode, 0, barcode.length), i);
+            }
+            insert(body, skuTable, skuSlots, skuHash(item.getSku()), i);
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) 
+        {
+            body.clear();
+            channel.write(body);
+            channel.write(ByteBuffer.wrap(strings.toByteArray()));
+        }
+    }
+
+    private static int tableSize(int records) 
+    {
+        return Integer.highestOneBit(Math.max(1, records) * 2 - 1) * 2;
+    }
+
+    private static void insert(ByteBuffer body, int table, int slots, int hash, int recordIndex) 
+    {
+        int slot = hash & (slots - 1);
+        while (body.getInt(table + slot * 4) != 0) 
+        {
+            slot = (slot + 1) & (slots - 1);
+        }
+        body.putInt(table + slot * 4, recordIndex + 1);
+    }
+
+    private static int skuHash(int sku) 
+    {
+        return (sku * 0x9E3779B9) >>> 1;
+    }
+
+    private static int barcodeHash(byte[] bytes, int offset, int length) 
+    {
+        int hash = 0x811C9DC5; // FNV-1a
+        for (int i = offset; i < offset + length; i++) 
+        {
+            hash = (hash ^ (bytes[i] & 0xFF)) * 0x01000193;
+        }
+        return hash >>> 1;
+    }
+
+    public int size() 
+    {
+        return recordCount;
+    }
+
+    public int getCategoryStart(Category category) 
+    {
+        return buffer.getInt(20 + 4 * category.ordinal());
+    }
+
+    public int getCategoryEnd(Category category) 
+    {
+        return buffer.getInt(20 + 4 * (category.ordinal() + 1));
+    }
+
+    // Stock as written in the file, before any sale
+    public int getQuantity(int recordIndex) 
+    {
+        return buffer.getInt(HEADER_BYTES + recordIndex * RECORD_BYTES + QUANTITY);
+    }
+
+    public int findSku(int sku) 
+    {
+        for (int slot = skuHash(sku) & (skuSlots - 1); ; slot = (slot + 1) & (skuSlots - 1)) 
+        {
+            int entry = buffer.getInt(skuTable + slot * 4);
+            if (entry == 0) 
+            {
+                return -1;
+            }
+            if (buffer.getInt(HEADER_BYTES + (entry - 1) * RECORD_BYTES + SKU) == sku) 
+            {
+                return entry - 1;
+            }
+        }
+    }
+
+    public int findBarcode(String barcode) 
+    {
+        byte[] wanted = barcode.getBytes(StandardCharsets.UTF_8);
+        for (int slot = barcodeHash(wanted, 0, wanted.length) & (barcodeSlots - 1); ; slot = (slot + 1) & (barcodeSlots - 1)) 
+        {
+            int entry = buffer.getInt(barcodeTable + slot * 4);
+            if (entry == 0) 
+            {
+                return -1;
+            }
+            int record = HEADER_BYTES + (entry - 1) * RECORD_BYTES;
+            if (buffer.getInt(record + BARCODE_LENGTH) == wanted.length && bytesEqual(stringTable + buffer.getInt(record + BARCODE_OFFSET), wanted)) 
+            {
+                return entry - 1;
+            }
+        }
+    }
+
+    private boolean bytesEqual(int offset, byte[] wanted) 
+    {
+        for (int i = 0; i < wanted.length; i++) 
+        {
+            if (buffer.get(offset + i) != wanted[i]) 
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getSku(int recordIndex) 
+    {
+        return buffer.getInt(HEADER_BYTES + recordIndex * RECORD_BYTES + SKU);
+    }
+
+    public String getName(int recordIndex) 
+    {
+        int record = HEADER_BYTES + recordIndex * RECORD_BYTES;
+        return readString(buffer.getInt(record + NAME_OFFSET), buffer.getShort(record + NAME_LENGTH));
+    }
+
+    // The same Item is returned for a record every time, so its live stock has exactly one home
+    public Item getItem(int recordIndex) 
+    {
+        Item item = materialized.get(recordIndex);
+        if (item == null) 
+        {
+            int record = HEADER_BYTES + recordIndex * RECORD_BYTES;
+            int barcodeLength = buffer.getInt(record + BARCODE_LENGTH);
+            Item created = new Item(
+                buffer.getInt(record + SKU),
+                barcodeLength < 0 ? null : readString(buffer.getInt(record + BARCODE_OFFSET), barcodeLength),
+                readString(buffer.getInt(record + NAME_OFFSET), buffer.getShort(record + NAME_LENGTH)),
+                buffer.getLong(record + PRICE),
+                Category.values()[buffer.get(record + CATEGORY)],
+                buffer.getInt(record + QUANTITY));
+            item = materialized.compareAndSet(recordIndex, null, created) ? created : materialized.get(recordIndex);
+        }
+        return item;
+    }
+
+    private String readString(int offset, int length) 
+    {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) 
+        {
+            bytes[i] = buffer.get(stringTable + offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+// CatalogUpdate class to hold a bulk price and stock change, staged off to the side and then published in one step
+// Publishing is a single volatile write, so readers never block and never see half an update
+class CatalogUpdate 
+{
+    static final int NO_PRICE = -1;
+    private static final int MAGIC = 0x53424355; // "SBCU"
+
+    // Line class for one SKU's change: a new price and/or a new stock level or adjustment
+    static final class Line 
+    {
+        final int sku;
+        final long price;       // Cents, or NO_PRICE to leave it
+        final boolean hasStock;
+        final boolean stockIsDelta;
+        final int stock;
+
+        Line(int sku, long price, boolean hasStock, boolean stockIsDelta, int stock) 
+        {
+            this.sku = sku;
+            this.price = price;
+            this.hasStock = hasStock;
+            this.stockIsDelta = stockIsDelta;
+            this.stock = stock;
+        }
+    }
+
+    private final List<Line> lines;
+    private volatile boolean published;
+
+    public CatalogUpdate(List<Line> lines) 
+    {
+        this.lines = Collections.unmodifiableList(new ArrayList<>(lines));
+    }
+
+    public List<Line> getLines() 
+    {
+        return lines;
+    }
+
+    boolean isPublished() 
+    {
+        return published;
+    }
+
+    void publish() 
+    {
+        published = true;
+    }
+
+    // Reads a binary update (starts with "SBCU") or a CSV one
+    public static CatalogUpdate read(Path path) throws IOException 
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) 
+        {
+            in.mark(4);
+            if (in.available() >= 4 && in.readInt() == MAGIC) 
+            {
+                return readBinary(in);
+            }
+            in.reset();
+            return readCsv(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+        }
+    }
+
+    // One "sku,price,stock" row per SKU; an optional header row is skipped. Leave price or stock empty to keep it;
+    // a stock of "+5" or "-5" adjusts it, a bare number sets it.
+    static CatalogUpdate readCsv(BufferedReader reader) throws IOException 
+    {
+        List<Line> lines = new ArrayList<>();
+        String row;
+        int rowNumber = 0;
+        while ((row = reader.readLine()) != null) 
+        {
+            rowNumber++;
+            row = row.trim();
+            if (row.isEmpty() || row.startsWith("#") || (rowNumber == 1 && row.toLowerCase(Locale.ROOT).startsWith("sku"))) 
+            {
+                continue;
+            }
+            String[] fields = row.split(",", -1);
+            try 
+            {
+                int sku = Integer.parseInt(fields[0].trim());
+                String price = fields.length > 1 ? fields[1].trim() : "";
+                String stock = fields.length > 2 ? fields[2].trim() : "";
+                boolean delta = stock.startsWith("+") || stock.startsWith("-");
+                lines.add(new Line(sku, price.isEmpty() ? NO_PRICE : Money.parse(price), !stock.isEmpty(), delta,
+                    stock.isEmpty() ? 0 : Integer.parseInt(stock.startsWith("+") ? stock.substring(1) : stock)));
+            } catch (NumberFormatException e) 
+            {
+                throw new IOException("Row " + rowNumber + ": " + e.getMessage());
+            }
+        }
+        return new CatalogUpdate(lines);
+    }
+
+    static CatalogUpdate readBinary(DataInputStream in) throws IOException 
+    {
+        int count = in.readInt();
+        List<Line> lines = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) 
+        {
+            int sku = in.readInt();
+            long price = in.readLong();
+            byte stockMode = in.readByte(); // 0 keep, 1 set, 2 adjust
+            lines.add(new Line(sku, price, stockMode != 0, stockMode == 2, in.readInt()));
+        }
+        return new CatalogUpdate(lines);
+    }
+
+    public void writeBinary(Path path) throws IOException 
+    {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) 
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(lines.size());
+            for (Line line : lines) 
+            {
+                out.writeInt(line.sku);
+                out.writeLong(line.price);
+                out.writeByte(!line.hasStock ? 0 : line.stockIsDelta ? 2 : 1);
+                out.writeInt(line.stock);
+            }
+        }
+    }
+}
+
+// CatalogUpdater class to apply update files dropped into a directory, in name order, on a background thread
+// Only *.csv and *.bin are picked up, so write a file under another name and rename it in once complete.
+// Applied files are renamed to .applied and rejected ones to .failed.
+class CatalogUpdater implements Closeable 
+{
+    private final Supermarket supermarket;
+    private final Path directory;
+    private final ScheduledExecutorService poller;
+
+    public CatalogUpdater(Supermarket supermarket, Path directory, long intervalSeconds) 
+    {
+        this.supermarket = supermarket;
+        this.directory = directory;
+        this.poller = Executors.newSingleThreadScheduledExecutor(runnable -> 
+        {
+            Thread thread = new Thread(runnable, "catalog-updater");
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller.scheduleWithFixedDelay(this::poll, 0, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private void poll() 
+    {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> listing = Files.newDirectoryStream(directory, "*.{csv,bin}")) 
+        {
+            for (Path file : listing) 
+            {
+                files.add(file);
+            }
+        } catch (IOException e) 
+        {
+            return; // Directory not there yet
+        }
+        Collections.sort(files);
+        for (Path file : files) 
+        {
+            String outcome;
+            try 
+            {
+                long version = supermarket.applyCatalogUpdate(CatalogUpdate.read(file));
+                System.out.println("Catalog update " + file.getFileName() + " applied as version " + version + ".");
+                outcome = ".applied";
+            } catch (IOException | RuntimeException e) 
+            {
+                System.err.println("Catalog update " + file.getFileName() + " rejected: " + e.getMessage());
+                outcome = ".failed";
+            }
+            try 
+            {
+                Files.move(file, file.resolveSibling(file.getFileName() + outcome), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) 
+            {
+                System.err.println("Catalog update " + file.getFileName() + " could not be renamed; stopping until it is moved away.");
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() 
+    {
+        poller.shutdownNow();
+    }
+}
+
+// ShoppingCart class to manage items added to the cart
+// Lines are kept in insertion order in parallel arrays, found by SKU through an open-addressing table
+class ShoppingCart implements Serializable 
+  {
+    private static final int INITIAL_LINES = 8;
+
+    private int[] skus;
+    private int[] quantities;
+    private Item[] lineItems;
+    private long[] prices; // Unit price when the line was started, so a repricing never changes a cart mid-shop
+    private int size;
+    private int[] table; // Line index + 1 for each occupied slot, 0 when empty; never more than half full
+    // Running totals, kept up to date by every add and remove
+    private long subtotal;
+    private long[] categorySubtotals;
+    private long lineDiscounts;
+    private long fingerprint; // Sum of quantity * hash(sku, unit price) over the lines, the same in any line order
+    private transient PromotionEngine promotions; // The rules lineDiscounts was computed with
+
+    public ShoppingCart() 
+    {
+        skus = new int[INITIAL_LINES];
+        quantities = new int[INITIAL_LINES];
+        lineItems = new Item[INITIAL_LINES];
+        prices = new long[INITIAL_LINES];
+        table = new int[INITIAL_LINES * 2];
+        categorySubtotals = new long[Category.values().length];
+    }
+
+    public void addItem(Item item, int quantity) 
+    {
+        int line = findLine(item.getSku());
+        int currentQuantity = 0;
+        if (line >= 0) 
+        {
+            currentQuantity = quantities[line];
+            quantities[line] = currentQuantity + quantity;
+        } else 
+        {
+            line = appendLine(item, quantity);
+        }
+        lineChanged(item, prices[line], currentQuantity, currentQuantity + quantity);
+    }
+
+    public void removeItem(Item item, int quantity) 
+    {
+        int line = findLine(item.getSku());
+        if (line >= 0) 
+        {
+            int currentQuantity = quantities[line];
+            long price = prices[line];
+            if (currentQuantity <= quantity) 
+            {
+                deleteLine(line);
+                lineChanged(item, price, currentQuantity, 0);
+            } else 
+            {
+                quantities[line] = currentQuantity - quantity;
+                lineChanged(item, price, currentQuantity, currentQuantity - quantity);
+            }
+        }
+    }
+
+    public int getQuantity(Item item) 
+    {
+        int line = findLine(item.getSku());
+        return line >= 0 ? quantities[line] : 0;
+    }
+
+    // The unit price pinned when the item was first added, or 0 when it is not in the cart
+    public long getPrice(Item item) 
+    {
+        int line = findLine(item.getSku());
+        return line >= 0 ? prices[line] : 0;
+    }
+
+    public int size() 
+    {
+        return size;
+    }
+
+    public boolean isEmpty() 
+    {
+        return size == 0;
+    }
+
+    public Item getLineItem(int line) 
+    {
+        return lineItems[line];
+    }
+
+    public int getLineQuantity(int line) 
+    {
+        return quantities[line];
+    }
+
+    public long getLinePrice(int line) 
+    {
+        return prices[line];
+    }
+
+    private int slotFor(int sku) 
+    {
+        return (sku * 0x9E3779B9) >>> 1 & (table.length - 1);
+    }
+
+    private int findLine(int sku) 
+    {
+        int mask = table.length - 1;
+        for (int slot = slotFor(sku); table[slot] != 0; slot = (slot + 1) & mask) 
+        {
+            if (skus[table[slot] - 1] == sku) 
+            {
+                return table[slot] - 1;
+            }
+        }
+        return -1;
+    }
+
+    private int findSlot(int sku) 
+    {
+        int mask = table.length - 1;
+        int slot = slotFor(sku);
+        while (skus[table[slot] - 1] != sku) 
+        {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private int appendLine(Item item, int quantity) 
+    {
+        if (size == skus.length) 
+        {
+            int capacity = size * 2;
+            skus = Arrays.copyOf(skus, capacity);
+            quantities = Arrays.copyOf(quantities, capacity);
+            lineItems = Arrays.copyOf(lineItems, capacity);
+            prices = Arrays.copyOf(prices, capacity);
+            table = new int[capacity * 2];
+            for (int line = 0; line < size; line++) 
+            {
+                insertSlot(skus[line], line);
+            }
+        }
+        skus[size] = item.getSku();
+        quantities[size] = quantity;
+        lineItems[size] = item;
+        prices[size] = item.getPrice();
+        insertSlot(item.getSku(), size);
+        return size++;
+    }
+
+    private void insertSlot(int sku, int line) 
+    {
+        int mask = table.length - 1;
+        int slot = slotFor(sku);
+        while (table[slot] != 0) 
+        {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = line + 1;
+    }
+
+    // Removes the line keeping the rest in order; later lines move down one and their slots are renumbered
+    private void deleteLine(int line) 
+    {
+        int mask = table.length - 1;
+        int hole = findSlot(skus[line]);
+        table[hole] = 0;
+        // Backward-shift deletion keeps every probe chain unbroken without tombstones
+        for (int slot = (hole + 1) & mask; table[slot] != 0; slot = (slot + 1) & mask) 
+        {
+            int home = slotFor(skus[table[slot] - 1]);
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) 
+            {
+                table[hole] = table[slot];
+                table[slot] = 0;
+                hole = slot;
+            }
+        }
+        for (int later = line + 1; later < size; later++) 
+        {
+            table[findSlot(skus[later])]--;
+        }
+        int moved = size - line - 1;
+        System.arraycopy(skus, line + 1, skus, line, moved);
+        System.arraycopy(quantities, line + 1, quantities, line, moved);
+        System.arraycopy(lineItems, line + 1, lineItems, line, moved);
+        System.arraycopy(prices, line + 1, prices, line, moved);
+        size--;
+        lineItems[size] = null;
+    }
+
+    private void lineChanged(Item item, long price, int oldQuantity, int newQuantity) 
+    {
+        long delta = Money.times(price, newQuantity - oldQuantity);
+        subtotal += delta;
+        categorySubtotals[item.getCategory().ordinal()] += delta;
+        fingerprint += lineHash(item.getSku(), price) * (newQuantity - oldQuantity);
+        if (promotions != null) 
+        {
+            lineDiscounts += promotions.lineDiscount(item, price, newQuantity) - promotions.lineDiscount(item, price, oldQuantity);
+        }
+    }
+
+    public long calculateTotal()
+    {
+        return subtotal;
+    }
+
+    // Identifies the basket's contents for PriceQuoteCache, whatever order the lines were added in
+    public long getFingerprint() 
+    {
+        return fingerprint;
+    }
+
+    private static long lineHash(int sku, long price) 
+    {
+        long hash = (sku * 0x9E3779B97F4A7C15L) ^ (price * 0xC2B2AE3D27D4EB4FL);
+        hash ^= hash >>> 31;
+        hash *= 0xBF58476D1CE4E5B9L;
+        return hash ^ (hash >>> 29);
+    }
+
+    public long getCategorySubtotal(Category category) 
+    {
+        return categorySubtotals[category.ordinal()];
+    }
+
+    // Sum of per-line discounts under the given rules; only rescans the cart when the rules changed
+    public long getLineDiscounts(PromotionEngine engine) 
+    {
+        if (engine != promotions) 
+        {
+            promotions = engine;
+            lineDiscounts = 0;
+            for (int line = 0; line < size; line++) 
+            {
+                lineDiscounts += engine.lineDiscount(lineItems[line], prices[line], quantities[line]);
+            }
+        }
+        return lineDiscounts;
+    }
+
+    public void clearCart() 
+    {
+        Arrays.fill(table, 0);
+        Arrays.fill(lineItems, 0, size, null);
+        size = 0;
+        subtotal = 0;
+        Arrays.fill(categorySubtotals, 0);
+        lineDiscounts = 0;
+        fingerprint = 0;
+    }
+}
+
+// CheckoutLane class to run one till: its own cart, with stock reserved against the shared catalog
+// An attached lane also publishes every change to its own TillEventRing; the reservation itself stays synchronous.
+class CheckoutLane 
+{
+    private final ShoppingCart cart;
+    private TillEventRing events; // Null unless attached to a TillEventPipeline
+
+    public CheckoutLane() 
+    {
+        cart = new ShoppingCart();
+    }
+
+    public ShoppingCart getCart() 
+    {
+        return cart;
+    }
+
+    // The ring starts with whatever the cart already holds, such as a restored saved cart
+    public void attach(TillEventRing ring) 
+    {
+        events = ring;
+        publishLines(TillEvent.ADD);
+    }
+
+    public TillEventRing detach() 
+    {
+        TillEventRing ring = events;
+        events = null;
+        return ring;
+    }
+
+    // Whether receipts for this lane's orders travel with its CONFIRM events
+    public boolean publishesReceipts() 
+    {
+        return events != null && events.carriesReceipts;
+    }
+
+    public boolean addItem(Item item, int quantity) 
+    {
+        long start = CheckoutMetrics.start();
+        try 
+        {
+            if (!item.reserve(quantity)) 
+            {
+                return false;
+            }
+            cart.addItem(item, quantity);
+            if (events != null) 
+            {
+                publishLine(TillEvent.ADD, item, quantity, cart.getPrice(item));
+            }
+            return true;
+        } finally 
+        {
+            CheckoutMetrics.record(CheckoutMetrics.Operation.ADD_ITEM, start);
+        }
+    }
+
+    // Returns the quantity actually taken out of the cart and put back on the shelf
+    public int removeItem(Item item, int quantity) 
+    {
+        long start = CheckoutMetrics.start();
+        try 
+        {
+            int inCart = cart.getQuantity(item);
+            if (inCart == 0 || quantity <= 0) 
+            {
+                return 0;
+            }
+            int removed = Math.min(inCart, quantity);
+            long price = cart.getPrice(item);
+            cart.removeItem(item, removed);
+            item.release(removed);
+            if (events != null) 
+            {
+                publishLine(TillEvent.REMOVE, item, removed, price);
+            }
+            return removed;
+        } finally 
+        {
+            CheckoutMetrics.record(CheckoutMetrics.Operation.REMOVE_ITEM, start);
+        }
+    }
+
+    // Abandons the cart and returns all reserved stock
+    public void clear() 
+    {
+        for (int line = 0; line < cart.size(); line++) 
+        {
+            cart.getLineItem(line).release(cart.getLineQuantity(line));
+        }
+        publishLines(TillEvent.REMOVE);
+        cart.clearCart();
+    }
+
+    // Empties the cart without returning its stock, passing each line's reservation to the caller instead
+    public void handOver(ObjIntConsumer<Item> reservations) 
+    {
+        for (int line = 0; line < cart.size(); line++) 
+        {
+            reservations.accept(cart.getLineItem(line), cart.getLineQuantity(line));
+        }
+        publishLines(TillEvent.REMOVE);
+        cart.clearCart();
+    }
+
+    // Records a discount quoted against the cart
+    public void discounted(long saving) 
+    {
+        if (events != null) 
+        {
+            TillEvent event = events.claim();
+            event.type = TillEvent.DISCOUNT;
+            event.item = null;
+            event.quantity = 0;
+            event.price = 0;
+            event.amount = saving;
+            event.orderId = 0;
+            event.receipt = null;
+            events.publish();
+        }
+    }
+
+    // Completes the sale: reserved stock stays sold
+    public void commit() 
+    {
+        commit(0, 0, null);
+    }
+
+    public void commit(long orderId, long charged, Receipt receipt) 
+    {
+        if (events != null) 
+        {
+            publishLines(TillEvent.SELL);
+            TillEvent event = events.claim();
+            event.type = TillEvent.CONFIRM;
+            event.item = null;
+            event.quantity = 0;
+            event.price = 0;
+            event.amount = charged;
+            event.orderId = orderId;
+            event.receipt = receipt;
+            events.publish();
+        }
+        cart.clearCart();
+    }
+
+    private void publishLines(int type) 
+    {
+        if (events != null) 
+        {
+            for (int line = 0; line < cart.size(); line++) 
+            {
+                publishLine(type, cart.getLineItem(line), cart.getLineQuantity(line), cart.getLinePrice(line));
+            }
+        }
+    }
+
+    private void publishLine(int type, Item item, int quantity, long price) 
+    {
+        TillEvent event = events.claim();
+        event.type = type;
+        event.item = item;
+        event.quantity = quantity;
+        event.price = price;
+        event.amount = 0;
+        event.orderId = 0;
+        event.receipt = null;
+        events.publish();
+    }
+}
+
+// TillEvent class for one slot of a TillEventRing; slots are reused, so stages copy out what they keep
+final class TillEvent 
+{
+    static final int ADD = 0;      // Reserved and added to the cart
+    static final int REMOVE = 1;   // Taken out of the cart and put back on the shelf
+    static final int SELL = 2;     // A line of a confirmed order; the reservation became a sale
+    static final int DISCOUNT = 3; // A discount was quoted against the cart; amount is the saving
+    static final int CONFIRM = 4;  // An order was confirmed; amount is what was charged
+    static final String[] NAMES = { "ADD", "REMOVE", "SELL", "DISCOUNT", "CONFIRM" };
+
+    int type;
+    int lane;
+    long timestamp;
+    Item item; // ADD, REMOVE and SELL
+    int quantity;
+    long price; // The line's pinned unit price
+    long amount;
+    long orderId;
+    Receipt receipt; // CONFIRM, when a receipt stage is running
+}
+
+// TillEventHandler interface for a pipeline stage, called on the stage's own thread
+interface TillEventHandler 
+{
+    void onEvent(TillEvent event);
+
+    // After every batch taken from a ring, so stages can flush
+    default void onBatchEnd() 
+    {
+    }
+}
+
+// TillEventRing class to carry one lane's events to the pipeline stages through pre-allocated slots
+// Single writer: only the lane's owner publishes, with a plain claim and an ordered store, and no locks.
+// A full ring makes the writer wait for the slowest stage.
+final class TillEventRing 
+{
+    private static final int PADDING = 8; // Longs between gates, so stages do not share a cache line
+
+    final int lane;
+    final boolean carriesReceipts;
+    private final TillEvent[] slots;
+    private final int mask;
+    private final AtomicLong cursor = new AtomicLong(-1); // Last published sequence
+    private final AtomicLongArray gates; // Last sequence each stage has finished with
+    private final int stages;
+    private long next; // Writer only: the next sequence to claim
+    private long cachedGate = -1; // Writer only: the slowest stage's gate when last read
+    volatile boolean closed;
+
+    TillEventRing(int lane, int size, int stages, boolean carriesReceipts) 
+    {
+        this.lane = lane;
+        this.carriesReceipts = carriesReceipts;
+        this.slots = new TillEvent[Integer.highestOneBit(Math.max(2, size) - 1) << 1];
+        this.mask = slots.length - 1;
+        for (int i = 0; i < slots.length; i++) 
+        {
+            slots[i] = new TillEvent();
+        }
+        this.stages = stages;
+        this.gates = new AtomicLongArray(stages * PADDING);
+        for (int stage = 0; stage < stages; stage++) 
+        {
+            gates.set(stage * PADDING, -1);
+        }
+    }
+
+    // Returns the next slot to fill; follow with publish()
+    TillEvent claim() 
+    {
+        long wrapPoint = next - slots.length;
+        if (wrapPoint > cachedGate) 
+        {
+            int spins = 0;
+            while (wrapPoint > (cachedGate = slowestGate())) 
+            {
+                if (++spins < 100) 
+                {
+                    Thread.onSpinWait();
+                } else 
+                {
+                    LockSupport.parkNanos(1_000);
+                }
+            }
+        }
+        TillEvent event = slots[(int) next & mask];
+        event.lane = lane;
+        event.timestamp = System.currentTimeMillis();
+        return event;
+    }
+
+    void publish() 
+    {
+        cursor.lazySet(next++);
+    }
+
+    private long slowestGate() 
+    {
+        long slowest = Long.MAX_VALUE;
+        for (int stage = 0; stage < stages; stage++) 
+        {
+            slowest = Math.min(slowest, gates.get(stage * PADDING));
+        }
+        return slowest;
+    }
+
+    // Hands the stage every event published since it last looked; returns how many. An event the handler throws
+    // on is counted in failures and passed over, so one bad event never stops the stage's gate.
+    int drain(int stage, TillEventHandler handler, LongAdder failures) 
+    {
+        long from = gates.get(stage * PADDING) + 1;
+        long to = cursor.get();
+        for (long sequence = from; sequence <= to; sequence++) 
+        {
+            try 
+            {
+                handler.onEvent(slots[(int) sequence & mask]);
+            } catch (RuntimeException e) 
+            {
+                failed(handler, failures, e);
+            }
+        }
+        if (to >= from) 
+        {
+            try 
+            {
+                handler.onBatchEnd();
+            } catch (RuntimeException e) 
+            {
+                failed(handler, failures, e);
+            }
+            gates.lazySet(stage * PADDING, to);
+        }
+        return (int) Math.max(0, to - from + 1);
+    }
+
+    // Only the stage's first failure is printed; the pipeline report has the count
+    private static void failed(TillEventHandler handler, LongAdder failures, RuntimeException e) 
+    {
+        if (failures.sum() == 0) 
+        {
+            System.err.println("Till event stage " + handler.getClass().getSimpleName() + " failed: " + e);
+        }
+        failures.increment();
+    }
+
+    // The stage has stopped for good; the writer no longer waits for it
+    void abandon(int stage) 
+    {
+        gates.set(stage * PADDING, Long.MAX_VALUE);
+    }
+
+    boolean drained() 
+    {
+        return slowestGate() == cursor.get();
+    }
+}
+
+// TillEventPipeline class to run the stages fed by every attached lane's ring, one thread per stage
+// A stage takes each ring's pending events as one batch, so under load it works through long runs of slots.
+class TillEventPipeline implements Closeable 
+{
+    private final List<TillEventHandler> stages;
+    private final boolean receiptStage;
+    private final int ringSize;
+    private final CopyOnWriteArrayList<TillEventRing> rings = new CopyOnWriteArrayList<>();
+    private final AtomicInteger lanes = new AtomicInteger();
+    private final List<Thread> threads = new ArrayList<>();
+    private final AtomicLongArray processed;
+    private final LongAdder[] failures; // Events each stage threw on
+    private final AtomicIntegerArray abandoned; // 1 for a stage whose thread died; lanes stop waiting for it
+    private volatile boolean stopping;
+    final StockLedger stockLedger = new StockLedger();
+    final SalesLedger salesLedger = new SalesLedger();
+    private final AuditLog audit; // Null unless an audit file is configured
+
+    public TillEventPipeline(int ringSize, ReceiptPrinter receipts, AuditLog audit) 
+    {
+        this.ringSize = ringSize;
+        this.audit = audit;
+        List<TillEventHandler> all = new ArrayList<>(Arrays.asList(stockLedger, salesLedger));
+        if (receipts != null) 
+        {
+            all.add(receipts);
+        }
+        if (audit != null) 
+        {
+            all.add(audit);
+        }
+        this.stages = all;
+        this.receiptStage = receipts != null;
+        this.processed = new AtomicLongArray(all.size());
+        this.failures = new LongAdder[all.size()];
+        this.abandoned = new AtomicIntegerArray(all.size());
+        for (int stage = 0; stage < all.size(); stage++) 
+        {
+            failures[stage] = new LongAdder();
+        }
+        for (int stage = 0; stage < all.size(); stage++) 
+        {
+            int index = stage;
+            Thread thread = new Thread(() -> runStage(index), "till-events-" + all.get(stage).getClass().getSimpleName());
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+    }
+
+    // Ring slots from -Dsupermarket.events.ring (default 1024), audit trail to -Dsupermarket.events.audit if set
+    static TillEventPipeline configured(ReceiptPrinter receipts) throws IOException 
+    {
+        String auditPath = System.getProperty("supermarket.events.audit");
+        return new TillEventPipeline(Integer.getInteger("supermarket.events.ring", 1_024), receipts, auditPath == null ? null : AuditLog.toFile(Paths.get(auditPath)));
+    }
+
+    // A ring for one lane; its owner must be the only thread publishing to it
+    public TillEventRing newRing() 
+    {
+        TillEventRing ring = new TillEventRing(lanes.incrementAndGet(), ringSize, stages.size(), receiptStage);
+        rings.add(ring);
+        for (int stage = 0; stage < stages.size(); stage++) 
+        {
+            if (abandoned.get(stage) == 1) 
+            {
+                ring.abandon(stage);
+            }
+        }
+        return ring;
+    }
+
+    // The ring is dropped once every stage has caught up with it
+    public void release(TillEventRing ring) 
+    {
+        ring.closed = true;
+    }
+
+    // A stage that dies anyway (an Error, say) is abandoned, or every lane would wait on it once its ring wrapped
+    private void runStage(int stage) 
+    {
+        try 
+        {
+            pump(stage);
+        } catch (RuntimeException | Error e) 
+        {
+            abandoned.set(stage, 1);
+            for (TillEventRing ring : rings) 
+            {
+                ring.abandon(stage);
+            }
+            System.err.println("Till event stage " + stages.get(stage).getClass().getSimpleName() + " stopped: " + e);
+            throw e;
+        }
+    }
+
+    private void pump(int stage) 
+    {
+        TillEventHandler handler = stages.get(stage);
+        int idle = 0;
+        while (true) 
+        {
+            boolean finishing = stopping;
+            int handled = 0;
+            for (TillEventRing ring : rings) 
+            {
+                handled += ring.drain(stage, handler, failures[stage]);
+                if (ring.closed && ring.drained()) 
+                {
+                    rings.remove(ring);
+                }
+            }
+            processed.addAndGet(stage, handled);
+            if (handled > 0) 
+            {
+                idle = 0;
+            } else if (finishing) 
+            {
+                return;
+            } else if (++idle < 100) 
+            {
+                Thread.onSpinWait();
+            } else 
+            {
+                LockSupport.parkNanos(idle < 1_000 ? 10_000 : 200_000);
+            }
+        }
+    }
+
+    public long getProcessed(int stage) 
+    {
+        return processed.get(stage);
+    }
+
+    public String report() 
+    {
+        StringBuilder out = new StringBuilder("\n--- Till Event Pipeline ---\n");
+        for (int stage = 0; stage < stages.size(); stage++) 
+        {
+            out.append(String.format("%-16s %d events", stages.get(stage).getClass().getSimpleName(), processed.get(stage)));
+            if (failures[stage].sum() > 0) 
+            {
+                out.append(String.format(", %d failed", failures[stage].sum()));
+            }
+            out.append(abandoned.get(stage) == 1 ? ", stopped\n" : "\n");
+        }
+        out.append(String.format("Units held in carts: %d, sold: %d%n", stockLedger.getTotalHeld(), stockLedger.getTotalSold()));
+        out.append("Value in open carts: ").append(Money.format(salesLedger.getOpenCartValue()))
+            .append(", revenue: ").append(Money.format(salesLedger.getRevenue()))
+            .append(" from ").append(salesLedger.getOrders()).append(" orders\n");
+        return out.toString();
+    }
+
+    // Lets the stages finish every event already published, then stops them
+    @Override
+    public void close() throws IOException 
+    {
+        stopping = true;
+        for (Thread thread : threads) 
+        {
+            try 
+            {
+                thread.join();
+            } catch (InterruptedException e) 
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (audit != null) 
+        {
+            audit.close();
+        }
+    }
+}
+
+// StockLedger class to follow every unit from shelf to cart to sale, per SKU, as a pipeline stage
+class StockLedger implements TillEventHandler 
+{
+    private int[] keys = new int[1_024]; // Open addressing on SKU + 1, 0 for an empty slot
+    private long[] held = new long[1_024];
+    private long[] sold = new long[1_024];
+    private int size;
+    private long totalHeld;
+    private long totalSold;
+
+    @Override
+    public synchronized void onEvent(TillEvent event) 
+    {
+        if (event.type > TillEvent.SELL) 
+        {
+            return;
+        }
+        int slot = slotFor(event.item.getSku(), true);
+        if (event.type == TillEvent.ADD) 
+        {
+            held[slot] += event.quantity;
+            totalHeld += event.quantity;
+        } else 
+        {
+            held[slot] -= event.quantity;
+            totalHeld -= event.quantity;
+            if (event.type == TillEvent.SELL) 
+            {
+                sold[slot] += event.quantity;
+                totalSold += event.quantity;
+            }
+        }
+    }
+
+    private int slotFor(int sku, boolean create) 
+    {
+        int key = sku + 1;
+        int mask = keys.length - 1;
+        int slot = (key * 0x9E3779B9) >>> 1 & mask;
+        while (keys[slot] != key) 
+        {
+            if (keys[slot] == 0) 
+            {
+                if (!create) 
+                {
+                    return -1;
+                }
+                if (2 * (size + 1) > keys.length) 
+                {
+                    grow();
+                    return slotFor(sku, true);
+                }
+                keys[slot] = key;
+                size++;
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() 
+    {
+        int[] oldKeys = keys;
+        long[] oldHeld = held;
+        long[] oldSold = sold;
+        keys = new int[oldKeys.length * 2];
+        held = new long[keys.length];
+        sold = new long[keys.length];
+        size = 0;
+        for (int old = 0; old < oldKeys.length; old++) 
+        {
+            if (oldKeys[old] != 0) 
+            {
+                int slot = slotFor(oldKeys[old] - 1, true);
+                held[slot] = oldHeld[old];
+                sold[slot] = oldSold[old];
+            }
+        }
+    }
+
+    public synchronized long getHeld(int sku) 
+    {
+        int slot = slotFor(sku, false);
+        return slot < 0 ? 0 : held[slot];
+    }
+
+    public synchronized long getSold(int sku) 
+    {
+        int slot = slotFor(sku, false);
+        return slot < 0 ? 0 : sold[slot];
+    }
+
+    public synchronized long getTotalHeld() 
+    {
+        return totalHeld;
+    }
+
+    public synchronized long getTotalSold() 
+    {
+        return totalSold;
+    }
+}
+
+// SalesLedger class to keep the value sitting in open carts and the revenue confirmed, as a pipeline stage
+class SalesLedger implements TillEventHandler 
+{
+    private volatile long openCartValue;
+    private volatile long revenue;
+    private volatile long orders;
+    private volatile long discountsQuoted;
+
+    // Only the stage thread writes, so the volatile fields need no atomics
+    @Override
+    public void onEvent(TillEvent event) 
+    {
+        switch (event.type) 
+        {
+            case TillEvent.ADD:
+                openCartValue += Money.times(event.price, event.quantity);
+                break;
+            case TillEvent.REMOVE:
+            case TillEvent.SELL:
+                openCartValue -= Money.times(event.price, event.quantity);
+                break;
+            case TillEvent.DISCOUNT:
+                discountsQuoted += event.amount;
+                break;
+            default:
+                revenue += event.amount;
+                orders++;
+                break;
+        }
+    }
+
+    public long getOpenCartValue() 
+    {
+        return openCartValue;
+    }
+
+    public long getRevenue() 
+    {
+        return revenue;
+    }
+
+    public long getOrders() 
+    {
+        return orders;
+    }
+
+    public long getDiscountsQuoted() 
+    {
+        return discountsQuoted;
+    }
+}
+
+// AuditLog class to write every till event as a line of text, batched into few large writes, as a pipeline stage
+// Line format: timestamp lane type sku quantity price amount order
+class AuditLog implements TillEventHandler, Closeable 
+{
+    private static final int FLUSH_BYTES = 64 * 1_024;
+    private static final int MAX_LINE = 8 * 21; // Eight fields of at most 20 characters, each with its separator
+    private static final byte[][] TYPES = new byte[TillEvent.NAMES.length][];
+
+    static 
+    {
+        for (int type = 0; type < TYPES.length; type++) 
+        {
+            TYPES[type] = TillEvent.NAMES[type].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final WritableByteChannel channel;
+    private final byte[] batch = new byte[FLUSH_BYTES + MAX_LINE];
+    private final ByteBuffer batchBuffer = ByteBuffer.wrap(batch);
+    private int length;
+    private final byte[] digits = new byte[20];
+    private long lastTimestamp = -1; // Events arrive in bursts within the same millisecond, so its text is kept
+    private final byte[] timestampText = new byte[21];
+    private int timestampLength;
+
+    public AuditLog(WritableByteChannel channel) 
+    {
+        this.channel = channel;
+    }
+
+    public static AuditLog toFile(Path path) throws IOException 
+    {
+        return new AuditLog(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+    }
+
+    @Override
+    public void onEvent(TillEvent event) 
+    {
+        if (event.timestamp != lastTimestamp) 
+        {
+            int start = length;
+            putNumber(event.timestamp, ' ');
+            timestampLength = length - start;
+            System.arraycopy(batch, start, timestampText, 0, timestampLength);
+            lastTimestamp = event.timestamp;
+        } else 
+        {
+            System.arraycopy(timestampText, 0, batch, length, timestampLength);
+            length += timestampLength;
+        }
+        putNumber(event.lane, ' ');
+        byte[] type = TYPES[event.type];
+        System.arraycopy(type, 0, batch, length, type.length);
+        length += type.length;
+        batch[length++] = ' ';
+        putNumber(event.item == null ? 0 : event.item.getSku(), ' ');
+        putNumber(event.quantity, ' ');
+        putNumber(event.price, ' ');
+        putNumber(event.amount, ' ');
+        putNumber(event.orderId, '\n');
+        if (length >= FLUSH_BYTES) 
+        {
+            flush();
+        }
+    }
+
+    @Override
+    public void onBatchEnd() 
+    {
+        flush();
+    }
+
+    private void putNumber(long value, char separator) 
+    {
+        if (value < 0) 
+        {
+            batch[length++] = '-';
+            value = -value;
+        }
+        int at = digits.length;
+        do 
+        {
+            long rest = value / 10;
+            digits[--at] = (byte) ('0' + (value - rest * 10));
+            value = rest;
+        } while (value > 0);
+        System.arraycopy(digits, at, batch, length, digits.length - at);
+        length += digits.length - at;
+        batch[length++] = (byte) separator;
+    }
+
+    private void flush() 
+    {
+        batchBuffer.clear().limit(length);
+        try 
+        {
+            while (batchBuffer.hasRemaining()) 
+            {
+                channel.write(batchBuffer);
+            }
+        } catch (IOException e) 
+        {
+            System.err.println("Audit log: " + e.getMessage());
+        }
+        length = 0;
+    }
+
+    @Override
+    public void close() throws IOException 
+    {
+        channel.close();
+    }
+}
+
+// CheckoutStressHarness class to hammer shared stock from many lanes and check nothing is oversold
+class CheckoutStressHarness 
+{
+    private static final int HOT_ITEMS = 4;
+    private static final int INITIAL_STOCK = 1_000;
+
+    public static void run(int maxLanes, int operationsPerLane) 
+    {
+        System.out.println("\n--- Checkout Stress Harness ---");
+        boolean consistent = true;
+        for (int lanes = 1; lanes <= maxLanes; lanes *= 2) 
+        {
+            consistent &= runRound(lanes, operationsPerLane);
+        }
+        System.out.println(consistent ? "No oversell detected." : "STOCK INCONSISTENCY DETECTED.");
+    }
+
+    private static boolean runRound(int lanes, int operationsPerLane) 
+    {
+        Item[] items = new Item[HOT_ITEMS];
+        for (int i = 0; i < items.length; i++) 
+        {
+            items[i] = new Item(i, null, "Hot" + i, 100, Category.GROCERY, INITIAL_STOCK);
+        }
+        AtomicLongArray sold = new AtomicLongArray(items.length);
+        AtomicBoolean negativeSeen = new AtomicBoolean();
+        CheckoutLane[] tills = new CheckoutLane[lanes];
+        Thread[] threads = new Thread[lanes];
+        CountDownLatch start = new CountDownLatch(1);
+        for (int l = 0; l < lanes; l++) 
+        {
+            CheckoutLane lane = new CheckoutLane();
+            tills[l] = lane;
+            threads[l] = new Thread(() -> 
+            {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try 
+                {
+                    start.await();
+                } catch (InterruptedException e) 
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int op = 0; op < operationsPerLane; op++) 
+                {
+                    int index = random.nextInt(items.length);
+                    Item item = items[index];
+                    int action = random.nextInt(10);
+                    if (action < 6) 
+                    {
+                        lane.addItem(item, 1 + random.nextInt(3));
+                    } else if (action < 8) 
+                    {
+                        lane.removeItem(item, 1 + random.nextInt(3));
+                    } else if (action < 9) 
+                    {
+                        ShoppingCart cart = lane.getCart();
+                        for (int line = 0; line < cart.size(); line++) 
+                        {
+                            sold.addAndGet(cart.getLineItem(line).getSku(), cart.getLineQuantity(line));
+                        }
+                        lane.commit();
+                    } else 
+                    {
+                        lane.clear();
+                    }
+                    if (item.getQuantityAvailable() < 0) 
+                    {
+                        negativeSeen.set(true);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) 
+        {
+            thread.start();
+        }
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) 
+        {
+            try 
+            {
+                thread.join();
+            } catch (InterruptedException e) 
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        boolean consistent = !negativeSeen.get();
+        for (int i = 0; i < items.length; i++) 
+        {
+            long held = 0;
+            for (CheckoutLane lane : tills) 
+            {
+                held += lane.getCart().getQuantity(items[i]);
+            }
+            long accounted = items[i].getQuantityAvailable() + held + sold.get(i);
+            if (accounted != INITIAL_STOCK || sold.get(i) > INITIAL_STOCK) 
+            {
+                consistent = false;
+            }
+        }
+        long totalOperations = (long) lanes * operationsPerLane;
+        System.out.println(lanes + " lane(s): " + (totalOperations * 1_000_000_000L / Math.max(1, elapsedNanos)) + " ops/s - " + (consistent ? "consistent" : "INCONSISTENT"));
+        return consistent;
+    }
+}
+
+// ShopperSimulator class to replay a busy day: a generated catalog, user base and shoppers driving the real checkout
+// Shoppers log in or shop as guests, fill baskets of varied size from a skewed catalog, check discounts, and then
+// pay, save their cart for later or walk away from it. Walked-away carts are left to the session sweeper.
+// Configure with -Dsupermarket.sim.* properties; see README.
+class ShopperSimulator 
+{
+    private static final int FIRST_SKU = 1_000;
+    private static final double POPULARITY_SKEW = 3; // Picks favour the front of the catalog: a tenth of it gets ~46%
+    private static final int MAX_BASKET = 200;
+    private static final String[] ADJECTIVES = { "Fresh", "Organic", "Classic", "Premium", "Value", "Family", "Mini", "Smart", "Deluxe", "Eco" };
+    private static final String[][] NOUNS = {
+        { "Milk", "Bread", "Apples", "Coffee", "Rice", "Pasta", "Cheese", "Yogurt", "Eggs", "Tea" },
+        { "TV", "Headphones", "Charger", "Speaker", "Tablet", "Camera", "Keyboard", "Mouse" },
+        { "Shirt", "Jeans", "Socks", "Jacket", "Dress", "Scarf" },
+        { "Shampoo", "Soap", "Lotion", "Lipstick", "Perfume" },
+        { "Kettle", "Toaster", "Microwave", "Blender", "Iron", "Fan" } };
+    private static final long[][] PRICE_RANGES = { { 50, 1_500 }, { 1_500, 150_000 }, { 500, 8_000 }, { 200, 4_000 }, { 1_500, 30_000 } };
+
+    private final int catalogSize = Integer.getInteger("supermarket.sim.catalog", 10_000);
+    private final int stock = Integer.getInteger("supermarket.sim.stock", 10_000);
+    private final int userCount = Integer.getInteger("supermarket.sim.users", 1_000);
+    private final int kdfIterations = Integer.getInteger("supermarket.sim.kdf.iterations", 1_000);
+    private final int promotionCount = Integer.getInteger("supermarket.sim.promotions", 20);
+    private final int loginPercent = Integer.getInteger("supermarket.sim.login", 60);
+    private final int quickPercent = Integer.getInteger("supermarket.sim.quick", 50); // Quick shops average 3 lines
+    private final int basketMean = Integer.getInteger("supermarket.sim.basket", 20); // Lines in a full shop, on average
+    private final int discountPercent = Integer.getInteger("supermarket.sim.discount", 30);
+    private final int parkPercent = Integer.getInteger("supermarket.sim.park", 5);
+    private final int abandonPercent = Integer.getInteger("supermarket.sim.abandon", 5);
+    private final long idleSeconds = Long.getLong("supermarket.sim.idle", 2);
+    private final long seed = Long.getLong("supermarket.sim.seed", 42);
+
+    private Supermarket supermarket;
+    private SessionManager sessions;
+    private Item[] items;
+    private User[] users;
+    private final AtomicReferenceArray<String> loginTokens = new AtomicReferenceArray<>(userCount); // Kept as a browser would
+    private final LatencyHistogram loginLatency = new LatencyHistogram();
+    private final LatencyHistogram addLatency = new LatencyHistogram();
+    private final LatencyHistogram removeLatency = new LatencyHistogram();
+    private final LatencyHistogram discountLatency = new LatencyHistogram();
+    private final LatencyHistogram confirmLatency = new LatencyHistogram();
+    private final LatencyHistogram visitLatency = new LatencyHistogram();
+    private final LongAdder visits = new LongAdder();
+    private final LongAdder orders = new LongAdder();
+    private final LongAdder parked = new LongAdder();
+    private final LongAdder abandoned = new LongAdder();
+    private final LongAdder expiredMidShop = new LongAdder();
+    private final LongAdder emptyHanded = new LongAdder(); // Nothing they wanted was in stock
+    private final LongAdder scans = new LongAdder();
+    private final LongAdder outOfStock = new LongAdder();
+    private final LongAdder revenue = new LongAdder();
+
+    public static void run(int shoppers, int seconds) throws InterruptedException 
+    {
+        new ShopperSimulator().simulate(shoppers, seconds);
+    }
+
+    private void simulate(int shoppers, int seconds) throws InterruptedException 
+    {
+        System.out.println("\n--- Shopper Simulation ---");
+        long setupStart = System.nanoTime();
+        supermarket = new Supermarket();
+        SplittableRandom random = new SplittableRandom(seed);
+        items = generateItems(random);
+        supermarket.addProducts(Arrays.asList(items));
+        supermarket.addDiscounts(generatePromotions(random));
+        users = registerUsers(shoppers);
+        sessions = new SessionManager(idleSeconds);
+        System.out.printf("Catalog: %d products with %d units each, %d promotions; %d registered shoppers (%d KDF iterations); set up in %.1f s%n",
+            catalogSize, stock, supermarket.getDiscounts().size(), userCount, kdfIterations, (System.nanoTime() - setupStart) / 1e9);
+
+        long[][] sold = new long[shoppers][];
+        Thread[] threads = new Thread[shoppers];
+        CountDownLatch start = new CountDownLatch(1);
+        long[] deadline = new long[1];
+        for (int s = 0; s < shoppers; s++) 
+        {
+            long[] mySold = sold[s] = new long[items.length];
+            SplittableRandom myRandom = random.split();
+            threads[s] = new Thread(() -> 
+            {
+                try 
+                {
+                    start.await();
+                } catch (InterruptedException e) 
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                while (System.nanoTime() - deadline[0] < 0) 
+                {
+                    visit(myRandom, mySold);
+                }
+            }, "shopper-" + s);
+            threads[s].start();
+        }
+        long startNanos = System.nanoTime();
+        deadline[0] = startNanos + TimeUnit.SECONDS.toNanos(seconds);
+        start.countDown();
+        for (Thread thread : threads) 
+        {
+            thread.join();
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        sessions.close(); // Carts still open go back on the shelf, as they would at closing time
+        report(shoppers, elapsedNanos, sold);
+    }
+
+    private Item[] generateItems(SplittableRandom random) 
+    {
+        Category[] categories = Category.values();
+        Item[] generated = new Item[catalogSize];
+        for (int i = 0; i < catalogSize; i++) 
+        {
+            int sku = FIRST_SKU + i;
+            int category = random.nextInt(categories.length);
+            String name = ADJECTIVES[random.nextInt(ADJECTIVES.length)] + " " + NOUNS[category][random.nextInt(NOUNS[category].length)] + " " + sku;
+            long price = random.nextLong(PRICE_RANGES[category][0], PRICE_RANGES[category][1]);
+            generated[i] = new Item(sku, String.format("29%011d", sku), name, price, categories[category], stock);
+        }
+        return generated;
+    }
+
+    // A mix of category, SKU, buy-one-get-one and spend-threshold rules, aimed at popular products
+    private List<Discount> generatePromotions(SplittableRandom random) 
+    {
+        Category[] categories = Category.values();
+        List<Discount> promotions = new ArrayList<>();
+        for (int i = 0; i < promotionCount; i++) 
+        {
+            Item item = items[popularIndex(random)];
+            switch (i % 4) 
+            {
+                case 0:
+                    promotions.add(Discount.forSku("Deal on " + item.getName(), item.getSku(), 500 + random.nextInt(2_000), true, false));
+                    break;
+                case 1:
+                    Category category = categories[random.nextInt(categories.length)];
+                    promotions.add(Discount.forCategory("Saturday " + category, category, 100 + random.nextInt(500), false, false));
+                    break;
+                case 2:
+                    promotions.add(Discount.buyOneGetOne("Two for one on " + item.getName(), item.getSku()));
+                    break;
+                default:
+                    long threshold = 2_000L * (1 + random.nextInt(20));
+                    promotions.add(Discount.forSpendOver("Spend " + Money.format(threshold), threshold, 100 + random.nextInt(400), true, false));
+                    break;
+            }
+        }
+        return promotions;
+    }
+
+    private User[] registerUsers(int threads) throws InterruptedException 
+    {
+        User[] registered = new User[userCount];
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, Runtime.getRuntime().availableProcessors())));
+        for (int u = 0; u < userCount; u++) 
+        {
+            int index = u;
+            pool.execute(() -> 
+            {
+                registered[index] = new User("Shopper " + index, email(index), password(index), kdfIterations);
+                supermarket.addUser(registered[index]);
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.DAYS);
+        return registered;
+    }
+
+    private static String email(int user) 
+    {
+        return "shopper" + user + "@example.com";
+    }
+
+    private static String password(int user) 
+    {
+        return "pw-" + user;
+    }
+
+    private int popularIndex(SplittableRandom random) 
+    {
+        return (int) (items.length * Math.pow(random.nextDouble(), POPULARITY_SKEW));
+    }
+
+    // Geometric, so most baskets sit near the mean with a long tail of big shops
+    private static int basketSize(SplittableRandom random, double mean) 
+    {
+        double size = 1 + Math.log(1 - random.nextDouble()) / Math.log(1 - 1 / mean);
+        return (int) Math.min(MAX_BASKET, size);
+    }
+
+    private void visit(SplittableRandom random, long[] sold) 
+    {
+        long visitStart = System.nanoTime();
+        visits.increment();
+        User user = null;
+        if (userCount > 0 && random.nextInt(100) < loginPercent) 
+        {
+            int index = random.nextInt(userCount);
+            long start = System.nanoTime();
+            String token = loginTokens.get(index);
+            user = token == null ? null : supermarket.resumeLogin(token);
+            if (user == null) 
+            {
+                user = supermarket.authenticate(email(index), password(index));
+                if (user != null) 
+                {
+                    loginTokens.set(index, supermarket.rememberLogin(user));
+                }
+            }
+            loginLatency.record(System.nanoTime() - start);
+        }
+        SessionManager.Session session = sessions.open(user);
+        int lines = basketSize(random, random.nextInt(100) < quickPercent ? 3 : basketMean);
+        for (int line = 0; line < lines; line++) 
+        {
+            Item item = items[popularIndex(random)];
+            int quantity = random.nextInt(5) == 0 ? 2 + random.nextInt(3) : 1;
+            if (!shop(session, item, quantity, random)) 
+            {
+                expiredMidShop.increment();
+                return;
+            }
+        }
+        int outcome = random.nextInt(100);
+        if (outcome < abandonPercent) 
+        {
+            abandoned.increment(); // Left for the session sweeper to reclaim
+        } else if (user != null && outcome < abandonPercent + parkPercent) 
+        {
+            parked.increment();
+            sessions.close(session.getId());
+        } else 
+        {
+            if (!checkout(session, user, random, sold, visitStart)) 
+            {
+                expiredMidShop.increment();
+            }
+            sessions.close(session.getId());
+        }
+    }
+
+    // One scan, sometimes followed by a change of mind; false once the session has expired
+    private boolean shop(SessionManager.Session session, Item item, int quantity, SplittableRandom random) 
+    {
+        if (sessions.get(session.getId()) == null) 
+        {
+            return false;
+        }
+        synchronized (session) 
+        {
+            if (session.isClosed()) 
+            {
+                return false;
+            }
+            CheckoutLane lane = session.getLane();
+            long start = System.nanoTime();
+            boolean added = lane.addItem(item, quantity);
+            addLatency.record(System.nanoTime() - start);
+            scans.increment();
+            if (!added) 
+            {
+                outOfStock.increment();
+            } else if (random.nextInt(20) == 0) 
+            {
+                ShoppingCart cart = lane.getCart();
+                Item unwanted = cart.getLineItem(random.nextInt(cart.size()));
+                start = System.nanoTime();
+                lane.removeItem(unwanted, 1);
+                removeLatency.record(System.nanoTime() - start);
+            }
+            return true;
+        }
+    }
+
+    private boolean checkout(SessionManager.Session session, User user, SplittableRandom random, long[] sold, long visitStart) 
+    {
+        if (sessions.get(session.getId()) == null) 
+        {
+            return false;
+        }
+        synchronized (session) 
+        {
+            if (session.isClosed()) 
+            {
+                return false;
+            }
+            CheckoutLane lane = session.getLane();
+            ShoppingCart cart = lane.getCart();
+            if (cart.isEmpty()) 
+            {
+                emptyHanded.increment();
+                return true;
+            }
+            List<Discount> discounts = supermarket.getDiscounts();
+            if (random.nextInt(100) < discountPercent && !discounts.isEmpty()) 
+            {
+                // What the console's "Apply Discount" does: price the basket, then try one promotion on the total
+                long start = System.nanoTime();
+                long discountedTotal = cart.calculateTotal() - supermarket.calculateTotalDiscount(cart);
+                lane.discounted(discountedTotal - discounts.get(random.nextInt(discounts.size())).applyDiscount(discountedTotal));
+                discountLatency.record(System.nanoTime() - start);
+            }
+            for (int line = 0; line < cart.size(); line++) 
+            {
+                int index = cart.getLineItem(line).getSku() - FIRST_SKU;
+                sold[index] += cart.getLineQuantity(line);
+            }
+            long start = System.nanoTime();
+            long charged;
+            try 
+            {
+                charged = supermarket.confirmOrder(lane, user).quote.total;
+            } catch (IOException e) 
+            {
+                throw new UncheckedIOException(e); // No journal is open, so nothing here does I/O
+            }
+            long end = System.nanoTime();
+            confirmLatency.record(end - start);
+            visitLatency.record(end - visitStart);
+            orders.increment();
+            revenue.add(charged);
+            return true;
+        }
+    }
+
+    private void report(int shoppers, long elapsedNanos, long[][] sold) 
+    {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%d shoppers for %.1f s: %d visits, %d orders, %d carts saved, %d walked away, %d expired mid-shop, %d left empty-handed%n",
+            shoppers, seconds, visits.sum(), orders.sum(), parked.sum(), abandoned.sum(), expiredMidShop.sum(), emptyHanded.sum());
+        System.out.printf("Throughput: %.0f orders/s, %.0f scans/s (%d out of stock), revenue %s%n",
+            orders.sum() / seconds, scans.sum() / seconds, outOfStock.sum(), Money.format(revenue.sum()));
+        System.out.printf("Sessions expired: %d, units reclaimed from them: %d%n", sessions.getExpiredCount(), sessions.getReclaimedUnits());
+        PriceQuoteCache quotes = supermarket.getQuoteCache();
+        if (quotes != null) 
+        {
+            System.out.printf(Locale.ROOT, "Quote cache hit rate: %.1f%%%n", quotes.getHitRate() * 100);
+        }
+        System.out.println("\nLatency (us)        count      mean       p50       p90       p99     p99.9       max");
+        printLatency("login", loginLatency);
+        printLatency("add item", addLatency);
+        printLatency("remove item", removeLatency);
+        printLatency("discount", discountLatency);
+        printLatency("confirm order", confirmLatency);
+        printLatency("paid visit", visitLatency);
+
+        long unitsSold = 0;
+        int inconsistent = 0;
+        for (int i = 0; i < items.length; i++) 
+        {
+            long itemSold = 0;
+            for (long[] shopper : sold) 
+            {
+                itemSold += shopper[i];
+            }
+            unitsSold += itemSold;
+            int available = items[i].getQuantityAvailable();
+            if (available < 0 || available + itemSold != stock) 
+            {
+                inconsistent++;
+            }
+        }
+        System.out.println("\nUnits sold: " + unitsSold + ". " + (inconsistent == 0
+            ? "Stock consistent: every unit is on the shelf or sold."
+            : "STOCK INCONSISTENCY DETECTED in " + inconsistent + " product(s)."));
+    }
+
+    private static void printLatency(String operation, LatencyHistogram histogram) 
+    {
+        System.out.printf(Locale.ROOT, "%-14s %10d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f%n", operation, histogram.getCount(),
+            histogram.getMean() / 1e3, histogram.getPercentile(50) / 1e3, histogram.getPercentile(90) / 1e3,
+            histogram.getPercentile(99) / 1e3, histogram.getPercentile(99.9) / 1e3, histogram.getMax() / 1e3);
+    }
+}
+
+// Enum for the kinds of promotion a Discount can be
+enum DiscountType 
+{
+    CATEGORY,
+    SKU,
+    BUY_ONE_GET_ONE,
+    THRESHOLD
+}
+
+// Discount class to represent a typed promotion rule
+class Discount implements Serializable 
+{
+    private String name;
+    private DiscountType type;
+    private Category category; // For CATEGORY rules
+    private int sku;           // For SKU and BUY_ONE_GET_ONE rules
+    private long minimumSpend; // For THRESHOLD rules, in cents
+    private long amount;       // Basis points when isPercentage, otherwise cents
+    private boolean isPercentage;
+    private boolean stackable; // Stackable rules add to whichever exclusive rule wins
+
+    private Discount(String name, DiscountType type, Category category, int sku, long minimumSpend, long amount, boolean isPercentage, boolean stackable) 
+    {
+        this.name = name;
+        this.type = type;
+        this.category = category;
+        this.sku = sku;
+        this.minimumSpend = minimumSpend;
+        this.amount = amount;
+        this.isPercentage = isPercentage;
+        this.stackable = stackable;
+    }
+
+    public static Discount forCategory(String name, Category category, long amount, boolean isPercentage, boolean stackable) 
+    {
+        return new Discount(name, DiscountType.CATEGORY, category, 0, 0, amount, isPercentage, stackable);
+    }
+
+    public static Discount forSku(String name, int sku, long amount, boolean isPercentage, boolean stackable) 
+    {
+        return new Discount(name, DiscountType.SKU, null, sku, 0, amount, isPercentage, stackable);
+    }
+
+    public static Discount buyOneGetOne(String name, int sku) 
+    {
+        return new Discount(name, DiscountType.BUY_ONE_GET_ONE, null, sku, 0, 0, false, false);
+    }
+
+    public static Discount forSpendOver(String name, long minimumSpend, long amount, boolean isPercentage, boolean stackable) 
+    {
+        return new Discount(name, DiscountType.THRESHOLD, null, 0, minimumSpend, amount, isPercentage, stackable);
+    }
+
+    public long applyDiscount(long price) 
+  {
+        if (type == DiscountType.BUY_ONE_GET_ONE) 
+        {
+            return price;
+        }
+        if (isPercentage) 
+        {
+            return price - Money.percentOf(price, amount);
+        } else 
+        {
+            return price - amount;
+        }
+    }
+
+    public String getName() 
+    {
+        return name;
+    }
+
+    public DiscountType getType() 
+    {
+        return type;
+    }
+
+    public Category getCategory() 
+    {
+        return category;
+    }
+
+    public int getSku() 
+    {
+        return sku;
+    }
+
+    public long getMinimumSpend() 
+    {
+        return minimumSpend;
+    }
+
+    public long getAmount() 
+    {
+        return amount;
+    }
+
+    public boolean isPercentage() 
+    {
+        return isPercentage;
+    }
+
+    public boolean isStackable() 
+    {
+        return stackable;
+    }
+}
+
+// RuleSet class to fold every rule on one category or SKU into a few numbers evaluated in O(1)
+class RuleSet 
+{
+    long stackedPercent; // Basis points
+    long stackedFixed;   // Cents per unit
+    long bestPercent;
+    long bestFixed;
+    boolean buyOneGetOne;
+
+    void add(Discount discount) 
+    {
+        if (discount.getType() == DiscountType.BUY_ONE_GET_ONE) 
+        {
+            buyOneGetOne = true;
+        } else if (discount.isStackable()) 
+        {
+            if (discount.isPercentage()) 
+            {
+                stackedPercent += discount.getAmount();
+            } else 
+            {
+                stackedFixed += discount.getAmount();
+            }
+        } else if (discount.isPercentage()) 
+        {
+            bestPercent = Math.max(bestPercent, discount.getAmount());
+        } else 
+        {
+            bestFixed = Math.max(bestFixed, discount.getAmount());
+        }
+    }
+}
+
+// PromotionEngine class to compile the discount list once into per-category and per-SKU dispatch tables
+class PromotionEngine 
+{
+    private static final RuleSet NO_RULES = new RuleSet();
+
+    private final RuleSet[] byCategory;
+    private final HashMap<Integer, RuleSet> bySku;
+    // Spend thresholds ascending, with the rules of every threshold up to each index folded together
+    private final long[] thresholds;
+    private final RuleSet[] thresholdRules;
+    private final List<Discount> rules; // Uncompiled, for attributing discounts in reports
+
+    public PromotionEngine(List<Discount> discounts) 
+    {
+        rules = new ArrayList<>(discounts);
+        byCategory = new RuleSet[Category.values().length];
+        bySku = new HashMap<>();
+        List<Discount> spendRules = new ArrayList<>();
+        for (Discount discount : discounts) 
+        {
+            switch (discount.getType()) 
+            {
+                case CATEGORY:
+                    int ordinal = discount.getCategory().ordinal();
+                    if (byCategory[ordinal] == null) 
+                    {
+                        byCategory[ordinal] = new RuleSet();
+                    }
+                    byCategory[ordinal].add(discount);
+                    break;
+                case SKU:
+                case BUY_ONE_GET_ONE:
+                    bySku.computeIfAbsent(discount.getSku(), sku -> new RuleSet()).add(discount);
+                    break;
+                case THRESHOLD:
+                    spendRules.add(discount);
+                    break;
+            }
+        }
+        for (int i = 0; i < byCategory.length; i++) 
+        {
+            if (byCategory[i] == null) 
+            {
+                byCategory[i] = NO_RULES;
+            }
+        }
+
+        spendRules.sort(Comparator.comparingLong(Discount::getMinimumSpend));
+        thresholds = new long[spendRules.size()];
+        thresholdRules = new RuleSet[spendRules.size()];
+        RuleSet running = new RuleSet();
+        for (int i = 0; i < spendRules.size(); i++) 
+        {
+            running.add(spendRules.get(i));
+            RuleSet folded = new RuleSet();
+            folded.stackedPercent = running.stackedPercent;
+            folded.stackedFixed = running.stackedFixed;
+            folded.bestPercent = running.bestPercent;
+            folded.bestFixed = running.bestFixed;
+            thresholds[i] = spendRules.get(i).getMinimumSpend();
+            thresholdRules[i] = folded;
+        }
+    }
+
+    // Discount for one cart line, never more than the line is worth
+    public long lineDiscount(Item item, int quantity) 
+    {
+        return lineDiscount(item, item.getPrice(), quantity);
+    }
+
+    // The same at the unit price the cart line was started with
+    public long lineDiscount(Item item, long price, int quantity) 
+    {
+        RuleSet category = byCategory[item.getCategory().ordinal()];
+        RuleSet sku = bySku.isEmpty() ? NO_RULES : bySku.getOrDefault(item.getSku(), NO_RULES);
+        long lineTotal = Money.times(price, quantity);
+
+        long stacked = Money.percentOf(lineTotal, category.stackedPercent + sku.stackedPercent)
+            + Money.times(Math.min(price, category.stackedFixed + sku.stackedFixed), quantity);
+        long exclusive = Math.max(
+            Money.percentOf(lineTotal, Math.max(category.bestPercent, sku.bestPercent)),
+            Money.times(Math.min(price, Math.max(category.bestFixed, sku.bestFixed)), quantity));
+        if (category.buyOneGetOne || sku.buyOneGetOne) 
+        {
+            exclusive = Math.max(exclusive, Money.times(price, quantity / 2));
+        }
+        return Math.min(lineTotal, stacked + exclusive);
+    }
+
+    // Discount for spending over a threshold, applied to the already line-discounted amount
+    public long spendDiscount(long amount) 
+    {
+        int index = Arrays.binarySearch(thresholds, amount);
+        if (index < 0) 
+        {
+            index = -index - 2;
+        } else 
+        {
+            while (index + 1 < thresholds.length && thresholds[index + 1] == amount) 
+            {
+                index++;
+            }
+        }
+        if (index < 0) 
+        {
+            return 0;
+        }
+        RuleSet rules = thresholdRules[index];
+        long discount = Money.percentOf(amount, rules.stackedPercent) + rules.stackedFixed
+            + Math.max(Money.percentOf(amount, rules.bestPercent), rules.bestFixed);
+        return Math.min(amount, discount);
+    }
+
+    // Names the rules behind a line's discount: every matching stackable rule and the exclusive rule that wins,
+    // each with its amount before the line cap. Scans every rule, so it is for reporting threads, not the till.
+    public void forEachLineRule(Item item, long price, int quantity, ObjLongConsumer<Discount> usage) 
+    {
+        long lineTotal = Money.times(price, quantity);
+        Discount best = null;
+        long bestAmount = 0;
+        for (Discount rule : rules) 
+        {
+            boolean matches = rule.getType() == DiscountType.CATEGORY ? rule.getCategory() == item.getCategory()
+                : rule.getType() != DiscountType.THRESHOLD && rule.getSku() == item.getSku();
+            if (!matches) 
+            {
+                continue;
+            }
+            long amount;
+            if (rule.getType() == DiscountType.BUY_ONE_GET_ONE) 
+            {
+                amount = Money.times(price, quantity / 2);
+            } else if (rule.isPercentage()) 
+            {
+                amount = Money.percentOf(lineTotal, rule.getAmount());
+            } else 
+            {
+                amount = Money.times(Math.min(price, rule.getAmount()), quantity);
+            }
+            if (rule.isStackable() && amount > 0) 
+            {
+                usage.accept(rule, amount);
+            } else if (!rule.isStackable() && amount > bestAmount) 
+            {
+                best = rule;
+                bestAmount = amount;
+            }
+        }
+        if (best != null) 
+        {
+            usage.accept(best, bestAmount);
+        }
+    }
+
+    // The same for spend thresholds, given the line-discounted amount
+    public void forEachSpendRule(long amount, ObjLongConsumer<Discount> usage) 
+    {
+        Discount best = null;
+        long bestAmount = 0;
+        for (Discount rule : rules) 
+        {
+            if (rule.getType() != DiscountType.THRESHOLD || rule.getMinimumSpend() > amount) 
+            {
+                continue;
+            }
+            long ruleAmount = rule.isPercentage() ? Money.percentOf(amount, rule.getAmount()) : rule.getAmount();
+            if (rule.isStackable() && ruleAmount > 0) 
+            {
+                usage.accept(rule, ruleAmount);
+            } else if (!rule.isStackable() && ruleAmount > bestAmount) 
+            {
+                best = rule;
+                bestAmount = ruleAmount;
+            }
+        }
+        if (best != null) 
+        {
+            usage.accept(best, bestAmount);
+        }
+    }
+}
+
+// PriceQuote class to hold what a basket costs: subtotal, discount, tax and total, all in cents
+final class PriceQuote 
+{
+    final long subtotal;
+    final long discount;
+    final long tax;
+    final long total;
+    final PromotionEngine promotions; // The rules the discount was worked out with
+
+    PriceQuote(long subtotal, long discount, PromotionEngine promotions) 
+    {
+        this.subtotal = subtotal;
+        this.discount = discount;
+        this.promotions = promotions;
+        this.tax = Money.percentOf(subtotal - discount, SupermarketBillingSystem.TAX_RATE_BASIS_POINTS);
+        this.total = subtotal - discount + tax;
+    }
+
+    public long getDiscountedTotal() 
+    {
+        return subtotal - discount;
+    }
+}
+
+// ConfirmedOrder class for what a confirmed order came to: its id and the quote that was charged and journaled
+final class ConfirmedOrder 
+{
+    final long orderId;
+    final PriceQuote quote;
+
+    ConfirmedOrder(long orderId, PriceQuote quote) 
+    {
+        this.orderId = orderId;
+        this.quote = quote;
+    }
+}
+
+// PriceQuoteCache class to remember quotes for baskets priced again and again, such as meal deals and staples
+// Two-way set-associative and lock-free: a miss replaces the older entry of its set, entries expire after a TTL,
+// and an entry made under an older catalog or promotion version never matches again
+class PriceQuoteCache 
+{
+    // Entry class for one immutable cached quote and what it was computed from
+    private static final class Entry 
+    {
+        final long fingerprint;
+        final int lines;
+        final long catalogVersion;
+        final long promotionVersion;
+        final long expiresAt;
+        final PriceQuote quote;
+
+        Entry(long fingerprint, int lines, long catalogVersion, long promotionVersion, long expiresAt, PriceQuote quote) 
+        {
+            this.fingerprint = fingerprint;
+            this.lines = lines;
+            this.catalogVersion = catalogVersion;
+            this.promotionVersion = promotionVersion;
+            this.expiresAt = expiresAt;
+            this.quote = quote;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final int setMask;
+    private final long ttlNanos;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // Capacity is rounded up to a power of two
+    public PriceQuoteCache(int capacity, long ttlMillis) 
+    {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        entries = new AtomicReferenceArray<>(size);
+        setMask = size / 2 - 1;
+        ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    // Sized by -Dsupermarket.quotes.cache entries, expiring after -Dsupermarket.quotes.ttl seconds; null when off
+    static PriceQuoteCache configured() 
+    {
+        int capacity = Integer.getInteger("supermarket.quotes.cache", 0);
+        return capacity <= 0 ? null : new PriceQuoteCache(capacity, TimeUnit.SECONDS.toMillis(Long.getLong("supermarket.quotes.ttl", 300)));
+    }
+
+    private int setOf(long fingerprint) 
+    {
+        return (int) (fingerprint ^ (fingerprint >>> 32)) & setMask;
+    }
+
+    // The subtotal and line count are checked too, so a fingerprint collision cannot return another basket's quote
+    public PriceQuote get(ShoppingCart cart, long catalogVersion, long promotionVersion) 
+    {
+        int first = setOf(cart.getFingerprint()) * 2;
+        long now = System.nanoTime();
+        for (int way = first; way < first + 2; way++) 
+        {
+            Entry entry = entries.get(way);
+            if (entry != null && entry.fingerprint == cart.getFingerprint() && entry.lines == cart.size()
+                && entry.quote.subtotal == cart.calculateTotal() && entry.catalogVersion == catalogVersion
+                && entry.promotionVersion == promotionVersion && now - entry.expiresAt < 0) 
+            {
+                hits.increment();
+                return entry.quote;
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    public void put(ShoppingCart cart, long catalogVersion, long promotionVersion, PriceQuote quote) 
+    {
+        int first = setOf(cart.getFingerprint()) * 2;
+        long now = System.nanoTime();
+        Entry entry = new Entry(cart.getFingerprint(), cart.size(), catalogVersion, promotionVersion, now + ttlNanos, quote);
+        Entry a = entries.get(first);
+        Entry b = entries.get(first + 1);
+        // Prefer a free, expired or outdated way; otherwise evict whichever expires first
+        int way;
+        if (a == null || !current(a, now, catalogVersion, promotionVersion)) 
+        {
+            way = first;
+        } else if (b == null || !current(b, now, catalogVersion, promotionVersion)) 
+        {
+            way = first + 1;
+        } else 
+        {
+            way = a.expiresAt - b.expiresAt <= 0 ? first : first + 1;
+            evictions.increment();
+        }
+        entries.set(way, entry);
+    }
+
+    private static boolean current(Entry entry, long now, long catalogVersion, long promotionVersion) 
+    {
+        return now - entry.expiresAt < 0 && entry.catalogVersion == catalogVersion && entry.promotionVersion == promotionVersion;
+    }
+
+    public long getHits() 
+    {
+        return hits.sum();
+    }
+
+    public long getMisses() 
+    {
+        return misses.sum();
+    }
+
+    public long getEvictions() 
+    {
+        return evictions.sum();
+    }
+
+    public double getHitRate() 
+    {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+}
+
+// User class for authentication and personalized experience
+class User implements Serializable 
+{
+    private String name;
+    private String email;
+    private byte[] passwordSalt;
+    private byte[] passwordHash;
+    private int passwordIterations; // KDF cost the hash was made with, so the default can change later
+    private ShoppingCart cart;
+    // Purchase history and favorites live in the supermarket's PurchaseHistoryStore, keyed by email
+
+    public User(String name, String email, String password) 
+    {
+        this(name, email, password, PasswordHasher.ITERATIONS);
+    }
+
+    // For accounts created in bulk, such as a simulator's synthetic customers, where the full KDF cost would dominate
+    User(String name, String email, String password, int kdfIterations) 
+    {
+        this.name = name;
+        this.email = email;
+        this.passwordSalt = PasswordHasher.newSalt();
+        this.passwordIterations = kdfIterations;
+        this.passwordHash = PasswordHasher.hash(password, passwordSalt, passwordIterations);
+        this.cart = new ShoppingCart();
+    }
+
+    public String getName() 
+    {
+        return name;
+    }
+
+    public String getEmail()
+    {
+        return email;
+    }
+
+    // Runs the full key derivation; UserDirectory caches the outcome for repeat logins
+    public boolean checkPassword(String password)
+    {
+        return MessageDigest.isEqual(passwordHash, PasswordHasher.hash(password, passwordSalt, passwordIterations));
+    }
+
+    byte[] getPasswordSalt()
+    {
+        return passwordSalt;
+    }
+
+    public ShoppingCart getCart()
+    {
+        return cart;
+    }
+
+}
+
+// PasswordHasher class to derive salted password hashes with a configurable-cost KDF
+final class PasswordHasher 
+{
+    // PBKDF2 iterations for new hashes, set with -Dsupermarket.kdf.iterations
+    static final int ITERATIONS = Integer.getInteger("supermarket.kdf.iterations", 120_000);
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private PasswordHasher() 
+    {
+    }
+
+    public static byte[] newSalt() 
+    {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        return salt;
+    }
+
+    public static byte[] hash(String password, byte[] salt, int iterations) 
+    {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try 
+        {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) 
+        {
+            throw new IllegalStateException("PBKDF2WithHmacSHA256 is not available", e);
+        } finally 
+        {
+            spec.clearPassword();
+        }
+    }
+}
+
+// UserDirectory class to find users by normalized email in O(1) and authenticate them
+class UserDirectory 
+{
+    // Remembered logins, set with -Dsupermarket.login.cache.size and -Dsupermarket.login.cache.seconds
+    private static final int VERIFIED_CACHE_SIZE = Integer.getInteger("supermarket.login.cache.size", 10_000);
+    private static final long VERIFIED_TTL_NANOS = TimeUnit.SECONDS.toNanos(Integer.getInteger("supermarket.login.cache.seconds", 900));
+
+    // VerifiedLogin class for a login that passed the KDF, found again by a random token rather than the password
+    private static class VerifiedLogin 
+    {
+        final User user;
+        final long expiresAt;
+
+        VerifiedLogin(User user, long expiresAt) 
+        {
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final ConcurrentHashMap<String, User> byEmail = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final LinkedHashMap<String, VerifiedLogin> verified = new LinkedHashMap<String, VerifiedLogin>(16, 0.75f, true) 
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, VerifiedLogin> eldest) 
+        {
+            return size() > VERIFIED_CACHE_SIZE;
+        }
+    };
+
+    public static String normalize(String email) 
+    {
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+
+    // Returns false, leaving the directory unchanged, if the email is already registered
+    public boolean register(User user) 
+    {
+        return byEmail.putIfAbsent(normalize(user.getEmail()), user) == null;
+    }
+
+    public User find(String email) 
+    {
+        return byEmail.get(normalize(email));
+    }
+
+    public int size() 
+    {
+        return byEmail.size();
+    }
+
+    // Returns the user if the password is right; every password goes through the KDF
+    public User authenticate(String email, String password) 
+    {
+        User user = byEmail.get(normalize(email));
+        return user != null && user.checkPassword(password) ? user : null;
+    }
+
+    // Issues a random token for a user who just passed authenticate(); presenting it within the TTL skips the KDF.
+    // Nothing derived from the password is kept.
+    public String rememberLogin(User user) 
+    {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(32);
+        for (byte b : bytes) 
+        {
+            token.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        synchronized (verified) 
+        {
+            verified.put(token.toString(), new VerifiedLogin(user, System.nanoTime() + VERIFIED_TTL_NANOS));
+        }
+        return token.toString();
+    }
+
+    // The user a remembered login belongs to; null if the token is unknown, expired or its account was replaced
+    public User resumeLogin(String token) 
+    {
+        VerifiedLogin login;
+        synchronized (verified) 
+        {
+            login = verified.get(token);
+            if (login != null && System.nanoTime() - login.expiresAt >= 0) 
+            {
+                verified.remove(token);
+                login = null;
+            }
+        }
+        return login != null && byEmail.get(normalize(login.user.getEmail())) == login.user ? login.user : null;
+    }
+}
+
+// PurchaseHistory class to hold one user's recent purchases as varint columns of deltas instead of Item references
+// A few hundred orders take a few kilobytes; past the line limit the oldest orders are dropped
+class PurchaseHistory 
+{
+    static final int MAX_LINES = Integer.getInteger("supermarket.history.lines", 1_024);
+    static final int MAX_FAVORITES = 64;
+    private static final int MAGIC = 0x53424848; // "SBHH"
+
+    // Column class for a growable run of unsigned varints
+    private static final class Column 
+    {
+        byte[] bytes = new byte[32];
+        int length;
+
+        void write(long value) 
+        {
+            if (length + 10 > bytes.length) 
+            {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + 10));
+            }
+            while ((value & ~0x7FL) != 0) 
+            {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        // Reads the varint at cursor[0] and moves the cursor past it
+        long read(int[] cursor) 
+        {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do 
+            {
+                b = bytes[cursor[0]++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+    }
+
+    // Per order: zigzag millis since the previous order, then its line count
+    private Column orders = new Column();
+    // Per line: zigzag difference from the previous line's SKU, and the quantity
+    private Column skus = new Column();
+    private Column quantities = new Column();
+    private int orderCount;
+    private int lineCount;
+    private long lastTimestamp;
+    private int lastSku;
+    private int[] favorites = new int[0]; // Sorted
+    private int[] parked = new int[0]; // The cart left at logout, as SKU and quantity pairs
+    private boolean dirty;
+    // Set by PurchaseHistoryStore under this object's lock: retired once written out on eviction, after which
+    // the copy on disk is the live one. Evictions are numbered; a user coming back before the write cancels
+    // every eviction so far, so only a spill for a later eviction may still write and retire it.
+    boolean retired;
+    int evictions;
+    int reclaimedThrough;
+
+    private static long zigzag(long value) 
+    {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) 
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // An order with more lines than the whole history holds keeps only its first MAX_LINES lines
+    public synchronized void append(long timestamp, int[] orderSkus, int[] orderQuantities, int lines) 
+    {
+        encode(timestamp, orderSkus, orderQuantities, 0, Math.min(lines, MAX_LINES));
+        dirty = true;
+        if (lineCount > MAX_LINES) 
+        {
+            dropOldest(MAX_LINES * 3 / 4); // Trim by a quarter at a time so appends stay amortized O(1)
+        }
+    }
+
+    private void encode(long timestamp, int[] orderSkus, int[] orderQuantities, int from, int lines) 
+    {
+        orders.write(zigzag(timestamp - lastTimestamp));
+        orders.write(lines);
+        lastTimestamp = timestamp;
+        for (int i = from; i < from + lines; i++) 
+        {
+            skus.write(zigzag((long) orderSkus[i] - lastSku));
+            quantities.write(orderQuantities[i]);
+            lastSku = orderSkus[i];
+        }
+        orderCount++;
+        lineCount += lines;
+    }
+
+    // Re-encodes the newest orders that fit in keepLines, restarting the deltas from zero
+    private void dropOldest(int keepLines) 
+    {
+        long[] timestamps = new long[orderCount];
+        int[] linesPerOrder = new int[orderCount];
+        int[] allSkus = new int[lineCount];
+        int[] allQuantities = new int[lineCount];
+        decode(timestamps, linesPerOrder, allSkus, allQuantities);
+        int firstOrder = 0;
+        int firstLine = 0;
+        while (lineCount - firstLine > keepLines && firstOrder < orderCount - 1) 
+        {
+            firstLine += linesPerOrder[firstOrder++];
+        }
+        orders = new Column();
+        skus = new Column();
+        quantities = new Column();
+        int remainingOrders = orderCount;
+        orderCount = 0;
+        lineCount = 0;
+        lastTimestamp = 0;
+        lastSku = 0;
+        for (int order = firstOrder, line = firstLine; order < remainingOrders; line += linesPerOrder[order++]) 
+        {
+            encode(timestamps[order], allSkus, allQuantities, line, linesPerOrder[order]);
+        }
+    }
+
+    private void decode(long[] timestamps, int[] linesPerOrder, int[] allSkus, int[] allQuantities) 
+    {
+        int[] orderCursor = {0};
+        int[] skuCursor = {0};
+        int[] quantityCursor = {0};
+        long timestamp = 0;
+        int sku = 0;
+        int line = 0;
+        for (int order = 0; order < orderCount; order++) 
+        {
+            timestamp += unzigzag(orders.read(orderCursor));
+            timestamps[order] = timestamp;
+            linesPerOrder[order] = (int) orders.read(orderCursor);
+            for (int i = 0; i < linesPerOrder[order]; i++, line++) 
+            {
+                sku += (int) unzigzag(skus.read(skuCursor));
+                allSkus[line] = sku;
+                allQuantities[line] = (int) quantities.read(quantityCursor);
+            }
+        }
+    }
+
+    // SKUs bought in the most orders, most recently bought first among equals
+    public synchronized int[] frequentlyBought(int k) 
+    {
+        int[] allSkus = new int[lineCount];
+        decode(new long[orderCount], new int[orderCount], allSkus, new int[lineCount]);
+        long[] byLine = new long[lineCount];
+        for (int line = 0; line < lineCount; line++) 
+        {
+            byLine[line] = ((long) allSkus[line] << 32) | line;
+        }
+        Arrays.sort(byLine);
+        // Ranks each SKU as (orders, latest line) packed into one long, highest first
+        List<long[]> ranked = new ArrayList<>();
+        for (int start = 0, end; start < byLine.length; start = end) 
+        {
+            end = start;
+            while (end < byLine.length && (byLine[end] >> 32) == (byLine[start] >> 32)) 
+            {
+                end++;
+            }
+            ranked.add(new long[] {(byLine[start] >> 32), ((long) (end - start) << 32) | (byLine[end - 1] & 0xFFFFFFFFL)});
+        }
+        ranked.sort((a, b) -> Long.compare(b[1], a[1]));
+        int[] top = new int[Math.min(k, ranked.size())];
+        for (int i = 0; i < top.length; i++) 
+        {
+            top[i] = (int) ranked.get(i)[0];
+        }
+        return top;
+    }
+
+    public synchronized boolean addFavorite(int sku) 
+    {
+        int position = Arrays.binarySearch(favorites, sku);
+        if (position >= 0 || favorites.length >= MAX_FAVORITES) 
+        {
+            return false;
+        }
+        position = -position - 1;
+        int[] grown = new int[favorites.length + 1];
+        System.arraycopy(favorites, 0, grown, 0, position);
+        grown[position] = sku;
+        System.arraycopy(favorites, position, grown, position + 1, favorites.length - position);
+        favorites = grown;
+        dirty = true;
+        return true;
+    }
+
+    public synchronized boolean removeFavorite(int sku) 
+    {
+        int position = Arrays.binarySearch(favorites, sku);
+        if (position < 0) 
+        {
+            return false;
+        }
+        int[] shrunk = new int[favorites.length - 1];
+        System.arraycopy(favorites, 0, shrunk, 0, position);
+        System.arraycopy(favorites, position + 1, shrunk, position, shrunk.length - position);
+        favorites = shrunk;
+        dirty = true;
+        return true;
+    }
+
+    public synchronized int[] getFavorites() 
+    {
+        return favorites.clone();
+    }
+
+    public synchronized void park(int[] skuQuantityPairs) 
+    {
+        parked = skuQuantityPairs.clone();
+        dirty = true;
+    }
+
+    public synchronized int[] getParked() 
+    {
+        return parked.clone();
+    }
+
+    public synchronized int getOrderCount() 
+    {
+        return orderCount;
+    }
+
+    synchronized boolean isDirty() 
+    {
+        return dirty;
+    }
+
+    synchronized void writeTo(DataOutputStream out) throws IOException 
+    {
+        out.writeInt(MAGIC);
+        out.writeInt(orderCount);
+        out.writeInt(lineCount);
+        out.writeLong(lastTimestamp);
+        out.writeInt(lastSku);
+        out.writeInt(favorites.length);
+        for (int sku : favorites) 
+        {
+            out.writeInt(sku);
+        }
+        out.writeInt(parked.length);
+        for (int value : parked) 
+        {
+            out.writeInt(value);
+        }
+        for (Column column : new Column[] {orders, skus, quantities}) 
+        {
+            out.writeInt(column.length);
+            out.write(column.bytes, 0, column.length);
+        }
+        dirty = false;
+    }
+
+    static PurchaseHistory readFrom(DataInputStream in) throws IOException 
+    {
+        if (in.readInt() != MAGIC) 
+        {
+            throw new IOException("Not a purchase history file");
+        }
+        PurchaseHistory history = new PurchaseHistory();
+        history.orderCount = in.readInt();
+        history.lineCount = in.readInt();
+        history.lastTimestamp = in.readLong();
+        history.lastSku = in.readInt();
+        history.favorites = new int[in.readInt()];
+        for (int i = 0; i < history.favorites.length; i++) 
+        {
+            history.favorites[i] = in.readInt();
+        }
+        history.parked = new int[in.readInt()];
+        for (int i = 0; i < history.parked.length; i++) 
+        {
+            history.parked[i] = in.readInt();
+        }
+        for (Column column : new Column[] {history.orders, history.skus, history.quantities}) 
+        {
+            column.length = in.readInt();
+            column.bytes = new byte[Math.max(32, column.length)];
+            in.readFully(column.bytes, 0, column.length);
+        }
+        return history;
+    }
+}
+
+// PurchaseHistoryStore class to keep the most recently active users' histories on heap and spill the rest to disk
+// Disk work happens outside the residency lock, so one cold user's load never stalls other tills
+class PurchaseHistoryStore 
+{
+    private final Path directory;
+    private final int residentUsers;
+    private final LinkedHashMap<String, PurchaseHistory> resident = new LinkedHashMap<>(256, 0.75f, true); // Guarded by this
+    // Evicted but not yet on disk; a user coming back in that window gets the same object back
+    private final ConcurrentHashMap<String, Spill> spilling = new ConcurrentHashMap<>();
+
+    // A key's load and spill never overlap, so there is only ever one live copy of a history
+    private final Object[] diskLocks = new Object[64];
+
+    // Spill class for one eviction waiting to be written; its task only ever removes its own entry
+    private static final class Spill 
+    {
+        final String key;
+        final PurchaseHistory history;
+        final int eviction;
+
+        Spill(String key, PurchaseHistory history, int eviction) 
+        {
+            this.key = key;
+            this.history = history;
+            this.eviction = eviction;
+        }
+    }
+
+    public PurchaseHistoryStore(Path directory, int residentUsers) 
+    {
+        this.directory = directory;
+        this.residentUsers = Math.max(1, residentUsers);
+        for (int i = 0; i < diskLocks.length; i++) 
+        {
+            diskLocks[i] = new Object();
+        }
+    }
+
+    private Object diskLock(String key) 
+    {
+        return diskLocks[(key.hashCode() * 0x9E3779B9) >>> 26];
+    }
+
+    // Spills to -Dsupermarket.history.dir and keeps -Dsupermarket.history.resident users on heap
+    static PurchaseHistoryStore configured() 
+    {
+        return new PurchaseHistoryStore(Paths.get(System.getProperty("supermarket.history.dir", "supermarket-history")),
+            Integer.getInteger("supermarket.history.resident", 10_000));
+    }
+
+    // The user's history, loaded from disk if they are cold, or empty if they have none
+    public PurchaseHistory get(String email) 
+    {
+        String key = UserDirectory.normalize(email);
+        synchronized (this) 
+        {
+            PurchaseHistory history = resident.get(key);
+            if (history != null) 
+            {
+                return history;
+            }
+        }
+        List<Spill> evicted = new ArrayList<>();
+        PurchaseHistory history;
+        synchronized (diskLock(key)) 
+        {
+            synchronized (this) 
+            {
+                history = resident.get(key);
+            }
+            if (history != null) 
+            {
+                return history; // Another till loaded it while we waited
+            }
+            history = reclaim(spilling.get(key));
+            if (history == null) 
+            {
+                history = load(key);
+            }
+            synchronized (this) 
+            {
+                resident.put(key, history);
+                Iterator<Map.Entry<String, PurchaseHistory>> eldest = resident.entrySet().iterator();
+                while (resident.size() > residentUsers) 
+                {
+                    Map.Entry<String, PurchaseHistory> entry = eldest.next();
+                    Spill spill;
+                    synchronized (entry.getValue()) 
+                    {
+                        spill = new Spill(entry.getKey(), entry.getValue(), ++entry.getValue().evictions);
+                    }
+                    evicted.add(spill);
+                    spilling.put(spill.key, spill);
+                    eldest.remove();
+                }
+            }
+        }
+        for (Spill spill : evicted) 
+        {
+            spill(spill);
+        }
+        return history;
+    }
+
+    // A history evicted but not yet written can go straight back on heap; once written, disk has the live copy
+    private static PurchaseHistory reclaim(Spill spill) 
+    {
+        if (spill == null) 
+        {
+            return null;
+        }
+        PurchaseHistory history = spill.history;
+        synchronized (history) 
+        {
+            if (history.retired) 
+            {
+                return null;
+            }
+            history.reclaimedThrough = history.evictions;
+            return history;
+        }
+    }
+
+    // Changes a history only while it is the live copy, retrying if it was written out underneath us
+    private <T> T update(String email, Function<PurchaseHistory, T> change) 
+    {
+        while (true) 
+        {
+            PurchaseHistory history = get(email);
+            synchronized (history) 
+            {
+                if (!history.retired) 
+                {
+                    return change.apply(history);
+                }
+            }
+        }
+    }
+
+    public void recordOrder(String email, ShoppingCart cart, long timestamp) 
+    {
+        int[] skus = new int[cart.size()];
+        int[] quantities = new int[cart.size()];
+        for (int line = 0; line < cart.size(); line++) 
+        {
+            skus[line] = cart.getLineItem(line).getSku();
+            quantities[line] = cart.getLineQuantity(line);
+        }
+        update(email, history -> 
+        {
+            history.append(timestamp, skus, quantities, skus.length);
+            return null;
+        });
+    }
+
+    public boolean addFavorite(String email, int sku) 
+    {
+        return update(email, history -> history.addFavorite(sku));
+    }
+
+    public boolean removeFavorite(String email, int sku) 
+    {
+        return update(email, history -> history.removeFavorite(sku));
+    }
+
+    // Replaces the user's parked cart and writes it straight out, so a restart right after logout still has it
+    public void park(String email, int[] skuQuantityPairs) 
+    {
+        String key = UserDirectory.normalize(email);
+        PurchaseHistory history = update(email, changed -> 
+        {
+            changed.park(skuQuantityPairs);
+            return changed;
+        });
+        synchronized (diskLock(key)) 
+        {
+            synchronized (history) 
+            {
+                if (history.retired) 
+                {
+                    return; // Its spill already wrote the change
+                }
+                try 
+                {
+                    write(key, history);
+                } catch (IOException e) 
+                {
+                    System.err.println("Parked cart could not be written: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    public int[] getParked(String email) 
+    {
+        return get(email).getParked();
+    }
+
+    private Path fileFor(String key) 
+    {
+        try 
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(40);
+            for (int i = 0; i < 16; i++) 
+            {
+                name.append(Character.forDigit((digest[i] >> 4) & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+            }
+            return directory.resolve(name.append(".hist").toString());
+        } catch (GeneralSecurityException e) 
+        {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private PurchaseHistory load(String key) 
+    {
+        Path file = fileFor(key);
+        if (!Files.exists(file)) 
+        {
+            return new PurchaseHistory();
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) 
+        {
+            return PurchaseHistory.readFrom(in);
+        } catch (IOException e) 
+        {
+            System.err.println("Purchase history for a user could not be read, starting afresh: " + e.getMessage());
+            return new PurchaseHistory();
+        }
+    }
+
+    // Writes out an evicted history and retires it, unless its user came back for it first
+    private void spill(Spill spill) 
+    {
+        PurchaseHistory history = spill.history;
+        synchronized (diskLock(spill.key)) 
+        {
+            synchronized (history) 
+            {
+                if (history.reclaimedThrough < spill.eviction) 
+                {
+                    try 
+                    {
+                        write(spill.key, history);
+                    } catch (IOException e) 
+                    {
+                        System.err.println("Purchase history could not be spilled to disk: " + e.getMessage());
+                    }
+                    history.retired = true; // Dropped from the heap either way, as the cap is hard
+                }
+            }
+            spilling.remove(spill.key, spill); // Never a later eviction's entry
+        }
+    }
+
+    // Writes to a temporary file and renames it, so a crash never leaves a half-written history
+    private void write(String key, PurchaseHistory history) throws IOException 
+    {
+        if (history.isDirty()) 
+        {
+            Files.createDirectories(directory);
+            Path file = fileFor(key);
+            Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) 
+            {
+                history.writeTo(out);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    // Writes every resident history that changed, e.g. at shutdown; they stay resident
+    public void flush() 
+    {
+        List<Map.Entry<String, PurchaseHistory>> all;
+        synchronized (this) 
+        {
+            all = new ArrayList<>(resident.entrySet());
+        }
+        for (Map.Entry<String, PurchaseHistory> entry : all) 
+        {
+            synchronized (entry.getValue()) 
+            {
+                try 
+                {
+                    write(entry.getKey(), entry.getValue());
+                } catch (IOException e) 
+                {
+                    System.err.println("Purchase history could not be written: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    public synchronized int residentCount() 
+    {
+        return resident.size();
+    }
+}
+
+// TransactionJournal class to durably append confirmed orders and stock movements, fsyncing once per batch
+class TransactionJournal implements Closeable 
+{
+    private static final byte ORDER = 1;
+    private static final byte STOCK_MOVEMENT = 2;
+    private static final byte PRICE_CHANGE = 3;
+    private static final int HEADER_BYTES = 8; // Payload length, then CRC32 of the payload
+    private static final int MAX_BATCH = 1_024;
+
+    // PendingRecord class to pair an encoded record with the future completed once it is on disk
+    private static class PendingRecord 
+    {
+        final ByteBuffer bytes;
+        final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        PendingRecord(ByteBuffer bytes) 
+        {
+            this.bytes = bytes;
+        }
+    }
+
+    private final FileChannel channel;
+    private final LinkedBlockingQueue<PendingRecord> pending = new LinkedBlockingQueue<>();
+    private final AtomicLong nextOrderId;
+    private final Thread writer;
+    private final Object appendLock = new Object(); // Makes the closed check and the enqueue one step against close()
+    private volatile boolean closed;
+    private long end; // Writer only: where the last durable batch ends
+
+    private TransactionJournal(FileChannel channel, long end, long lastOrderId) 
+    {
+        this.channel = channel;
+        this.end = end;
+        this.nextOrderId = new AtomicLong(lastOrderId + 1);
+        this.writer = new Thread(this::writeLoop, "journal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // Replays every intact record into the supermarket's stock, cuts off a torn tail, and opens for appending
+    public static TransactionJournal open(Path path, Supermarket supermarket) throws IOException 
+    {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long lastOrderId = 0;
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        CRC32 crc = new CRC32();
+        while (true) 
+        {
+            header.clear();
+            if (channel.read(header, position) < HEADER_BYTES) 
+            {
+                break;
+            }
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length <= 0 || position + HEADER_BYTES + length > channel.size()) 
+            {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            channel.read(payload, position + HEADER_BYTES);
+            crc.reset();
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != checksum) 
+            {
+                break;
+            }
+            payload.flip();
+            lastOrderId = Math.max(lastOrderId, replay(payload, supermarket));
+            position += HEADER_BYTES + length;
+        }
+        if (position < channel.size()) 
+        {
+            System.out.println("Journal: discarding " + (channel.size() - position) + " bytes of incomplete records.");
+            channel.truncate(position);
+        }
+        channel.position(position);
+        return new TransactionJournal(channel, position, lastOrderId);
+    }
+
+    private static long replay(ByteBuffer payload, Supermarket supermarket) 
+    {
+        byte type = payload.get();
+        if (type == ORDER) 
+        {
+            long orderId = payload.getLong();
+            payload.getLong(); // Timestamp
+            payload.getLong(); // Amount charged
+            int emailLength = payload.getInt();
+            payload.position(payload.position() + emailLength); // Customer email
+            int lines = payload.getInt();
+            for (int i = 0; i < lines; i++) 
+            {
+                supermarket.applyStockMovement(payload.getInt(), -payload.getInt());
+            }
+            return orderId;
+        } else if (type == STOCK_MOVEMENT) 
+        {
+            supermarket.applyStockMovement(payload.getInt(), payload.getInt());
+        } else if (type == PRICE_CHANGE) 
+        {
+            int changes = payload.getInt();
+            for (int i = 0; i < changes; i++) 
+            {
+                supermarket.applyPriceChange(payload.getInt(), payload.getLong());
+            }
+        }
+        return 0;
+    }
+
+    public long nextOrderId() 
+    {
+        return nextOrderId.getAndIncrement();
+    }
+
+    public CompletableFuture<Void> appendOrder(long orderId, String customerEmail, long amountCharged, ShoppingCart cart) 
+    {
+        byte[] email = customerEmail == null ? new byte[0] : customerEmail.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(1 + 8 + 8 + 8 + 4 + email.length + 4 + cart.size() * 8);
+        payload.put(ORDER).putLong(orderId).putLong(System.currentTimeMillis()).putLong(amountCharged);
+        payload.putInt(email.length).put(email);
+        payload.putInt(cart.size());
+        for (int line = 0; line < cart.size(); line++) 
+        {
+            payload.putInt(cart.getLineItem(line).getSku()).putInt(cart.getLineQuantity(line));
+        }
+        return append(payload);
+    }
+
+    public CompletableFuture<Void> appendStockMovement(int sku, int delta) 
+    {
+        ByteBuffer payload = ByteBuffer.allocate(1 + 4 + 4);
+        payload.put(STOCK_MOVEMENT).putInt(sku).putInt(delta);
+        return append(payload);
+    }
+
+    // Every price in one catalog update goes in a single record, so replay restores all of them or none
+    public CompletableFuture<Void> appendPriceChanges(List<CatalogUpdate.Line> lines) 
+    {
+        int changes = 0;
+        for (CatalogUpdate.Line line : lines) 
+        {
+            changes += line.price == CatalogUpdate.NO_PRICE ? 0 : 1;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(1 + 4 + changes * 12);
+        payload.put(PRICE_CHANGE).putInt(changes);
+        for (CatalogUpdate.Line line : lines) 
+        {
+            if (line.price != CatalogUpdate.NO_PRICE) 
+            {
+                payload.putInt(line.sku).putLong(line.price);
+            }
+        }
+        return append(payload);
+    }
+
+    private CompletableFuture<Void> append(ByteBuffer payload) 
+    {
+        payload.flip();
+        CRC32 crc = new CRC32();
+        crc.update(payload.array(), 0, payload.limit());
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.limit());
+        record.putInt(payload.limit()).putInt((int) crc.getValue()).put(payload);
+        record.flip();
+        PendingRecord pendingRecord = new PendingRecord(record);
+        synchronized (appendLock) 
+        {
+            if (!closed) 
+            {
+                pending.add(pendingRecord);
+                return pendingRecord.durable;
+            }
+        }
+        pendingRecord.durable.completeExceptionally(new IOException("Journal is closed"));
+        return pendingRecord.durable;
+    }
+
+    // Group commit: everything queued while the previous fsync ran goes out in one write and one fsync
+    private void writeLoop() 
+    {
+        List<PendingRecord> batch = new ArrayList<>(MAX_BATCH);
+        ByteBuffer[] buffers = new ByteBuffer[MAX_BATCH];
+        try 
+        {
+            writeBatches(batch, buffers);
+        } finally 
+        {
+            // Whatever stops the writer, nothing may be left waiting on a record it will never write
+            synchronized (appendLock) 
+            {
+                closed = true;
+            }
+            IOException stopped = new IOException("Journal writer stopped");
+            for (PendingRecord record = pending.poll(); record != null; record = pending.poll()) 
+            {
+                record.durable.completeExceptionally(stopped);
+            }
+        }
+    }
+
+    private void writeBatches(List<PendingRecord> batch, ByteBuffer[] buffers) 
+    {
+        while (!closed || !pending.isEmpty()) 
+        {
+            try 
+            {
+                PendingRecord first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) 
+                {
+                    continue;
+                }
+                batch.add(first);
+                pending.drainTo(batch, MAX_BATCH - 1);
+                for (int i = 0; i < batch.size(); i++) 
+                {
+                    buffers[i] = batch.get(i).bytes;
+                }
+                long batchBytes = 0;
+                for (int i = 0; i < batch.size(); i++) 
+                {
+                    batchBytes += buffers[i].remaining();
+                }
+                for (long remaining = batchBytes; remaining > 0; ) 
+                {
+                    remaining -= channel.write(buffers, 0, batch.size());
+                }
+                channel.force(false);
+                end += batchBytes;
+                for (PendingRecord record : batch) 
+                {
+                    record.durable.complete(null);
+                }
+            } catch (InterruptedException e) 
+            {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) 
+            {
+                for (PendingRecord record : batch) 
+                {
+                    record.durable.completeExceptionally(e);
+                }
+                // Part of the failed batch may be in the file. Replay stops at a torn record, so nothing may follow it.
+                try 
+                {
+                    channel.truncate(end);
+                    channel.position(end);
+                } catch (IOException cutBack) 
+                {
+                    System.err.println("Journal: could not cut back a failed write, refusing further records: " + cutBack.getMessage());
+                    return; // writeLoop closes the journal and fails everything still queued
+                }
+            } finally 
+            {
+                batch.clear();
+                Arrays.fill(buffers, null);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException 
+    {
+        synchronized (appendLock) 
+        {
+            closed = true;
+        }
+        try 
+        {
+            writer.join();
+        } catch (InterruptedException e) 
+        {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+}
+
+// Supermarket class to manage products, users, and orders
+class Supermarket implements Serializable 
+{
+    private static final int MAX_STOCK_ATTEMPTS = 100; // Setting a level races tills reserving; give up rather than spin
+    private HashMap<String, Item> products;
+    private transient CatalogIndex catalog;
+    private transient ProductSearch search;
+    private ArrayList<Discount> discounts;
+    private transient volatile PromotionEngine promotions;
+    private transient volatile long catalogVersion; // Bumped by every published CatalogUpdate
+    private transient volatile long promotionVersion; // Bumped whenever the discount list changes
+    private transient PriceQuoteCache quotes; // Null unless enabled
+    private transient TransactionJournal journal;
+    private transient ReceiptPrinter receiptPrinter;
+    private transient TillEventPipeline events; // Null unless enabled
+    private transient UserDirectory users;
+    private transient List<OrderListener> orderListeners;
+    private transient PurchaseHistoryStore histories;
+
+    public Supermarket() 
+  {
+        products = new HashMap<>();
+        catalog = new CatalogIndex();
+        search = new ProductSearch(this::getProductBySku);
+        discounts = new ArrayList<>();
+        users = new UserDirectory();
+        orderListeners = new CopyOnWriteArrayList<>();
+        histories = PurchaseHistoryStore.configured();
+        quotes = PriceQuoteCache.configured();
+        // Initialize products and discounts
+        initializeProducts();
+        initializeDiscounts();
+    }
+
+    // Boots from a memory-mapped catalog instead of the built-in products; items are created as they are used
+    public Supermarket(CatalogSnapshot snapshot) 
+  {
+        products = new HashMap<>();
+        catalog = new CatalogIndex();
+        search = new ProductSearch(this::getProductBySku);
+        discounts = new ArrayList<>();
+        users = new UserDirectory();
+        orderListeners = new CopyOnWriteArrayList<>();
+        histories = PurchaseHistoryStore.configured();
+        quotes = PriceQuoteCache.configured();
+        catalog.loadSnapshot(snapshot);
+        search.addSnapshot(snapshot);
+        initializeDiscounts();
+    }
+
+    private void initializeProducts() 
+    {
+        addProducts(Arrays.asList(
+            new Item(1, "4006381333931", "Apple", 100, Category.GROCERY, 50),
+            new Item(2, "4006381333948", "TV", 50_000, Category.ELECTRONICS, 10),
+            new Item(3, "4006381333955", "Shirt", 2_000, Category.CLOTHING, 30),
+            new Item(4, "4006381333962", "Shampoo", 500, Category.BEAUTY, 40),
+            new Item(5, "4006381333979", "Microwave", 10_000, Category.HOME_APPLIANCES, 15)));
+    }
+
+    public void addProducts(Collection<Item> items) 
+    {
+        for (Item item : items) 
+        {
+            products.put(item.getName(), item);
+        }
+        catalog.addAll(items);
+        search.addAll(items);
+    }
+
+    public void exportCatalog(Path path) throws IOException 
+    {
+        List<Item> all = new ArrayList<>();
+        for (Category category : Category.values()) 
+        {
+            all.addAll(catalog.getShelf(category).getAllItems());
+        }
+        CatalogSnapshot.write(path, all);
+    }
+
+    public Item getProductBySku(int sku) 
+    {
+        return catalog.getBySku(sku);
+    }
+
+    public Item getProductByBarcode(String barcode) 
+    {
+        return catalog.getByBarcode(barcode);
+    }
+
+    // In-stock products whose name matches the typed text, best first; tolerates small typos
+    public List<Item> searchProducts(String query, int limit) 
+    {
+        return search.search(query, limit);
+    }
+
+    private void initializeDiscounts() 
+    {
+        addDiscounts(Arrays.asList(
+            Discount.forCategory("10% Off Groceries", Category.GROCERY, 1_000, true, false),
+            Discount.forCategory("$50 Off Electronics", Category.ELECTRONICS, 5_000, false, false),
+            Discount.buyOneGetOne("Buy One Get One Free on Shirts", 3)));
+    }
+
+    // Recompiles the promotion tables once per batch of new discounts
+    public synchronized void addDiscounts(Collection<Discount> added) 
+    {
+        discounts.addAll(added);
+        promotions = new PromotionEngine(discounts);
+        promotionVersion++;
+    }
+
+    public List<Discount> getDiscounts() 
+    {
+        return Collections.unmodifiableList(discounts);
+    }
+
+    // Rebuilds stock from the journal and records every later order and stock movement in it
+    public void openJournal(Path path) throws IOException 
+    {
+        journal = TransactionJournal.open(path, this);
+    }
+
+    void applyStockMovement(int sku, int delta) 
+    {
+        Item item = getProductBySku(sku);
+        if (item != null) 
+        {
+            item.setQuantityAvailable(item.getQuantityAvailable() + delta);
+        }
+    }
+
+    void applyPriceChange(int sku, long price) 
+    {
+        Item item = getProductBySku(sku);
+        if (item != null) 
+        {
+            item.restorePrice(price);
+        }
+    }
+
+    public long getCatalogVersion() 
+    {
+        return catalogVersion;
+    }
+
+    // Stages every new price, journals them, publishes them all at once, then applies the stock changes as journaled
+    // movements. Nothing is published if any SKU is unknown. Carts keep the prices their lines started with.
+    // Returns the new catalog version.
+    public long applyCatalogUpdate(CatalogUpdate update) throws IOException 
+    {
+        synchronized (catalog) // One update at a time; readers never take this lock
+        {
+            List<CatalogUpdate.Line> lines = update.getLines();
+            Item[] items = new Item[lines.size()];
+            for (int i = 0; i < items.length; i++) 
+            {
+                items[i] = getProductBySku(lines.get(i).sku);
+                if (items[i] == null) 
+                {
+                    throw new IOException("Unknown SKU " + lines.get(i).sku + "; new products need the full catalog");
+                }
+                if (lines.get(i).price < 0 && lines.get(i).price != CatalogUpdate.NO_PRICE) 
+                {
+                    throw new IOException("Negative price for SKU " + lines.get(i).sku);
+                }
+                if (lines.get(i).hasStock && !lines.get(i).stockIsDelta && lines.get(i).stock < 0) 
+                {
+                    throw new IOException("Negative stock level for SKU " + lines.get(i).sku);
+                }
+            }
+            for (int i = 0; i < items.length; i++) 
+            {
+                if (lines.get(i).price != CatalogUpdate.NO_PRICE) 
+                {
+                    items[i].stagePrice(update, lines.get(i).price);
+                }
+            }
+            if (journal != null) 
+            {
+                awaitDurable(journal.appendPriceChanges(lines));
+            }
+            update.publish();
+            catalogVersion++;
+            int[] movedSkus = new int[items.length];
+            int[] movedDeltas = new int[items.length];
+            int movements = 0;
+            for (int i = 0; i < items.length; i++) 
+            {
+                CatalogUpdate.Line line = lines.get(i);
+                int delta = 0;
+                boolean moved = true;
+                if (line.hasStock && line.stockIsDelta) 
+                {
+                    delta = line.stock;
+                    if (delta != 0 && !moveStock(items[i], delta)) 
+                    {
+                        moved = false;
+                        System.err.println("Catalog update: cannot write off " + -line.stock + " of SKU " + line.sku + ", only " + items[i].getQuantityAvailable() + " left");
+                    }
+                } else if (line.hasStock) 
+                {
+                    // The level is re-read on each attempt, as tills keep reserving while this runs
+                    moved = false;
+                    for (int attempt = 0; attempt < MAX_STOCK_ATTEMPTS && !moved; attempt++) 
+                    {
+                        delta = line.stock - items[i].getQuantityAvailable();
+                        moved = delta == 0 || moveStock(items[i], delta);
+                    }
+                    if (!moved) 
+                    {
+                        System.err.println("Catalog update: stock of SKU " + line.sku + " kept changing; not set to " + line.stock);
+                    }
+                }
+                if (moved && delta != 0) 
+                {
+                    movedSkus[movements] = line.sku;
+                    movedDeltas[movements++] = delta;
+                }
+            }
+            journalStockMovements(movedSkus, movedDeltas, movements);
+            return catalogVersion;
+        }
+    }
+
+    // Restocks (positive delta) or writes off (negative delta) shelf stock
+    public boolean adjustStock(Item item, int delta) throws IOException 
+    {
+        if (!moveStock(item, delta)) 
+        {
+            return false;
+        }
+        if (journal != null) 
+        {
+            awaitDurable(journal.appendStockMovement(item.getSku(), delta));
+        }
+        return true;
+    }
+
+    // The shelf side of adjustStock; the caller journals the movement with journalStockMovements
+    static boolean moveStock(Item item, int delta) 
+    {
+        if (delta < 0 && !item.reserve(-delta)) 
+        {
+            return false;
+        }
+        item.release(delta);
+        return true;
+    }
+
+    // Receipts for confirmed orders are handed to this printer, which writes them in the background
+    public void setReceiptPrinter(ReceiptPrinter receiptPrinter) 
+    {
+        this.receiptPrinter = receiptPrinter;
+    }
+
+    // Lanes attached from now on publish their till operations to this pipeline's stages
+    public void setEventPipeline(TillEventPipeline events) 
+    {
+        this.events = events;
+    }
+
+    public TillEventPipeline getEventPipeline() 
+    {
+        return events;
+    }
+
+    // Gives the lane its own event ring; its owner thread must be the only one driving it until detached
+    public void attach(CheckoutLane lane) 
+    {
+        if (events != null) 
+        {
+            lane.attach(events.newRing());
+        }
+    }
+
+    public void detach(CheckoutLane lane) 
+    {
+        TillEventRing ring = lane.detach();
+        if (ring != null) 
+        {
+            events.release(ring);
+        }
+    }
+
+    // Listeners see every confirmed order's receipt on the confirming thread, so they must hand it off quickly
+    public void addOrderListener(OrderListener listener) 
+    {
+        orderListeners.add(listener);
+    }
+
+    // Sells everything in the lane's cart; the cart is only emptied once the order is durable.
+    // Report the returned quote's total: quoting the cart again may see a newer price or discount.
+    public ConfirmedOrder confirmOrder(CheckoutLane lane, User customer) throws IOException 
+    {
+        long start = CheckoutMetrics.start();
+        try 
+        {
+            return confirm(lane, customer);
+        } finally 
+        {
+            CheckoutMetrics.record(CheckoutMetrics.Operation.CONFIRM_ORDER, start);
+        }
+    }
+
+    private ConfirmedOrder confirm(CheckoutLane lane, User customer) throws IOException 
+    {
+        ShoppingCart cart = lane.getCart();
+        PriceQuote quote = quote(cart); // The receipt shows exactly what is journaled, even if prices change meanwhile
+        long amountCharged = quote.total;
+        long orderId = 0;
+        if (journal != null) 
+        {
+            orderId = journal.nextOrderId();
+            awaitDurable(journal.appendOrder(orderId, customer == null ? null : customer.getEmail(), amountCharged, cart));
+        }
+        Receipt receipt = null;
+        if (receiptPrinter != null || !orderListeners.isEmpty()) 
+        {
+            receipt = Receipt.of(orderId, cart, quote, customer == null ? null : customer.getName(), customer == null ? null : customer.getEmail());
+            if (receiptPrinter != null && !lane.publishesReceipts()) 
+            {
+                receiptPrinter.submit(receipt);
+            }
+            for (OrderListener listener : orderListeners) 
+            {
+                listener.orderConfirmed(receipt);
+            }
+        }
+        if (customer != null) 
+        {
+            histories.recordOrder(customer.getEmail(), cart, System.currentTimeMillis());
+        }
+        lane.commit(orderId, amountCharged, receipt);
+        return new ConfirmedOrder(orderId, quote);
+    }
+
+    // Journals movements already made with moveStock, queuing them all before one wait so they share group commits
+    void journalStockMovements(int[] skus, int[] deltas, int count) throws IOException 
+    {
+        if (journal == null || count == 0) 
+        {
+            return;
+        }
+        CompletableFuture<?>[] writes = new CompletableFuture<?>[count];
+        for (int i = 0; i < count; i++) 
+        {
+            writes[i] = journal.appendStockMovement(skus[i], deltas[i]);
+        }
+        awaitDurable(CompletableFuture.allOf(writes));
+    }
+
+    private static void awaitDurable(CompletableFuture<Void> write) throws IOException 
+    {
+        try 
+        {
+            write.get();
+        } catch (InterruptedException e) 
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the journal");
+        } catch (ExecutionException e) 
+        {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    // Returns false if a user with the same email is already registered
+    public boolean addUser(User user) 
+    {
+        return users.register(user);
+    }
+
+    public User getUserByEmail(String email) 
+    {
+        long start = CheckoutMetrics.start();
+        User user = users.find(email);
+        CheckoutMetrics.record(CheckoutMetrics.Operation.GET_USER_BY_EMAIL, start);
+        return user;
+    }
+
+    public User authenticate(String email, String password) 
+    {
+        long start = CheckoutMetrics.start();
+        User user = users.authenticate(email, password);
+        CheckoutMetrics.record(CheckoutMetrics.Operation.AUTHENTICATE, start);
+        return user;
+    }
+
+    // A token the customer can log in with again for a while without their password
+    public String rememberLogin(User user) 
+    {
+        return users.rememberLogin(user);
+    }
+
+    public User resumeLogin(String token) 
+    {
+        long start = CheckoutMetrics.start();
+        User user = users.resumeLogin(token);
+        CheckoutMetrics.record(CheckoutMetrics.Operation.AUTHENTICATE, start);
+        return user;
+    }
+
+    // What a returning customer buys most often, to put in front of them first
+    public List<Item> getFrequentlyBought(User user, int count) 
+    {
+        return itemsFor(histories.get(user.getEmail()).frequentlyBought(count));
+    }
+
+    public List<Item> getFavorites(User user) 
+    {
+        return itemsFor(histories.get(user.getEmail()).getFavorites());
+    }
+
+    // Returns false if the item was already a favorite or the user has the most favorites allowed
+    public boolean addFavorite(User user, Item item) 
+    {
+        return histories.addFavorite(user.getEmail(), item.getSku());
+    }
+
+    public boolean removeFavorite(User user, Item item) 
+    {
+        return histories.removeFavorite(user.getEmail(), item.getSku());
+    }
+
+    // Keeps a customer's parked cart with their purchase history, on disk; an empty cart clears it
+    public void parkCart(User user, ShoppingCart cart) 
+    {
+        int[] pairs = new int[cart.size() * 2];
+        for (int line = 0; line < cart.size(); line++) 
+        {
+            pairs[line * 2] = cart.getLineItem(line).getSku();
+            pairs[line * 2 + 1] = cart.getLineQuantity(line);
+        }
+        histories.park(user.getEmail(), pairs);
+    }
+
+    // The cart a customer parked, as SKU and quantity pairs
+    public int[] getParkedCart(User user) 
+    {
+        return histories.getParked(user.getEmail());
+    }
+
+    public void flushPurchaseHistories() 
+    {
+        histories.flush();
+    }
+
+    private List<Item> itemsFor(int[] skus) 
+    {
+        List<Item> items = new ArrayList<>(skus.length);
+        for (int sku : skus) 
+        {
+            Item item = getProductBySku(sku);
+            if (item != null) 
+            {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    // Units on the shelf across the category, for stock gauges
+    public long getCategoryStock(Category category) 
+    {
+        return catalog.getShelf(category).totalStock();
+    }
+
+    public int getCategoryInStockCount(Category category) 
+    {
+        return catalog.getShelf(category).inStockCount();
+    }
+
+    public void displayProductCategories() 
+  {
+        System.out.println("\n--- Product Categories ---");
+        Category[] categories = Category.values();
+        for (int i = 0; i < categories.length; i++) 
+        {
+            System.out.println((i + 1) + ". " + categories[i]);
+        }
+    }
+
+    public Category getCategoryFromChoice(int choice) 
+  {
+        Category[] categories = Category.values();
+        if (choice > 0 && choice <= categories.length) 
+        {
+            return categories[choice - 1];
+        }
+        return null;
+    }
+
+    public void displayProductsInCategory(Category category) 
+    {
+        printProducts(category, catalog.getShelf(category).getInStockItems());
+    }
+
+    // Every item on the shelf, or only those in stock, in display order
+    public List<Item> getCategoryItems(Category category, boolean inStockOnly) 
+    {
+        CategoryShelf shelf = catalog.getShelf(category);
+        return inStockOnly ? shelf.getInStockItems() : shelf.getAllItems();
+    }
+
+    // Visits every SKU in the category, in or out of stock, without copying the shelf; the action must not block
+    public void forEachSku(Category category, IntConsumer action) 
+    {
+        catalog.getShelf(category).forEachSku(action);
+    }
+
+    // Shared with ShardRouter, which prints the same listing merged from every shard
+    static void printProducts(Category category, List<Item> inStockItems) 
+    {
+        System.out.println("\n--- " + category + " Products ---");
+        int productNumber = 1;
+        for (Item item : inStockItems) 
+        {
+            System.out.println(productNumber + ". " + item.getName() + " - " + Money.format(item.getPrice()) + " - Available: " + item.getQuantityAvailable());
+            productNumber++;
+        }
+    }
+
+    public Item getProductFromChoice(Category category, int choice) 
+  {
+        return catalog.getShelf(category).getInStock(choice);
+    }
+
+    public long calculateTotalDiscount(ShoppingCart cart) 
+  {
+        return calculateTotalDiscount(cart, promotions);
+    }
+
+    private long calculateTotalDiscount(ShoppingCart cart, PromotionEngine engine) 
+    {
+        long start = CheckoutMetrics.start();
+        long lineDiscounts = cart.getLineDiscounts(engine);
+        long totalDiscount = lineDiscounts + engine.spendDiscount(cart.calculateTotal() - lineDiscounts);
+        CheckoutMetrics.record(CheckoutMetrics.Operation.CALCULATE_TOTAL_DISCOUNT, start);
+        return totalDiscount;
+    }
+
+    // Prices the basket, from the quote cache when it is enabled and has this basket under the current versions
+    public PriceQuote quote(ShoppingCart cart) 
+    {
+        // Versions are read before pricing, so a quote racing a change is filed under the old version and never served
+        long catalog = catalogVersion;
+        long promotion = promotionVersion;
+        PriceQuote quote = quotes == null ? null : quotes.get(cart, catalog, promotion);
+        if (quote == null) 
+        {
+            PromotionEngine engine = promotions;
+            quote = new PriceQuote(cart.calculateTotal(), calculateTotalDiscount(cart, engine), engine);
+            if (quotes != null) 
+            {
+                quotes.put(cart, catalog, promotion, quote);
+            }
+        }
+        return quote;
+    }
+
+    public PriceQuoteCache getQuoteCache() 
+    {
+        return quotes;
+    }
+
+    public long getDiscountAmount(Item item, int quantity) 
+  {
+        return promotions.lineDiscount(item, quantity);
+    }
+
+    public void applyDiscount(CheckoutLane lane, TillInput input) throws IOException 
+  {
+        ShoppingCart cart = lane.getCart();
+        if (!discounts.isEmpty()) 
+        {
+            System.out.println("\n--- Available Discounts ---");
+            for (int i = 0; i < discounts.size(); i++) 
+            {
+                Discount discount = discounts.get(i);
+                System.out.println((i + 1) + ". " + discount.getName());
+            }
+            System.out.print("Enter discount number to apply: ");
+            int discountNumber = getIntegerInput(input);
+            if (discountNumber > 0 && discountNumber <= discounts.size()) 
+            {
+                Discount selectedDiscount = discounts.get(discountNumber - 1);
+                long totalDiscount = calculateTotalDiscount(cart);
+                long discountedTotal = cart.calculateTotal() - totalDiscount;
+                long newTotal = selectedDiscount.applyDiscount(discountedTotal);
+                lane.discounted(discountedTotal - newTotal);
+
+                System.out.println("Discount applied: " + selectedDiscount.getName());
+                System.out.println("New Total: " + Money.format(newTotal));
+            } 
+            else 
+            {
+                System.out.println("Invalid discount number.");
+            }
+        } 
+        else 
+        {
+            System.out.println("No discounts available.");
+        }
+    }
+
+    public void clearCart(CheckoutLane lane) 
+  {
+        lane.clear();
+        System.out.println("Cart cleared.");
+    }
+
+    private int getIntegerInput(TillInput input) throws IOException 
+  {
+        long value;
+        while ((value = input.nextNumber()) < Integer.MIN_VALUE || value > Integer.MAX_VALUE) 
+        {
+            System.out.println("Invalid input. Please enter a valid integer.");
+        }
+        return (int) value;
+    }
+
+    // Add more methods for the supermarket management system as needed
+}
+
+// TillInput class to read till input from a byte channel (stdin, a file or a socket) through one reused buffer
+// Numbers and scan records are parsed straight from the bytes, so a scan allocates nothing; text becomes a String
+// only when asked for. Every read consumes a whole line, so a number prompt never leaves the rest of its line behind.
+class TillInput implements Closeable 
+{
+    static final int END = -1;    // No more input
+    static final int BLANK = 0;   // An empty or all-whitespace line
+    static final int RECORD = 1;  // "code [quantity]", separated by spaces, tabs or a comma
+    static final int TEXT = 2;    // Anything else; see text()
+    static final long NOT_A_NUMBER = Long.MIN_VALUE;
+    private static final int MAX_DIGITS = 18; // Any run this long fits in a long
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer; // Unread bytes between position and limit
+    private boolean endOfInput;
+    private int lineStart; // The current line, without its terminator, valid until the next read
+    private int lineEnd;
+    private long code;
+    private int codeStart;
+    private int codeEnd;
+    private int quantity;
+    private boolean hasQuantity;
+
+    public TillInput(ReadableByteChannel channel, int bufferBytes) 
+    {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(bufferBytes);
+        buffer.flip();
+    }
+
+    public static TillInput stdin() 
+    {
+        return new TillInput(new FileInputStream(FileDescriptor.in).getChannel(), 8_192);
+    }
+
+    public static TillInput open(Path file) throws IOException 
+    {
+        return new TillInput(FileChannel.open(file, StandardOpenOption.READ), 1 << 16);
+    }
+
+    // "-" for standard input, "tcp:host:port" to connect to a scanner feed, anything else is a file
+    public static TillInput open(String source) throws IOException 
+    {
+        if (source.equals("-")) 
+        {
+            return stdin();
+        }
+        if (source.startsWith("tcp:")) 
+        {
+            int colon = source.lastIndexOf(':');
+            InetSocketAddress address = new InetSocketAddress(source.substring(4, colon), Integer.parseInt(source.substring(colon + 1)));
+            return new TillInput(SocketChannel.open(address), 1 << 16);
+        }
+        return open(Paths.get(source));
+    }
+
+    // Moves to the next line; false once the input is used up. A line longer than the buffer comes in pieces.
+    private boolean advance() throws IOException 
+    {
+        int scanFrom = buffer.position();
+        while (true) 
+        {
+            for (int i = scanFrom; i < buffer.limit(); i++) 
+            {
+                if (buffer.get(i) == '\n') 
+                {
+                    setLine(buffer.position(), i);
+                    buffer.position(i + 1);
+                    return true;
+                }
+            }
+            if (endOfInput || buffer.remaining() == buffer.capacity()) 
+            {
+                if (!buffer.hasRemaining()) 
+                {
+                    return false;
+                }
+                setLine(buffer.position(), buffer.limit());
+                buffer.position(buffer.limit());
+                return true;
+            }
+            scanFrom = buffer.remaining();
+            buffer.compact();
+            endOfInput = channel.read(buffer) < 0;
+            buffer.flip();
+        }
+    }
+
+    private void setLine(int start, int end) 
+    {
+        lineStart = start;
+        lineEnd = end > start && buffer.get(end - 1) == '\r' ? end - 1 : end;
+    }
+
+    // The next line as text, like Scanner.nextLine(); throws NoSuchElementException at the end of input
+    public String nextLine() throws IOException 
+    {
+        if (!advance()) 
+        {
+            throw new NoSuchElementException("No line found");
+        }
+        return text();
+    }
+
+    // The next line as a whole number, or NOT_A_NUMBER if it is anything else
+    public long nextNumber() throws IOException 
+    {
+        if (!advance()) 
+        {
+            throw new NoSuchElementException("No line found");
+        }
+        int i = skipSpaces(lineStart);
+        boolean negative = i < lineEnd && buffer.get(i) == '-';
+        int digitsStart = negative ? i + 1 : i;
+        int digitsEnd = digits(digitsStart);
+        if (digitsEnd == digitsStart || digitsEnd - digitsStart > MAX_DIGITS || skipSpaces(digitsEnd) != lineEnd) 
+        {
+            return NOT_A_NUMBER;
+        }
+        return negative ? -code : code;
+    }
+
+    // Reads and classifies the next line: END, BLANK, RECORD (see getCode() and getQuantity()) or TEXT
+    public int next() throws IOException 
+    {
+        if (!advance()) 
+        {
+            return END;
+        }
+        codeStart = skipSpaces(lineStart);
+        if (codeStart == lineEnd) 
+        {
+            return BLANK;
+        }
+        codeEnd = digits(codeStart);
+        long parsedCode = code;
+        if (codeEnd == codeStart || codeEnd - codeStart > MAX_DIGITS) 
+        {
+            return TEXT;
+        }
+        int i = skipSpaces(codeEnd);
+        hasQuantity = false;
+        quantity = 1;
+        if (i < lineEnd) 
+        {
+            if (i == codeEnd && buffer.get(i) != ',') 
+            {
+                return TEXT; // Something glued to the code, such as an email address
+            }
+            if (buffer.get(i) == ',') 
+            {
+                i = skipSpaces(i + 1);
+            }
+            int quantityEnd = digits(i);
+            if (quantityEnd == i || quantityEnd - i > 9 || skipSpaces(quantityEnd) != lineEnd) 
+            {
+                return TEXT;
+            }
+            quantity = (int) code;
+            hasQuantity = true;
+        }
+        code = parsedCode;
+        return RECORD;
+    }
+
+    private int skipSpaces(int from) 
+    {
+        int i = from;
+        while (i < lineEnd && (buffer.get(i) == ' ' || buffer.get(i) == '\t')) 
+        {
+            i++;
+        }
+        return i;
+    }
+
+    // Parses the digits starting at from into code and returns where they stop
+    private int digits(int from) 
+    {
+        long value = 0;
+        int i = from;
+        while (i < lineEnd && i - from < MAX_DIGITS + 1 && buffer.get(i) >= '0' && buffer.get(i) <= '9') 
+        {
+            value = value * 10 + (buffer.get(i) - '0');
+            i++;
+        }
+        code = value;
+        return i;
+    }
+
+    // The current line as text
+    public String text() 
+    {
+        return decode(lineStart, lineEnd);
+    }
+
+    public long getCode() 
+    {
+        return code;
+    }
+
+    public int getCodeDigits() 
+    {
+        return codeEnd - codeStart;
+    }
+
+    // The code as written, keeping leading zeros, for barcode lookups
+    public String codeText() 
+    {
+        return decode(codeStart, codeEnd);
+    }
+
+    // 1 when the record has no quantity
+    public int getQuantity() 
+    {
+        return quantity;
+    }
+
+    public boolean hasQuantity() 
+    {
+        return hasQuantity;
+    }
+
+    private String decode(int start, int end) 
+    {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(end).position(start);
+        return StandardCharsets.UTF_8.decode(slice).toString();
+    }
+
+    @Override
+    public void close() throws IOException 
+    {
+        channel.close();
+    }
+}
+
+// BatchBilling class to price files of scanned baskets without the menu, fanned out over a fork-join pool
+// A basket is the customer's email (or "-" for a guest) followed by "sku quantity" lines; blank lines separate baskets
+class BatchBilling 
+{
+    private static final int CHUNK_BASKETS = 1_024; // Baskets handed to the pool at a time
+    private static final int SPLIT_BASKETS = 64;    // Baskets a task prices without splitting further
+
+    private final Supermarket supermarket;
+    private final ForkJoinPool pool;
+    private final Semaphore chunksInFlight; // Bounds how far the reader can run ahead of pricing
+    private final ThreadLocal<ShoppingCart> carts = ThreadLocal.withInitial(ShoppingCart::new);
+    private final LongAdder baskets = new LongAdder();
+    private final LongAdder lines = new LongAdder();
+    private final LongAdder rejectedLines = new LongAdder();
+    private final LongAdder subtotal = new LongAdder();
+    private final LongAdder discounts = new LongAdder();
+    private final LongAdder tax = new LongAdder();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>(); // First error from any pricing task
+
+    public BatchBilling(Supermarket supermarket, int parallelism) 
+    {
+        this.supermarket = supermarket;
+        this.pool = new ForkJoinPool(parallelism);
+        this.chunksInFlight = new Semaphore(parallelism * 4);
+    }
+
+    // PriceChunk class to price a range of a chunk's baskets, splitting it in half while it is large
+    private class PriceChunk extends RecursiveAction 
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] skus;
+        private final int[] quantities;
+        private final int[] basketStarts; // Each basket's first line; one extra entry marks the end of the last basket
+        private final int from;
+        private final int to;
+        private final boolean root;
+
+        PriceChunk(int[] skus, int[] quantities, int[] basketStarts, int from, int to, boolean root) 
+        {
+            this.skus = skus;
+            this.quantities = quantities;
+            this.basketStarts = basketStarts;
+            this.from = from;
+            this.to = to;
+            this.root = root;
+        }
+
+        @Override
+        protected void compute() 
+        {
+            try 
+            {
+                if (to - from > SPLIT_BASKETS) 
+                {
+                    int middle = (from + to) >>> 1;
+                    invokeAll(new PriceChunk(skus, quantities, basketStarts, from, middle, false), new PriceChunk(skus, quantities, basketStarts, middle, to, false));
+                } else 
+                {
+                    for (int basket = from; basket < to; basket++) 
+                    {
+                        priceBasket(skus, quantities, basketStarts[basket], basketStarts[basket + 1]);
+                    }
+                }
+            } catch (RuntimeException | Error e) 
+            {
+                // Nobody joins a root chunk, so its failure (or any subtask's, rethrown by invokeAll) is kept for run()
+                if (root) 
+                {
+                    failure.compareAndSet(null, e);
+                }
+                throw e;
+            } finally 
+            {
+                if (root) 
+                {
+                    chunksInFlight.release();
+                }
+            }
+        }
+    }
+
+    public void run(Path file) throws IOException, InterruptedException 
+    {
+        long start = System.nanoTime();
+        // Lines are parsed as they are read, so a chunk is just its SKUs, quantities and basket boundaries
+        try (TillInput input = TillInput.open(file)) 
+        {
+            int[] skus = new int[CHUNK_BASKETS * 4];
+            int[] quantities = new int[skus.length];
+            int[] basketStarts = new int[CHUNK_BASKETS + 1];
+            int lineCount = 0;
+            int basketCount = 0;
+            boolean inBasket = false;
+            for (int kind; (kind = input.next()) != TillInput.END; ) 
+            {
+                if (kind == TillInput.BLANK) 
+                {
+                    inBasket = false;
+                    continue;
+                }
+                if (!inBasket) 
+                {
+                    if (basketCount == CHUNK_BASKETS) 
+                    {
+                        submit(skus, quantities, lineCount, basketStarts, basketCount);
+                        skus = new int[skus.length];
+                        quantities = new int[skus.length];
+                        lineCount = 0;
+                        basketCount = 0;
+                    }
+                    basketStarts[basketCount++] = lineCount;
+                    inBasket = true;
+                    continue; // The customer line; pricing does not depend on it
+                }
+                if (kind != TillInput.RECORD || !input.hasQuantity() || input.getCode() > Integer.MAX_VALUE) 
+                {
+                    rejectedLines.increment();
+                    continue;
+                }
+                if (lineCount == skus.length) 
+                {
+                    skus = Arrays.copyOf(skus, lineCount * 2);
+                    quantities = Arrays.copyOf(quantities, lineCount * 2);
+                }
+                skus[lineCount] = (int) input.getCode();
+                quantities[lineCount++] = input.getQuantity();
+            }
+            if (basketCount > 0) 
+            {
+                submit(skus, quantities, lineCount, basketStarts, basketCount);
+            }
+        }
+        int permits = pool.getParallelism() * 4;
+        chunksInFlight.acquire(permits); // Every chunk has been priced once all permits are back
+        chunksInFlight.release(permits);
+        pool.shutdown();
+        Throwable error = failure.get();
+        if (error != null) 
+        {
+            throw new IOException("Batch pricing failed: " + error, error);
+        }
+        report(System.nanoTime() - start);
+    }
+
+    // Hands the arrays over to the pool; the caller starts new ones
+    private void submit(int[] skus, int[] quantities, int lineCount, int[] basketStarts, int basketCount) throws InterruptedException 
+    {
+        int[] starts = Arrays.copyOf(basketStarts, basketCount + 1);
+        starts[basketCount] = lineCount;
+        chunksInFlight.acquire();
+        if (failure.get() != null) 
+        {
+            chunksInFlight.release();
+            return; // Pricing has already failed; run() reports it once the pool is idle
+        }
+        pool.execute(new PriceChunk(skus, quantities, starts, 0, basketCount, true));
+    }
+
+    // Builds the basket in this thread's reused cart and prices it with the normal discount and tax rules
+    private void priceBasket(int[] skus, int[] quantities, int from, int to) 
+    {
+        ShoppingCart cart = carts.get();
+        cart.clearCart();
+        for (int i = from; i < to; i++) 
+        {
+            Item item = supermarket.getProductBySku(skus[i]);
+            int quantity = quantities[i];
+            if (item == null || quantity <= 0) 
+            {
+                rejectedLines.increment();
+                continue;
+            }
+            cart.addItem(item, quantity);
+            lines.increment();
+        }
+        PriceQuote quote = supermarket.quote(cart);
+        baskets.increment();
+        subtotal.add(quote.subtotal);
+        discounts.add(quote.discount);
+        tax.add(quote.tax);
+    }
+
+    private void report(long elapsedNanos) 
+    {
+        double seconds = Math.max(1, elapsedNanos) / 1e9;
+        long net = subtotal.sum() - discounts.sum();
+        System.out.println("\n--- Batch Billing Report ---");
+        System.out.println("Baskets: " + baskets.sum() + " (" + lines.sum() + " lines, " + rejectedLines.sum() + " rejected)");
+        System.out.println("Subtotal: " + Money.format(subtotal.sum()));
+        System.out.println("Total Discounts: " + Money.format(discounts.sum()));
+        System.out.println("Tax: " + Money.format(tax.sum()));
+        System.out.println("Total: " + Money.format(net + tax.sum()));
+        System.out.printf("Elapsed: %.3f s - %.0f baskets/s on %d thread(s)%n", seconds, baskets.sum() / seconds, pool.getParallelism());
+    }
+}
+
+// Receipt class to snapshot what a receipt shows, so it can be rendered after the cart has moved on
+class Receipt 
+{
+    final long orderId;
+    final String customerName;
+    final String customerEmail;
+    final long timestamp;
+    final Item[] items;
+    final String[] itemNames;
+    final int[] quantities;
+    final long[] unitPrices;
+    final long[] lineTotals;
+    final long subtotal;
+    final long discount;
+    final long tax;
+    final long total;
+    final PromotionEngine promotions; // The rules the order was priced with
+
+    private Receipt(long orderId, String customerName, String customerEmail, ShoppingCart cart, PriceQuote quote) 
+    {
+        this.orderId = orderId;
+        this.customerName = customerName;
+        this.customerEmail = customerEmail;
+        this.timestamp = System.currentTimeMillis();
+        this.items = new Item[cart.size()];
+        this.itemNames = new String[cart.size()];
+        this.quantities = new int[cart.size()];
+        this.unitPrices = new long[cart.size()];
+        this.lineTotals = new long[cart.size()];
+        for (int line = 0; line < cart.size(); line++) 
+        {
+            items[line] = cart.getLineItem(line);
+            itemNames[line] = items[line].getName();
+            quantities[line] = cart.getLineQuantity(line);
+            unitPrices[line] = cart.getLinePrice(line);
+            lineTotals[line] = Money.times(unitPrices[line], quantities[line]);
+        }
+        this.subtotal = quote.subtotal;
+        this.discount = quote.discount;
+        this.tax = quote.tax;
+        this.total = quote.total;
+        this.promotions = quote.promotions;
+    }
+
+    // The cart's lines with the totals of a quote already made for it, such as the one an order was charged;
+    // order listeners such as SalesAnalytics attribute discounts with the same rules the charge used
+    public static Receipt of(long orderId, ShoppingCart cart, PriceQuote quote, String customerName, String customerEmail) 
+    {
+        return new Receipt(orderId, customerName, customerEmail, cart, quote);
+    }
+
+    // A receipt priced now, for showing a cart that is not being charged
+    public static Receipt of(long orderId, ShoppingCart cart, Supermarket supermarket, String customerName, String customerEmail) 
+    {
+        return of(orderId, cart, supermarket.quote(cart), customerName, customerEmail);
+    }
+}
+
+// ReceiptTemplate class to compile a ${field} template once into segments rendered straight into a buffer
+// ${items} ... ${end} repeats once per cart line; ${comma} inside it writes a comma after every line but the last
+class ReceiptTemplate 
+{
+    private static final List<String> FIELDS = Arrays.asList(
+        "order", "customer", "email", "date", "items", "name", "quantity", "lineTotal", "comma", "end",
+        "subtotal", "discount", "discountedTotal", "tax", "total");
+    private static final int LITERAL = -1;
+    private static final int ORDER = 0;
+    private static final int CUSTOMER = 1;
+    private static final int EMAIL = 2;
+    private static final int DATE = 3;
+    private static final int ITEMS = 4;
+    private static final int NAME = 5;
+    private static final int QUANTITY = 6;
+    private static final int LINE_TOTAL = 7;
+    private static final int COMMA = 8;
+    private static final int END = 9;
+    private static final int SUBTOTAL = 10;
+    private static final int DISCOUNT = 11;
+    private static final int DISCOUNTED_TOTAL = 12;
+    private static final int TAX = 13;
+    private static final int TOTAL = 14;
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy", Locale.US).withZone(ZoneId.systemDefault());
+
+    private final int[] kinds;
+    private final String[] literals;
+    private final int[] sectionEnds; // For an ${items} segment, the index of its ${end}
+
+    private ReceiptTemplate(int[] kinds, String[] literals, int[] sectionEnds) 
+    {
+        this.kinds = kinds;
+        this.literals = literals;
+        this.sectionEnds = sectionEnds;
+    }
+
+    public static ReceiptTemplate compile(String source) 
+    {
+        List<Integer> kinds = new ArrayList<>();
+        List<String> literals = new ArrayList<>();
+        int position = 0;
+        while (position < source.length()) 
+        {
+            int open = source.indexOf("${", position);
+            if (open < 0) 
+            {
+                open = source.length();
+            }
+            if (open > position) 
+            {
+                kinds.add(LITERAL);
+                literals.add(source.substring(position, open));
+            }
+            if (open == source.length()) 
+            {
+                break;
+            }
+            int close = source.indexOf('}', open);
+            int field = close < 0 ? -1 : FIELDS.indexOf(source.substring(open + 2, close));
+            if (field < 0) 
+            {
+                throw new IllegalArgumentException("Unknown receipt field at " + open + ": " + source.substring(open, Math.min(source.length(), open + 20)));
+            }
+            kinds.add(field);
+            literals.add(null);
+            position = close + 1;
+        }
+
+        int[] kindArray = new int[kinds.size()];
+        int[] sectionEnds = new int[kinds.size()];
+        int openSection = -1;
+        for (int i = 0; i < kindArray.length; i++) 
+        {
+            kindArray[i] = kinds.get(i);
+            if (kindArray[i] == ITEMS) 
+            {
+                if (openSection >= 0) 
+                {
+                    throw new IllegalArgumentException("Nested ${items} sections are not supported");
+                }
+                openSection = i;
+            } else if (kindArray[i] == END) 
+            {
+                if (openSection < 0) 
+                {
+                    throw new IllegalArgumentException("${end} without ${items}");
+                }
+                sectionEnds[openSection] = i;
+                openSection = -1;
+            }
+        }
+        if (openSection >= 0) 
+        {
+            throw new IllegalArgumentException("${items} without ${end}");
+        }
+        return new ReceiptTemplate(kindArray, literals.toArray(new String[0]), sectionEnds);
+    }
+
+    public void render(Receipt receipt, ReceiptFormat format, StringBuilder out, ReceiptRenderer.Buffers buffers) 
+    {
+        renderRange(receipt, format, out, buffers, 0, kinds.length, -1);
+    }
+
+    private void renderRange(Receipt receipt, ReceiptFormat format, StringBuilder out, ReceiptRenderer.Buffers buffers, int from, int to, int line) 
+    {
+        for (int i = from; i < to; i++) 
+        {
+            switch (kinds[i]) 
+            {
+                case LITERAL:
+                    out.append(literals[i]);
+                    break;
+                case ORDER:
+                    out.append(receipt.orderId);
+                    break;
+                case CUSTOMER:
+                    format.appendText(out, receipt.customerName);
+                    break;
+                case EMAIL:
+                    format.appendText(out, receipt.customerEmail);
+                    break;
+                case DATE:
+                    out.append(buffers.formatDate(receipt.timestamp));
+                    break;
+                case ITEMS:
+                    for (int item = 0; item < receipt.itemNames.length; item++) 
+                    {
+                        renderRange(receipt, format, out, buffers, i + 1, sectionEnds[i], item);
+                    }
+                    i = sectionEnds[i];
+                    break;
+                case NAME:
+                    format.appendText(out, receipt.itemNames[line]);
+                    break;
+                case QUANTITY:
+                    out.append(receipt.quantities[line]);
+                    break;
+                case LINE_TOTAL:
+                    format.appendMoney(out, receipt.lineTotals[line]);
+                    break;
+                case COMMA:
+                    if (line < receipt.itemNames.length - 1) 
+                    {
+                        out.append(',');
+                    }
+                    break;
+                case SUBTOTAL:
+                    format.appendMoney(out, receipt.subtotal);
+                    break;
+                case DISCOUNT:
+                    format.appendMoney(out, receipt.discount);
+                    break;
+                case DISCOUNTED_TOTAL:
+                    format.appendMoney(out, receipt.subtotal - receipt.discount);
+                    break;
+                case TAX:
+                    format.appendMoney(out, receipt.tax);
+                    break;
+                case TOTAL:
+                    format.appendMoney(out, receipt.total);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    static String formatDate(long timestamp) 
+    {
+        return DATE_FORMAT.format(Instant.ofEpochMilli(timestamp));
+    }
+}
+
+// Enum for receipt output targets, each with its precompiled template
+enum ReceiptFormat 
+{
+    TEXT(StandardCharsets.UTF_8,
+        "\n----- Receipt -----\n\nCustomer: ${customer}\nEmail: ${email}\nDate: ${date}\n\n--- Items ---\n"
+        + "${items}${name} - Quantity: ${quantity} - ${lineTotal}\n${end}"
+        + "\nSubtotal: ${subtotal}\nDiscounts: ${discount}\nTax: ${tax}\nTotal: ${total}\n--- Thank you for shopping with us! ---\n"),
+    JSON(StandardCharsets.UTF_8,
+        "{\"order\":${order},\"customer\":\"${customer}\",\"email\":\"${email}\",\"date\":\"${date}\",\"items\":["
+        + "${items}{\"name\":\"${name}\",\"quantity\":${quantity},\"lineTotal\":${lineTotal}}${comma}${end}"
+        + "],\"subtotal\":${subtotal},\"discount\":${discount},\"tax\":${tax},\"total\":${total}}\n"),
+    // ESC @ resets the printer, ESC a centers, ESC E toggles bold, GS V 1 feeds and cuts
+    ESC_POS(StandardCharsets.ISO_8859_1,
+        "\u001b@\u001ba\u0001\u001bE\u0001RECEIPT\u001bE\u0000\n\u001ba\u0000Order ${order}\n${customer}\n${date}\n\n"
+        + "${items}${name} x${quantity}  ${lineTotal}\n${end}"
+        + "\nSubtotal ${subtotal}\nDiscounts ${discount}\nTax ${tax}\n\u001bE\u0001TOTAL ${total}\u001bE\u0000\n\n\n\u001dV\u0001");
+
+    final Charset charset;
+    final ReceiptTemplate template;
+
+    ReceiptFormat(Charset charset, String template) 
+    {
+        this.charset = charset;
+        this.template = ReceiptTemplate.compile(template);
+    }
+
+    void appendText(StringBuilder out, String value) 
+    {
+        if (value == null) 
+        {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) 
+        {
+            char c = value.charAt(i);
+            if (this == JSON && (c == '"' || c == '\\')) 
+            {
+                out.append('\\').append(c);
+            } else if (c < 0x20) 
+            {
+                // Control characters would break JSON strings and could inject printer commands
+                if (this == JSON) 
+                {
+                    out.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+                } else 
+                {
+                    out.append(' ');
+                }
+            } else 
+            {
+                out.append(c);
+            }
+        }
+    }
+
+    void appendMoney(StringBuilder out, long cents) 
+    {
+        Money.appendTo(out, cents, this != JSON);
+    }
+}
+
+// ReceiptRenderer class to render receipts into buffers reused by each thread
+class ReceiptRenderer 
+{
+    // Buffers class to hold one thread's reusable text and byte buffers and its last formatted date
+    static class Buffers 
+    {
+        final StringBuilder text = new StringBuilder(1_024);
+        ByteBuffer bytes = ByteBuffer.allocate(4_096);
+        final CharsetEncoder encoder;
+        private long dateSecond = Long.MIN_VALUE;
+        private String date;
+
+        Buffers(Charset charset) 
+        {
+            encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        // Receipts printed within the same second share one formatted date
+        String formatDate(long timestamp) 
+        {
+            long second = timestamp / 1_000;
+            if (second != dateSecond) 
+            {
+                dateSecond = second;
+                date = ReceiptTemplate.formatDate(timestamp);
+            }
+            return date;
+        }
+    }
+
+    private final ReceiptFormat format;
+    private final ThreadLocal<Buffers> buffers;
+
+    public ReceiptRenderer(ReceiptFormat format) 
+    {
+        this.format = format;
+        this.buffers = ThreadLocal.withInitial(() -> new Buffers(format.charset));
+    }
+
+    public ReceiptFormat getFormat() 
+    {
+        return format;
+    }
+
+    // Renders using a custom template but this renderer's escaping and buffers
+    public ByteBuffer render(Receipt receipt, ReceiptTemplate template) 
+    {
+        Buffers local = buffers.get();
+        local.text.setLength(0);
+        template.render(receipt, format, local.text, local);
+        CharBuffer chars = CharBuffer.wrap(local.text);
+        while (true) 
+        {
+            local.bytes.clear();
+            local.encoder.reset();
+            CoderResult result = local.encoder.encode(chars, local.bytes, true);
+            if (!result.isOverflow()) 
+            {
+                local.encoder.flush(local.bytes);
+                break;
+            }
+            local.bytes = ByteBuffer.allocate(local.bytes.capacity() * 2);
+            chars.rewind();
+        }
+        local.bytes.flip();
+        return local.bytes;
+    }
+
+    // The returned buffer belongs to the calling thread and is overwritten by its next render
+    public ByteBuffer render(Receipt receipt) 
+    {
+        return render(receipt, format.template);
+    }
+}
+
+// ReceiptPrinter class to render and write receipts in batches on its own thread, off the checkout path
+class ReceiptPrinter implements Closeable, TillEventHandler 
+{
+    private static final int FLUSH_BYTES = 64 * 1_024;
+
+    private final WritableByteChannel channel;
+    private final ReceiptRenderer renderer;
+    private final ReceiptRenderer eventRenderer; // Used only by the pipeline's receipt stage
+    private ByteBuffer eventBatch = ByteBuffer.allocate(FLUSH_BYTES * 2);
+    private final LinkedBlockingQueue<Receipt> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final Object submitLock = new Object(); // Makes the closed check and the enqueue one step against close()
+    private volatile boolean closed;
+
+    public ReceiptPrinter(WritableByteChannel channel, ReceiptFormat format) 
+    {
+        this.channel = channel;
+        this.renderer = new ReceiptRenderer(format);
+        this.eventRenderer = new ReceiptRenderer(format);
+        this.writer = new Thread(this::writeLoop, "receipt-printer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public static ReceiptPrinter toFile(Path path, ReceiptFormat format) throws IOException 
+    {
+        return new ReceiptPrinter(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND), format);
+    }
+
+    // Receipts submitted after close() are dropped
+    public void submit(Receipt receipt) 
+    {
+        synchronized (submitLock) 
+        {
+            if (!closed) 
+            {
+                queue.add(receipt);
+            }
+        }
+    }
+
+    private void writeLoop() 
+    {
+        ByteBuffer batch = ByteBuffer.allocate(FLUSH_BYTES * 2);
+        while (!closed || !queue.isEmpty()) 
+        {
+            try 
+            {
+                Receipt receipt = queue.poll(100, TimeUnit.MILLISECONDS);
+                while (receipt != null) 
+                {
+                    batch = append(batch, renderer.render(receipt));
+                    receipt = batch.position() < FLUSH_BYTES ? queue.poll() : null;
+                }
+                flush(batch);
+            } catch (InterruptedException e) 
+            {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) 
+            {
+                System.err.println("Receipt printer: " + e.getMessage());
+                batch.clear();
+            }
+        }
+    }
+
+    // As a pipeline stage: renders the receipts carried by CONFIRM events, writing once per batch
+    @Override
+    public void onEvent(TillEvent event) 
+    {
+        if (event.type == TillEvent.CONFIRM && event.receipt != null) 
+        {
+            try 
+            {
+                eventBatch = append(eventBatch, eventRenderer.render(event.receipt));
+            } catch (IOException e) 
+            {
+                System.err.println("Receipt printer: " + e.getMessage());
+                eventBatch.clear();
+            }
+        }
+    }
+
+    @Override
+    public void onBatchEnd() 
+    {
+        if (eventBatch.position() > 0) 
+        {
+            try 
+            {
+                flush(eventBatch);
+            } catch (IOException e) 
+            {
+                System.err.println("Receipt printer: " + e.getMessage());
+                eventBatch.clear();
+            }
+        }
+    }
+
+    private ByteBuffer append(ByteBuffer batch, ByteBuffer rendered) throws IOException 
+    {
+        if (rendered.remaining() > batch.remaining()) 
+        {
+            flush(batch);
+            if (rendered.remaining() > batch.capacity()) 
+            {
+                batch = ByteBuffer.allocate(rendered.remaining() * 2);
+            }
+        }
+        return batch.put(rendered);
+    }
+
+    // Both the queue's writer and the pipeline stage write here, a whole batch at a time
+    private synchronized void flush(ByteBuffer batch) throws IOException 
+    {
+        batch.flip();
+        while (batch.hasRemaining()) 
+        {
+            channel.write(batch);
+        }
+        batch.clear();
+    }
+
+    // Writes out every receipt submitted so far, then closes the channel
+    @Override
+    public void close() throws IOException 
+    {
+        synchronized (submitLock) 
+        {
+            closed = true;
+        }
+        try 
+        {
+            writer.join();
+        } catch (InterruptedException e) 
+        {
+            Thread.currentThread().interrupt();
+        }
+        try 
+        {
+            // Anything the writer left behind, if it was interrupted, goes out from here
+            ByteBuffer batch = ByteBuffer.allocate(FLUSH_BYTES * 2);
+            for (Receipt receipt = writer.isAlive() ? null : queue.poll(); receipt != null; receipt = queue.poll()) 
+            {
+                batch = append(batch, renderer.render(receipt));
+            }
+            flush(batch);
+        } finally 
+        {
+            channel.close();
+        }
+    }
+}
+
+// OrderListener interface for stages fed by every confirmed order
+interface OrderListener 
+{
+    void orderConfirmed(Receipt receipt);
+}
+
+// SpaceSavingTopK class to track the best-selling SKUs in fixed space with the Space-Saving algorithm
+// Every SKU selling more than total / capacity units holds a slot, and its count is over by at most its error
+class SpaceSavingTopK 
+{
+    // Entry class for one tracked SKU in a query result
+    static final class Entry 
+    {
+        final int sku;
+        final long count;
+        final long error;
+
+        Entry(int sku, long count, long error) 
+        {
+            this.sku = sku;
+            this.count = count;
+            this.error = error;
+        }
+    }
+
+    // Min-heap on count, so the slot to take over is always at the root
+    private final int[] skus;
+    private final long[] counts;
+    private final long[] errors;
+    private final HashMap<Integer, Integer> slots = new HashMap<>();
+    private int size;
+
+    public SpaceSavingTopK(int capacity) 
+    {
+        skus = new int[capacity];
+        counts = new long[capacity];
+        errors = new long[capacity];
+    }
+
+    public void add(int sku, long weight) 
+    {
+        Integer slot = slots.get(sku);
+        if (slot != null) 
+        {
+            counts[slot] += weight;
+            siftDown(slot);
+        } else if (size < skus.length) 
+        {
+            skus[size] = sku;
+            counts[size] = weight;
+            errors[size] = 0;
+            slots.put(sku, size);
+            siftUp(size++);
+        } else 
+        {
+            // The newcomer inherits the smallest count as its possible overestimate
+            slots.remove(skus[0]);
+            skus[0] = sku;
+            errors[0] = counts[0];
+            counts[0] += weight;
+            slots.put(sku, 0);
+            siftDown(0);
+        }
+    }
+
+    public List<Entry> top(int k) 
+    {
+        List<Entry> entries = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) 
+        {
+            entries.add(new Entry(skus[i], counts[i], errors[i]));
+        }
+        entries.sort((a, b) -> Long.compare(b.count, a.count));
+        return entries.subList(0, Math.min(k, entries.size()));
+    }
+
+    private void siftUp(int slot) 
+    {
+        while (slot > 0 && counts[(slot - 1) / 2] > counts[slot]) 
+        {
+            swap(slot, (slot - 1) / 2);
+            slot = (slot - 1) / 2;
+        }
+    }
+
+    private void siftDown(int slot) 
+    {
+        while (true) 
+        {
+            int smallest = slot;
+            int left = 2 * slot + 1;
+            if (left < size && counts[left] < counts[smallest]) 
+            {
+                smallest = left;
+            }
+            if (left + 1 < size && counts[left + 1] < counts[smallest]) 
+            {
+                smallest = left + 1;
+            }
+            if (smallest == slot) 
+            {
+                return;
+            }
+            swap(slot, smallest);
+            slot = smallest;
+        }
+    }
+
+    private void swap(int a, int b) 
+    {
+        int sku = skus[a];
+        skus[a] = skus[b];
+        skus[b] = sku;
+        long count = counts[a];
+        counts[a] = counts[b];
+        counts[b] = count;
+        long error = errors[a];
+        errors[a] = errors[b];
+        errors[b] = error;
+        slots.put(skus[a], a);
+        slots.put(skus[b], b);
+    }
+}
+
+// CountMinSketch class to estimate any SKU's units sold in fixed space; estimates never undercount
+class CountMinSketch 
+{
+    private final long[][] rows;
+    private final int mask;
+
+    // Width is rounded up to a power of two
+    public CountMinSketch(int depth, int width) 
+    {
+        int size = Integer.highestOneBit(Math.max(1, width - 1)) << 1;
+        rows = new long[depth][size];
+        mask = size - 1;
+    }
+
+    private int column(int row, int key) 
+    {
+        int hash = (key + row * 0x632BE5AB) * 0x9E3779B9;
+        return (hash ^ (hash >>> 15)) & mask;
+    }
+
+    public void add(int key, long count) 
+    {
+        for (int row = 0; row < rows.length; row++) 
+        {
+            rows[row][column(row, key)] += count;
+        }
+    }
+
+    public long estimate(int key) 
+    {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < rows.length; row++) 
+        {
+            estimate = Math.min(estimate, rows[row][column(row, key)]);
+        }
+        return estimate;
+    }
+}
+
+// SalesAnalytics class to keep running sales figures over confirmed orders, updated on its own thread
+// Memory is fixed: exact totals per category and discount, sketches per SKU and a ring of hourly windows
+class SalesAnalytics implements OrderListener, Closeable 
+{
+    private static final int QUEUE_CAPACITY = 65_536;
+    private static final int BATCH = 256;
+    private static final int HOURS = 24;
+    private static final long HOUR_MILLIS = 3_600_000;
+
+    private final ArrayBlockingQueue<Receipt> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong(); // Orders not counted because the queue was full
+    private final Thread consumer;
+    private volatile boolean closed;
+
+    // Guarded by this
+    private long orders;
+    private long revenue;
+    private long discountsGiven;
+    private final long[] categoryRevenue = new long[Category.values().length];
+    private final long[] categoryUnits = new long[Category.values().length];
+    private final SpaceSavingTopK topSkus = new SpaceSavingTopK(256);
+    private final CountMinSketch skuUnits = new CountMinSketch(4, 8_192);
+    private final LinkedHashMap<Discount, long[]> discountUsage = new LinkedHashMap<>(); // {times applied, cents}
+    private final long[] windowHour = new long[HOURS];
+    private final long[] windowOrders = new long[HOURS];
+    private final long[] windowRevenue = new long[HOURS];
+
+    public SalesAnalytics() 
+    {
+        Arrays.fill(windowHour, -1);
+        consumer = new Thread(this::consumeLoop, "sales-analytics");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    // Never blocks the till: if the analytics thread falls this far behind, the order is counted as dropped
+    @Override
+    public void orderConfirmed(Receipt receipt) 
+    {
+        if (closed || !queue.offer(receipt)) 
+        {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void consumeLoop() 
+    {
+        List<Receipt> batch = new ArrayList<>(BATCH);
+        while (!closed || !queue.isEmpty()) 
+        {
+            try 
+            {
+                Receipt first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) 
+                {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, BATCH - 1);
+                synchronized (this) 
+                {
+                    for (Receipt receipt : batch) 
+                    {
+                        apply(receipt);
+                    }
+                }
+                batch.clear();
+            } catch (InterruptedException e) 
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void apply(Receipt receipt) 
+    {
+        orders++;
+        revenue += receipt.total;
+        discountsGiven += receipt.discount;
+        countInWindow(receipt);
+
+        long lineDiscounts = 0;
+        for (int line = 0; line < receipt.items.length; line++) 
+        {
+            Item item = receipt.items[line];
+            int quantity = receipt.quantities[line];
+            categoryRevenue[item.getCategory().ordinal()] += receipt.lineTotals[line];
+            categoryUnits[item.getCategory().ordinal()] += quantity;
+            topSkus.add(item.getSku(), quantity);
+            skuUnits.add(item.getSku(), quantity);
+            if (receipt.promotions != null) 
+            {
+                lineDiscounts += receipt.promotions.lineDiscount(item, receipt.unitPrices[line], quantity);
+                receipt.promotions.forEachLineRule(item, receipt.unitPrices[line], quantity, this::countDiscount);
+            }
+        }
+        if (receipt.promotions != null) 
+        {
+            receipt.promotions.forEachSpendRule(receipt.subtotal - lineDiscounts, this::countDiscount);
+        }
+    }
+
+    private void countInWindow(Receipt receipt) 
+    {
+        long hour = receipt.timestamp / HOUR_MILLIS;
+        int window = (int) (hour % HOURS);
+        if (windowHour[window] > hour) 
+        {
+            return; // Older than the ring reaches
+        }
+        if (windowHour[window] != hour) 
+        {
+            windowHour[window] = hour;
+            windowOrders[window] = 0;
+            windowRevenue[window] = 0;
+        }
+        windowOrders[window]++;
+        windowRevenue[window] += receipt.total;
+    }
+
+    private void countDiscount(Discount discount, long amount) 
+    {
+        long[] usage = discountUsage.computeIfAbsent(discount, d -> new long[2]);
+        usage[0]++;
+        usage[1] += amount;
+    }
+
+    public synchronized long getOrders() 
+    {
+        return orders;
+    }
+
+    public synchronized long getRevenue() 
+    {
+        return revenue;
+    }
+
+    public synchronized long getCategoryRevenue(Category category) 
+    {
+        return categoryRevenue[category.ordinal()];
+    }
+
+    public synchronized long getCategoryUnits(Category category) 
+    {
+        return categoryUnits[category.ordinal()];
+    }
+
+    public synchronized List<SpaceSavingTopK.Entry> getTopSkus(int k) 
+    {
+        return topSkus.top(k);
+    }
+
+    // Upper bound on units sold of any SKU, best sellers or not
+    public synchronized long estimateUnitsSold(int sku) 
+    {
+        return skuUnits.estimate(sku);
+    }
+
+    public long getDroppedOrders() 
+    {
+        return dropped.get();
+    }
+
+    // Appends the figures as JSON, naming the best sellers from the catalog
+    public synchronized void appendJson(StringBuilder json, int topK, Supermarket supermarket) 
+    {
+        json.append("{\"orders\":").append(orders).append(",\"revenue\":");
+        Money.appendTo(json, revenue, false);
+        json.append(",\"discounts\":");
+        Money.appendTo(json, discountsGiven, false);
+        json.append(",\"dropped\":").append(dropped.get()).append(",\"categories\":[");
+        for (Category category : Category.values()) 
+        {
+            json.append(category.ordinal() == 0 ? "" : ",").append("{\"name\":\"").append(category).append("\",\"revenue\":");
+            Money.appendTo(json, categoryRevenue[category.ordinal()], false);
+            json.append(",\"units\":").append(categoryUnits[category.ordinal()]).append('}');
+        }
+        json.append("],\"topSkus\":[");
+        List<SpaceSavingTopK.Entry> top = topSkus.top(topK);
+        for (int i = 0; i < top.size(); i++) 
+        {
+            Item item = supermarket.getProductBySku(top.get(i).sku);
+            json.append(i == 0 ? "" : ",").append("{\"sku\":").append(top.get(i).sku).append(",\"name\":\"");
+            ReceiptFormat.JSON.appendText(json, item == null ? "" : item.getName());
+            json.append("\",\"units\":").append(top.get(i).count).append(",\"maxOvercount\":").append(top.get(i).error).append('}');
+        }
+        json.append("],\"discountUsage\":[");
+        boolean first = true;
+        for (Map.Entry<Discount, long[]> usage : discountUsage.entrySet()) 
+        {
+            json.append(first ? "" : ",").append("{\"name\":\"");
+            ReceiptFormat.JSON.appendText(json, usage.getKey().getName());
+            json.append("\",\"applied\":").append(usage.getValue()[0]).append(",\"amount\":");
+            Money.appendTo(json, usage.getValue()[1], false);
+            json.append('}');
+            first = false;
+        }
+        json.append("],\"hours\":[");
+        first = true;
+        for (long hour : recentHours()) 
+        {
+            int window = (int) (hour % HOURS);
+            json.append(first ? "" : ",").append("{\"start\":\"").append(Instant.ofEpochMilli(hour * HOUR_MILLIS)).append("\",\"orders\":").append(windowOrders[window]).append(",\"revenue\":");
+            Money.appendTo(json, windowRevenue[window], false);
+            json.append('}');
+            first = false;
+        }
+        json.append("]}");
+    }
+
+    public synchronized String report(int topK, Supermarket supermarket) 
+    {
+        StringBuilder out = new StringBuilder(1_024);
+        out.append("\n--- Sales Report ---\n");
+        out.append("Orders: ").append(orders).append("  Revenue: ").append(Money.format(revenue)).append("  Discounts: ").append(Money.format(discountsGiven)).append('\n');
+        for (Category category : Category.values()) 
+        {
+            out.append(String.format("%-16s %10s  %d units%n", category, Money.format(categoryRevenue[category.ordinal()]), categoryUnits[category.ordinal()]));
+        }
+        out.append("Best sellers:\n");
+        for (SpaceSavingTopK.Entry entry : topSkus.top(topK)) 
+        {
+            Item item = supermarket.getProductBySku(entry.sku);
+            out.append("  ").append(item == null ? "SKU " + entry.sku : item.getName()).append(": ").append(entry.count).append(" units\n");
+        }
+        out.append("Discounts applied:\n");
+        for (Map.Entry<Discount, long[]> usage : discountUsage.entrySet()) 
+        {
+            out.append("  ").append(usage.getKey().getName()).append(": ").append(usage.getValue()[0]).append(" times, ").append(Money.format(usage.getValue()[1])).append('\n');
+        }
+        return out.toString();
+    }
+
+    // Hours in the ring, oldest first
+    private List<Long> recentHours() 
+    {
+        List<Long> hours = new ArrayList<>();
+        for (long hour : windowHour) 
+        {
+            if (hour >= 0) 
+            {
+                hours.add(hour);
+            }
+        }
+        Collections.sort(hours);
+        return hours;
+    }
+
+    // Counts every order confirmed so far, then stops the analytics thread
+    @Override
+    public void close() 
+    {
+        closed = true;
+        try 
+        {
+            consumer.join();
+        } catch (InterruptedException e) 
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+// TimingWheel class to fire deadlines at O(1) cost per timer however many are pending, as four levels of 64 slots
+// Each slot of a level spans one full turn of the level below, and its timers cascade down when it comes round.
+// Not thread-safe: a single thread schedules and advances it.
+final class TimingWheel<T> 
+{
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+    private static final long SPAN = 1L << (SLOT_BITS * LEVELS); // Ticks the wheels cover; later timers go round again
+
+    // Timer class for one pending deadline, chained both ways within its slot so it can be cancelled in place
+    static final class Timer<T> 
+    {
+        final T value;
+        final long deadline;
+        private Timer<T> previous;
+        private Timer<T> next;
+        private int level = -1; // Where it is filed; -1 once fired or cancelled
+        private int slot;
+
+        Timer(T value, long deadline) 
+        {
+            this.value = value;
+            this.deadline = deadline;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"}) // Generic arrays cannot be created directly
+    private final Timer<T>[][] slots = new Timer[LEVELS][SLOTS];
+    private long now; // Last tick fired
+    private int size;
+
+    public TimingWheel(long startTick) 
+    {
+        this.now = startTick;
+    }
+
+    public int size() 
+    {
+        return size;
+    }
+
+    // Deadlines already passed fire on the next tick; the timer returned can be cancelled until it fires
+    public Timer<T> schedule(T value, long deadlineTick) 
+    {
+        Timer<T> timer = new Timer<>(value, Math.max(deadlineTick, now + 1));
+        insert(timer);
+        size++;
+        return timer;
+    }
+
+    // Returns false if the timer already fired or was cancelled
+    public boolean cancel(Timer<T> timer) 
+    {
+        if (timer.level < 0) 
+        {
+            return false;
+        }
+        if (timer.previous == null) 
+        {
+            slots[timer.level][timer.slot] = timer.next;
+        } else 
+        {
+            timer.previous.next = timer.next;
+        }
+        if (timer.next != null) 
+        {
+            timer.next.previous = timer.previous;
+        }
+        timer.previous = null;
+        timer.next = null;
+        timer.level = -1;
+        size--;
+        return true;
+    }
+
+    // Fires every timer due up to and including tick, in tick order
+    public void advance(long tick, Consumer<T> expired) 
+    {
+        while (now < tick) 
+        {
+            now++;
+            // Cascade the highest level whose turn just completed first, so lower levels receive its timers in time
+            int levels = 1;
+            while (levels < LEVELS && (now & ((1L << (SLOT_BITS * levels)) - 1)) == 0) 
+            {
+                levels++;
+            }
+            for (int level = levels - 1; level > 0; level--) 
+            {
+                Timer<T> timer = detach(level, (int) (now >>> (SLOT_BITS * level)) & (SLOTS - 1));
+                while (timer != null) 
+                {
+                    Timer<T> next = timer.next;
+                    insert(timer);
+                    timer = next;
+                }
+            }
+            Timer<T> timer = detach(0, (int) now & (SLOTS - 1));
+            while (timer != null) 
+            {
+                Timer<T> next = timer.next;
+                if (timer.deadline > now) 
+                {
+                    insert(timer); // Beyond the wheels' span when scheduled
+                } else 
+                {
+                    timer.level = -1;
+                    timer.next = null;
+                    size--;
+                    expired.accept(timer.value);
+                }
+                timer = next;
+            }
+        }
+    }
+
+    private Timer<T> detach(int level, int slot) 
+    {
+        Timer<T> head = slots[level][slot];
+        slots[level][slot] = null;
+        return head;
+    }
+
+    // The lowest level whose slot still lies ahead of now within the current turn of the level above
+    private void insert(Timer<T> timer) 
+    {
+        long tick = Math.min(timer.deadline, now + SPAN - 1);
+        int level = 0;
+        while (level < LEVELS - 1 && (tick >>> (SLOT_BITS * (level + 1))) != (now >>> (SLOT_BITS * (level + 1)))) 
+        {
+            level++;
+        }
+        int slot = (int) (tick >>> (SLOT_BITS * level)) & (SLOTS - 1);
+        Timer<T> head = slots[level][slot];
+        timer.previous = null;
+        timer.next = head;
+        if (head != null) 
+        {
+            head.previous = timer;
+        }
+        timer.level = level;
+        timer.slot = slot;
+        slots[level][slot] = timer;
+    }
+}
+
+// SessionManager class to give every shopper their own session and lane, so many can shop at once without sharing state
+// Sessions sit in a concurrent map and each is locked on its own; a customer's cart is parked on their account when
+// they log out or go idle too long, and restored (as far as stock allows) the next time they log in. Given the
+// supermarket, the parked cart is also written out with the customer's purchase history, so it outlives a restart.
+// Idle deadlines sit in a TimingWheel, so expiring sessions never scans the live ones: a deadline that comes round
+// for a session used since is simply rescheduled from its last use, and a logout cancels its session's deadline.
+class SessionManager implements Closeable 
+{
+    // Session class for one shopper: who they are, their lane and when they were last seen
+    // Lock the session while using its lane, and check isClosed() first: an expired session's stock is already back on the shelf
+    static final class Session 
+    {
+        private final String id;
+        private final User user; // Null for guests
+        private final CheckoutLane lane = new CheckoutLane();
+        private volatile long lastUsed = System.nanoTime();
+        private boolean closed;
+        private int unavailableLines; // Parked lines that could not be restored at login
+        private TimingWheel.Timer<Session> deadline; // Only touched by the sweeper thread
+
+        Session(String id, User user) 
+        {
+            this.id = id;
+            this.user = user;
+        }
+
+        public String getId() 
+        {
+            return id;
+        }
+
+        public User getUser() 
+        {
+            return user;
+        }
+
+        public CheckoutLane getLane() 
+        {
+            return lane;
+        }
+
+        public synchronized boolean isClosed() 
+        {
+            return closed;
+        }
+
+        public int getUnavailableLines() 
+        {
+            return unavailableLines;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Supermarket supermarket; // Where parked carts are stored; null keeps them in memory only
+    private final SecureRandom random = new SecureRandom();
+    private final long idleNanos;
+    private final long tickNanos;
+    private final long origin = System.nanoTime();
+    private final ScheduledExecutorService sweeper;
+    private final TimingWheel<Session> deadlines; // Only touched by the sweeper thread
+    private final ConcurrentLinkedQueue<Session> opened = new ConcurrentLinkedQueue<>(); // Waiting for their first deadline
+    private final ConcurrentLinkedQueue<Session> ended = new ConcurrentLinkedQueue<>(); // Logged out; deadline still filed
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder reclaimedUnits = new LongAdder();
+
+    // Sessions idle for idleSeconds are ended; 0 keeps them until logout. Parked carts stay in memory only.
+    public SessionManager(long idleSeconds) 
+    {
+        this(idleSeconds, null);
+    }
+
+    public SessionManager(long idleSeconds, Supermarket supermarket) 
+    {
+        this.supermarket = supermarket;
+        this.idleNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
+        // About 64 ticks per timeout, but never finer than 10 ms or coarser than a second
+        this.tickNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(10), Math.min(TimeUnit.SECONDS.toNanos(1), idleNanos / 64));
+        if (idleSeconds <= 0) 
+        {
+            sweeper = null;
+            deadlines = null;
+            return;
+        }
+        deadlines = new TimingWheel<>(0);
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> 
+        {
+            Thread thread = new Thread(runnable, "session-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // Idle timeout from -Dsupermarket.session.idle seconds, 30 minutes by default
+    static SessionManager configured(Supermarket supermarket) 
+    {
+        return new SessionManager(Long.getLong("supermarket.session.idle", 1_800), supermarket);
+    }
+
+    // Opens a session for a customer, or for a guest when user is null, restoring any cart they parked
+    public Session open(User user) 
+    {
+        byte[] token = new byte[16];
+        random.nextBytes(token);
+        StringBuilder hex = new StringBuilder(32);
+        for (byte b : token) 
+        {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        Session session = new Session(hex.toString(), user);
+        if (user != null) 
+        {
+            synchronized (user) 
+            {
+                ShoppingCart parked = user.getCart();
+                if (parked.isEmpty() && supermarket != null) 
+                {
+                    // After a restart the copy on disk is all that is left
+                    int[] stored = supermarket.getParkedCart(user);
+                    for (int i = 0; i < stored.length; i += 2) 
+                    {
+                        Item item = supermarket.getProductBySku(stored[i]);
+                        if (item == null) 
+                        {
+                            session.unavailableLines++; // No longer sold
+                        } else 
+                        {
+                            parked.addItem(item, stored[i + 1]);
+                        }
+                    }
+                }
+                boolean hadParked = !parked.isEmpty() || session.unavailableLines > 0;
+                for (int line = 0; line < parked.size(); line++) 
+                {
+                    if (!session.lane.addItem(parked.getLineItem(line), parked.getLineQuantity(line))) 
+                    {
+                        session.unavailableLines++;
+                    }
+                }
+                parked.clearCart();
+                if (hadParked && supermarket != null) 
+                {
+                    supermarket.parkCart(user, parked); // The lines are back in a lane, so the stored copy goes
+                }
+            }
+        }
+        sessions.put(session.id, session);
+        if (deadlines != null) 
+        {
+            opened.add(session);
+        }
+        return session;
+    }
+
+    // The live session with this id, marked as used; null if unknown, logged out or expired
+    public Session get(String id) 
+    {
+        Session session = sessions.get(id);
+        if (session == null) 
+        {
+            return null;
+        }
+        session.lastUsed = System.nanoTime();
+        return session;
+    }
+
+    // Ends a session; the customer's cart is parked on their account and its stock goes back on the shelf
+    public boolean close(String id) 
+    {
+        Session session = sessions.remove(id);
+        if (session == null) 
+        {
+            return false;
+        }
+        end(session);
+        return true;
+    }
+
+    public int size() 
+    {
+        return sessions.size();
+    }
+
+    public long getExpiredCount() 
+    {
+        return expired.sum();
+    }
+
+    // Units of stock returned to the shelves from expired sessions' carts
+    public long getReclaimedUnits() 
+    {
+        return reclaimedUnits.sum();
+    }
+
+    private long tickOf(long nanoTime) 
+    {
+        return (nanoTime - origin + tickNanos - 1) / tickNanos;
+    }
+
+    // One tick: files new sessions' deadlines, then ends those idle past the timeout and returns their stock together
+    void sweep() 
+    {
+        for (Session session; (session = opened.poll()) != null; ) 
+        {
+            session.deadline = deadlines.schedule(session, tickOf(session.lastUsed + idleNanos));
+        }
+        // Logged-out sessions leave the wheel now rather than when their deadline comes round
+        for (Session session; (session = ended.poll()) != null; ) 
+        {
+            if (session.deadline != null) 
+            {
+                deadlines.cancel(session.deadline);
+                session.deadline = null;
+            }
+        }
+        List<Session> due = new ArrayList<>();
+        deadlines.advance((System.nanoTime() - origin) / tickNanos, due::add);
+        Map<Item, int[]> reclaimed = new IdentityHashMap<>();
+        List<User> parked = new ArrayList<>();
+        for (Session session : due) 
+        {
+            session.deadline = null;
+            synchronized (session) 
+            {
+                if (session.closed) 
+                {
+                    continue; // Logged out; nothing to reschedule
+                }
+                // Requests touch lastUsed before taking the lock, so one still in flight keeps the session alive
+                long lastUsed = session.lastUsed;
+                if (System.nanoTime() - lastUsed <= idleNanos) 
+                {
+                    session.deadline = deadlines.schedule(session, tickOf(lastUsed + idleNanos));
+                    continue;
+                }
+                sessions.remove(session.id, session);
+                retire(session, reclaimed, parked);
+            }
+            expired.increment();
+        }
+        release(reclaimed);
+        store(parked);
+    }
+
+    private void end(Session session) 
+    {
+        Map<Item, int[]> reclaimed = new IdentityHashMap<>();
+        List<User> parked = new ArrayList<>(1);
+        synchronized (session) 
+        {
+            retire(session, reclaimed, parked);
+        }
+        release(reclaimed);
+        store(parked);
+        if (deadlines != null) 
+        {
+            ended.add(session);
+        }
+    }
+
+    // Closes the session, parks a customer's cart and adds its reserved quantities to the tally; call holding its lock.
+    // Customers whose parked cart changed are added to parked, to be stored once the lock is released.
+    private void retire(Session session, Map<Item, int[]> reclaimed, List<User> parked) 
+    {
+        if (session.closed) 
+        {
+            return;
+        }
+        session.closed = true;
+        ShoppingCart cart = session.lane.getCart();
+        if (session.user != null && !cart.isEmpty()) 
+        {
+            synchronized (session.user) 
+            {
+                ShoppingCart parkedCart = session.user.getCart();
+                for (int line = 0; line < cart.size(); line++) 
+                {
+                    parkedCart.addItem(cart.getLineItem(line), cart.getLineQuantity(line));
+                }
+            }
+            parked.add(session.user);
+        }
+        session.lane.handOver((item, quantity) -> reclaimed.computeIfAbsent(item, key -> new int[1])[0] += quantity);
+    }
+
+    // Writes out each customer's parked cart as it stands now, so a later login that already took it back wins
+    private void store(List<User> parked) 
+    {
+        if (supermarket == null) 
+        {
+            return;
+        }
+        for (User user : parked) 
+        {
+            synchronized (user) 
+            {
+                supermarket.parkCart(user, user.getCart());
+            }
+        }
+    }
+
+    // One release per item however many carts held it, so hot items see one stock update per tick
+    private void release(Map<Item, int[]> reclaimed) 
+    {
+        for (Map.Entry<Item, int[]> entry : reclaimed.entrySet()) 
+        {
+            entry.getKey().release(entry.getValue()[0]);
+            reclaimedUnits.add(entry.getValue()[0]);
+        }
+    }
+
+    // Stops the sweeper and ends every open session
+    @Override
+    public void close() 
+    {
+        if (sweeper != null) 
+        {
+            sweeper.shutdownNow();
+            try 
+            {
+                sweeper.awaitTermination(5, TimeUnit.SECONDS); // A sweep in progress finishes returning its stock
+            } catch (InterruptedException e) 
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (String id : new ArrayList<>(sessions.keySet())) 
+        {
+            close(id);
+        }
+    }
+}
+
+// CheckoutApi class to serve login, browsing, cart and checkout as a local HTTP/JSON API with per-session carts
+// Parameters come as a query string or a form-encoded body; the session token goes in the "session" parameter
+class CheckoutApi 
+{
+    private static final int DEFAULT_PAGE = 50;
+
+    private final Supermarket supermarket;
+    private final SalesAnalytics analytics; // Null unless analytics are enabled
+    private final SessionManager sessions;
+    private HttpServer server;
+
+    public CheckoutApi(Supermarket supermarket, SalesAnalytics analytics) 
+    {
+        this.supermarket = supermarket;
+        this.analytics = analytics;
+        this.sessions = SessionManager.configured(supermarket);
+    }
+
+    public void start(int port) throws IOException 
+    {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1_024);
+        server.setExecutor(requestExecutor());
+        server.createContext("/login", exchange -> handle(exchange, this::login));
+        server.createContext("/register", exchange -> handle(exchange, this::register));
+        server.createContext("/guest", exchange -> handle(exchange, this::guest));
+        server.createContext("/logout", exchange -> handle(exchange, this::logout));
+        server.createContext("/categories", exchange -> handle(exchange, this::categories));
+        server.createContext("/search", exchange -> handle(exchange, this::search));
+        server.createContext("/cart", exchange -> handle(exchange, this::cart));
+        server.createContext("/sales", exchange -> handle(exchange, this::sales));
+        server.createContext("/quotes", exchange -> handle(exchange, this::quotes));
+        server.createContext("/history", exchange -> handle(exchange, this::history));
+        server.createContext("/favorites", exchange -> handle(exchange, this::favorites));
+        server.start();
+        System.out.println("Checkout API listening on http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    public void stop() 
+    {
+        server.stop(0);
+        sessions.close();
+    }
+
+    // One virtual thread per request on Java 21+; a bounded platform pool on older runtimes
+    private static ExecutorService requestExecutor() 
+    {
+        try 
+        {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) 
+        {
+            return Executors.newFixedThreadPool(Math.max(16, Runtime.getRuntime().availableProcessors() * 8));
+        }
+    }
+
+    // ApiException class to turn a failed request into an HTTP status and a JSON error
+    private static class ApiException extends Exception 
+    {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        ApiException(int status, String message) 
+        {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    // Handler interface for one endpoint: reads parameters, writes the JSON body, returns the status
+    private interface Handler 
+    {
+        int handle(HttpExchange exchange, Map<String, String> parameters, StringBuilder json) throws ApiException;
+    }
+
+    private void handle(HttpExchange exchange, Handler handler) throws IOException 
+    {
+        StringBuilder json = new StringBuilder(256);
+        int status;
+        try 
+        {
+            status = handler.handle(exchange, parameters(exchange), json);
+        } catch (ApiException e) 
+        {
+            status = e.status;
+            json.setLength(0);
+            json.append("{\"error\":\"");
+            ReceiptFormat.JSON.appendText(json, e.getMessage());
+            json.append("\"}");
+        } catch (RuntimeException e) 
+        {
+            status = 500;
+            json.setLength(0);
+            json.append("{\"error\":\"internal error\"}");
+        }
+        byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) 
+        {
+            out.write(body);
+        }
+    }
+
+    private static Map<String, String> parameters(HttpExchange exchange) throws IOException 
+    {
+        Map<String, String> parameters = new HashMap<>();
+        addParameters(parameters, exchange.getRequestURI().getRawQuery());
+        try (InputStream in = exchange.getRequestBody()) 
+        {
+            addParameters(parameters, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+
+    private static void addParameters(Map<String, String> parameters, String encoded) 
+    {
+        if (encoded == null || encoded.isEmpty()) 
+        {
+            return;
+        }
+        for (String pair : encoded.split("&")) 
+        {
+            int equals = pair.indexOf('=');
+            if (equals > 0) 
+            {
+                parameters.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8), URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static void requirePost(HttpExchange exchange) throws ApiException 
+    {
+        if (!exchange.getRequestMethod().equals("POST")) 
+        {
+            throw new ApiException(405, "use POST");
+        }
+    }
+
+    private static String required(Map<String, String> parameters, String name) throws ApiException 
+    {
+        String value = parameters.get(name);
+        if (value == null || value.isEmpty()) 
+        {
+            throw new ApiException(400, "missing parameter: " + name);
+        }
+        return value;
+    }
+
+    private static int intParameter(Map<String, String> parameters, String name, int defaultValue) throws ApiException 
+    {
+        String value = parameters.get(name);
+        try 
+        {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) 
+        {
+            throw new ApiException(400, "not a number: " + name);
+        }
+    }
+
+    private SessionManager.Session session(Map<String, String> parameters) throws ApiException 
+    {
+        SessionManager.Session session = sessions.get(required(parameters, "session"));
+        if (session == null) 
+        {
+            throw new ApiException(401, "unknown or expired session");
+        }
+        return session;
+    }
+
+    private String openSession(User user) 
+    {
+        return sessions.open(user).getId();
+    }
+
+    private int login(HttpExchange exchange, Map<String, String> parameters, StringBuilder json) throws ApiException 
+    {
+        requirePost(exchange);
+        // A returning client may present the login token from an earlier password login instead of the password
+        String token = parameters.get("login");
+        User user;
+        if (token != null) 
+        {
+            user = supermarket.resumeLogin(token);
+            if (user == null) 
+            {
+                throw new ApiException(401, "unknown or expired login token; log in with email and password");
+            }
+        } else 
+        {
+            user = supermarket.authenticate(required(parameters, "email"), required(parameters, "password"));
+            if (user == null) 
+            {
+                throw new ApiException(401, "invalid email or password");
+            }
+            token = supermarket.rememberLogin(user);
+        }
+        json.append("{\"session\":\"").append(openSession(user)).append("\",\"login\":\"").append(token).append("\",\"name\":\"");
+        ReceiptFormat.JSON.appendText(json, user.getName());
+        json.append("\"}");
+        return 200;
+    }
+
+    private int register(HttpExchange exchange, Map<String, String> parameters, StringBuilder json) throws ApiException 
+    {
+        requirePost(exchange);
+        User user = new User(required(parameters, "name"), required(parameters, "email"), required(parameters, "password"));
+        if (!supermarket.addUser(user)) 
+        {
+            throw new ApiException(409, "an account with that email already exists");
+        }
+        json.append("{\"session\":\"").append(openSession(user)).append("\"}");
+        return 200;
+    }
+
+    private int guest(HttpExchange exchange, Map<String, String> parameters, StringBuilder json) throws ApiException 
+    {
+        requirePost(exchange);
+        json.append("{\"session\":\"").append(openSession(null)).append("\"}");
+        return 200;
+    }
+
+    // Ending a session puts the stock back; a customer's cart is kept on their account for next time
+    private int logout(HttpExchange exchange, Map<String, String> parameters, StringBuilder json) throws ApiException 
+    {
+        requirePost(exchange);
+        sessions.close(required(parameters, "session"));
+        json.append("{\"loggedOut\":true}");
+        return 200;
+    }
+
+    // GET /categories lists categories; GET /categories/{number}/products?offset=&limit= pages its in-stock items
+    private int categories(HttpExchange exchange, Map<String, String> parameters, StringBuilder json) throws ApiException 
+    {
+        String[] path = exchange.getRequestURI().getPath().split("/");
+        if (path.length <= 2) 
+        {
+            json.append('[');
+            Category[] categories = Category.values();
+            for (int i = 0; i < categories.length; i++) 
+            {
+                json.append(i == 0 ? "" : ",").append("{\"number\":").append(i + 1).append(",\"name\":\"").append(categories[i]).append("\"}");
+            }
+            json.append(']');
+            return 200;
+        }
+        Category category;
+        try 
+        {
+            category = supermarket.getCategoryFromChoice(Integer.parseInt(path[2]));
+        } catch (NumberFormatException e) 
+        {
+            category = null;
+        }
+        if (category == null || path.length != 4 || !path[3].equals("products")) 
+        {
+            throw new ApiException(404, "no such category");
+        }
+        int offset = Math.max(0, intParameter(parameters, "offset", 0));
+        int limit = Math.max(0, Math.min(1_000, intParameter(parameters, "limit", DEFAULT_PAGE)));
+        json.append('[');
+        for (int choice = offset + 1; choice <= offset + limit; choice++) 
+        {
+            Item item = supermarket.getProductFromChoice(category, choice);
+            if (item == null) 
+            {
+                break;
+            }
+            json.append(choice == offset + 1 ? "" : ",").append("{\"number\":").append(choice).append(",\"sku\":").append(item.getSku()).append(",\"name\":\"");
+            ReceiptFormat.JSON.appendText(json, item.getName());
+            json.append("\",\"price\":");
+            Money.appendTo(json, item.getPrice(), false);
+            json.append(",\"available\":").append(item.getQuantityAvailable()).append('}');
+        }
+        json.append(']');
+        return 200;
+    }
+
+    // GET /search?q=&limit= finds in-stock products by name, best match first
+    private int search(HttpExchange exchange, Map<String, String> parameters, StringBuilder json) throws ApiException 
+    {
+        List<Item> matches = supermarket.searchProducts(required(parameters, "q"), Math.max(0, Math.min(100, intParameter(parameters, "limit", 10))));
+        json.append('[');
+        for (int i = 0; i < matches.size(); i++) 
+        {
+            Item item = matches.get(i);
+            json.append(i == 0 ? "" : ",").append("{\"sku\":").append(item.getSku()).append(",\"name\":\"");
+            ReceiptFormat.JSON.appendText(json, item.getName());
+            json.append("\",\"category\":\"").append(item.getCategory()).append("\",\"price\":");
+            Money.appendTo(json, item.getPrice(), false);
+            json.append(",\"available\":").append(item.getQuantityAvailable()).append('}');
+        }
+        json.append(']');
+        return 200;
+    }
+
+    // GET /cart, POST /cart/add and /cart/remove (sku or barcode, quantity), POST /cart/confirm
+    private int cart(HttpExchange exchange, Map<String, String> parameters, StringBuilder json) throws ApiException 
+    {
+        SessionManager.Session session = session(parameters);
+        String action = exchange.getRequestURI().getPath().substring("/cart".length());
+        synchronized (session) 
+        {
+            if (session.isClosed()) 
+            {
+                throw new ApiException(401, "unknown or expired session");
+            }
+            switch (action) 
+            {
+                case "":
+                case "/":
+                    break;
+                case "/add":
+                    requirePost(exchange);
+                    if (!session.getLane().addItem(item(parameters), intParameter(parameters, "quantity", 1))) 
+                    {
+                        throw new ApiException(409, "insufficient quantity available");
+                    }
+                    break;
+                case "/remove":
+                    requirePost(exchange);
+                    session.getLane().removeItem(item(parameters), intParameter(parameters, "quantity", Integer.MAX_VALUE));
+                    break;
+                case "/confirm":
+                    requirePost(exchange);
+                    return confirm(session, json);
+                default:
+                    throw new ApiException(404, "no such cart action");
+            }
+            appendCart(session.getLane().getCart(), json);
+        }
+        return 200;
+    }
+
+    // GET /history?count= lists the customer's most frequently bought items and their favorites
+    private int history(HttpExchange exchange, Map<String, String> parameters, StringBuilder json) throws ApiException 
+    {
+        User user = customer(parameters);
+        json.append("{\"frequentlyBought\":");
+        appendItems(supermarket.getFrequentlyBought(user, Math.max(0, Math.min(100, intParameter(parameters, "count", 10)))), json);
+        json.append(",\"favorites\":");
+        appendItems(supermarket.getFavorites(user), json);
+        json.append('}');
+        return 200;
+    }
+
+    // POST /favorites/add and /favorites/remove (sku or barcode)
+    private int favorites(HttpExchange exchange, Map<String, String> parameters, StringBuilder json) throws ApiException 
+    {
+        requirePost(exchange);
+        User user = customer(parameters);
+        String action = exchange.getRequestURI().getPath().substring("/favorites".length());
+        boolean changed;
+        switch (action) 
+        {
+            case "/add":
+                changed = supermarket.addFavorite(user, item(parameters));
+                break;
+            case "/remove":
+                changed = supermarket.removeFavorite(user, item(parameters));
+                break;
+            default:
+                throw new ApiException(404, "no such favorites action");
+        }
+        json.append("{\"changed\":").append(changed).append(",\"favorites\":");
+        appendItems(supermarket.getFavorites(user), json);
+        json.append('}');
+        return 200;
+    }
+
+    private User customer(Map<String, String> parameters) throws ApiException 
+    {
+        User user = session(parameters).getUser();
+        if (user == null) 
+        {
+            throw new ApiException(403, "login or register to keep a purchase history");
+        }
+        return user;
+    }
+
+    private static void appendItems(List<Item> items, StringBuilder json) 
+    {
+        json.append('[');
+        for (int i = 0; i < items.size(); i++) 
+        {
+            json.append(i == 0 ? "" : ",").append("{\"sku\":").append(items.get(i).getSku()).append(",\"name\":\"");
+            ReceiptFormat.JSON.appendText(json, items.get(i).getName());
+            json.append("\",\"price\":");
+            Money.appendTo(json, items.get(i).getPrice(), false);
+            json.append(",\"available\":").append(items.get(i).getQuantityAvailable()).append('}');
+        }
+        json.append(']');
+    }
+
+    // GET /sales?top= reports the running sales figures
+    private int sales(HttpExchange exchange, Map<String, String> parameters, StringBuilder json) throws ApiException 
+    {
+        if (analytics == null) 
+        {
+            throw new ApiException(404, "sales analytics are off; start with -Dsupermarket.analytics=true");
+        }
+        analytics.appendJson(json, Math.max(0, Math.min(100, intParameter(parameters, "top", 10))), supermarket);
+        return 200;
+    }
+
+    // GET /quotes reports how well the quote cache is doing
+    private int quotes(HttpExchange exchange, Map<String, String> parameters, StringBuilder json) throws ApiException 
+    {
+        PriceQuoteCache cache = supermarket.getQuoteCache();
+        if (cache == null) 
+        {
+            throw new ApiException(404, "the quote cache is off; start with -Dsupermarket.quotes.cache=<entries>");
+        }
+        json.append("{\"hits\":").append(cache.getHits())
+            .append(",\"misses\":").append(cache.getMisses())
+            .append(",\"evictions\":").append(cache.getEvictions())
+            .append(",\"hitRate\":").append(String.format(Locale.ROOT, "%.4f", cache.getHitRate()))
+            .append('}');
+        return 200;
+    }
+
+    private Item item(Map<String, String> parameters) throws ApiException 
+    {
+        String barcode = parameters.get("barcode");
+        Item item = barcode != null ? supermarket.getProductByBarcode(barcode) : supermarket.getProductBySku(intParameter(parameters, "sku", -1));
+        if (item == null) 
+        {
+            throw new ApiException(404, "no such product");
+        }
+        return item;
+    }
+
+    private int confirm(SessionManager.Session session, StringBuilder json) throws ApiException 
+    {
+        if (session.getUser() == null) 
+        {
+            throw new ApiException(403, "login or register to confirm the order");
+        }
+        if (session.getLane().getCart().isEmpty()) 
+        {
+            throw new ApiException(409, "cart is empty");
+        }
+        ConfirmedOrder order;
+        try 
+        {
+            order = supermarket.confirmOrder(session.getLane(), session.getUser());
+        } catch (IOException e) 
+        {
+            throw new ApiException(503, "order could not be recorded, please retry");
+        }
+        json.append("{\"order\":").append(order.orderId).append(",\"total\":");
+        Money.appendTo(json, order.quote.total, false);
+        json.append('}');
+        return 200;
+    }
+
+    private void appendCart(ShoppingCart cart, StringBuilder json) 
+    {
+        PriceQuote quote = supermarket.quote(cart);
+        json.append("{\"lines\":[");
+        for (int line = 0; line < cart.size(); line++) 
+        {
+            Item item = cart.getLineItem(line);
+            json.append(line == 0 ? "" : ",").append("{\"sku\":").append(item.getSku()).append(",\"name\":\"");
+            ReceiptFormat.JSON.appendText(json, item.getName());
+            json.append("\",\"quantity\":").append(cart.getLineQuantity(line)).append(",\"lineTotal\":");
+            Money.appendTo(json, Money.times(cart.getLinePrice(line), cart.getLineQuantity(line)), false);
+            json.append('}');
+        }
+        json.append("],\"subtotal\":");
+        Money.appendTo(json, quote.subtotal, false);
+        json.append(",\"discount\":");
+        Money.appendTo(json, quote.discount, false);
+        json.append(",\"tax\":");
+        Money.appendTo(json, quote.tax, false);
+        json.append(",\"total\":");
+        Money.appendTo(json, quote.total, false);
+        json.append('}');
+    }
+}
+
+// InventoryShard class to own the stock of the SKUs that hash to one shard and serve it to routers over TCP
+// Every shard boots the same catalog; stock of SKUs it does not own is ignored until a rebalance hands them over.
+// Units a router reserves are kept in its ledger until it releases or sells them. When the router's last connection
+// drops, whatever it still holds goes back on the shelf; a rebalance moves ledger entries with their SKUs.
+class InventoryShard 
+{
+    static final byte RESERVE = 1;
+    static final byte RELEASE = 2;
+    static final byte LIST_CATEGORY = 3;
+    static final byte DRAIN = 4;
+    static final byte ACCEPT = 5;
+    static final byte HELLO = 6; // A router's id, sent first on each of its connections
+    static final byte SELL = 7;
+
+    static final byte OK = 0;
+    static final byte REFUSED = 1;
+    static final byte NOT_OWNED = 2;
+
+    // Partition class to say which SKUs a shard owns: those whose hash lands on its index out of count
+    static final class Partition 
+    {
+        final int index; // -1 while a shard is joining and owns nothing yet
+        final int count;
+
+        Partition(int index, int count) 
+        {
+            this.index = index;
+            this.count = count;
+        }
+
+        boolean owns(int sku) 
+        {
+            return index >= 0 && ownerOf(sku, count) == index;
+        }
+    }
+
+    // Holder class for one router's ledger: units it reserved here and has not yet released or sold, per SKU
+    private static final class Holder 
+    {
+        final HashMap<Integer, Integer> held = new HashMap<>(); // Guarded by this
+        int connections; // Guarded by this
+    }
+
+    // Holding class for one ledger entry on its way to the SKU's new owner during a rebalance
+    static final class Holding 
+    {
+        final long router;
+        final int sku;
+        final int quantity;
+
+        Holding(long router, int sku, int quantity) 
+        {
+            this.router = router;
+            this.sku = sku;
+            this.quantity = quantity;
+        }
+    }
+
+    private final Supermarket supermarket;
+    private volatile Partition partition;
+    private ServerSocket server;
+    private final ConcurrentHashMap<Long, Holder> holders = new ConcurrentHashMap<>();
+    // Connections that never say HELLO get a ledger of their own; these ids are far from any random router id's odds
+    private final AtomicLong anonymousIds = new AtomicLong(Long.MIN_VALUE);
+
+    public InventoryShard(Supermarket supermarket, int index, int count) 
+    {
+        this.supermarket = supermarket;
+        this.partition = new Partition(index, count);
+    }
+
+    // Spreads consecutive SKUs evenly over the shards
+    static int ownerOf(int sku, int shardCount) 
+    {
+        int hash = sku * 0x9E3779B9;
+        return Math.floorMod(hash ^ (hash >>> 16), shardCount);
+    }
+
+    public void start(int port) throws IOException 
+    {
+        server = new ServerSocket();
+        server.bind(new InetSocketAddress("127.0.0.1", port));
+        ExecutorService connections = Executors.newCachedThreadPool(runnable -> 
+        {
+            Thread thread = new Thread(runnable, "shard-connection");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Thread acceptor = new Thread(() -> 
+        {
+            try 
+            {
+                while (true) 
+                {
+                    Socket socket = server.accept();
+                    socket.setTcpNoDelay(true);
+                    connections.execute(() -> serve(socket));
+                }
+            } catch (IOException e) 
+            {
+                connections.shutdownNow(); // Server socket closed
+            }
+        }, "shard-acceptor");
+        acceptor.start();
+        Partition current = partition;
+        System.out.println("Inventory shard " + current.index + " of " + current.count + " listening on 127.0.0.1:" + server.getLocalPort());
+    }
+
+    public void stop() throws IOException 
+    {
+        server.close();
+    }
+
+    private void serve(Socket socket) 
+    {
+        long holderId = anonymousIds.getAndIncrement();
+        Holder holder = join(holderId);
+        try (Socket connection = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()))) 
+        {
+            int request;
+            while ((request = in.read()) >= 0) 
+            {
+                switch (request) 
+                {
+                    case HELLO:
+                        long router = in.readLong();
+                        Holder joined = join(router);
+                        leave(holderId);
+                        holderId = router;
+                        holder = joined;
+                        continue; // No reply
+                    case RESERVE:
+                        out.writeByte(reserve(holder, in.readInt(), in.readInt()));
+                        break;
+                    case RELEASE:
+                        out.writeByte(release(holder, in.readInt(), in.readInt()));
+                        break;
+                    case SELL:
+                        out.writeByte(sell(holder, in.readInt(), in.readInt()));
+                        break;
+                    case LIST_CATEGORY:
+                        int category = in.readByte();
+                        if (category < 0 || category >= Category.values().length) 
+                        {
+                            return; // Corrupt request; drop the connection
+                        }
+                        writeItems(out, listInStock(Category.values()[category]));
+                        break;
+                    case DRAIN:
+                        List<Holding> leavingHoldings = new ArrayList<>();
+                        writeItems(out, drain(new Partition(in.readInt(), in.readInt()), leavingHoldings));
+                        writeHoldings(out, leavingHoldings);
+                        break;
+                    case ACCEPT:
+                        Partition next = new Partition(in.readInt(), in.readInt());
+                        List<Item> received = readItems(in);
+                        accept(next, received, readHoldings(in));
+                        out.writeByte(OK);
+                        break;
+                    default:
+                        return; // Not a router; drop the connection
+                }
+                out.flush();
+            }
+        } catch (IOException e) 
+        {
+            // The router went away
+        } finally 
+        {
+            leave(holderId);
+        }
+    }
+
+    private Holder join(long id) 
+    {
+        return holders.compute(id, (key, existing) -> 
+        {
+            Holder holder = existing == null ? new Holder() : existing;
+            synchronized (holder) 
+            {
+                holder.connections++;
+            }
+            return holder;
+        });
+    }
+
+    // When the holder's last connection goes, the units it still holds go back on the shelf
+    private void leave(long id) 
+    {
+        holders.computeIfPresent(id, (key, holder) -> 
+        {
+            synchronized (holder) 
+            {
+                if (--holder.connections > 0) 
+                {
+                    return holder;
+                }
+                for (Map.Entry<Integer, Integer> entry : holder.held.entrySet()) 
+                {
+                    Item item = supermarket.getProductBySku(entry.getKey());
+                    if (item != null) 
+                    {
+                        item.release(entry.getValue());
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    // Takes up to quantity units of the SKU out of the holder's ledger; returns how many it held. Call holding its lock.
+    private static int take(Holder holder, int sku, int quantity) 
+    {
+        Integer held = holder.held.get(sku);
+        if (held == null) 
+        {
+            return 0;
+        }
+        int taken = Math.min(held, quantity);
+        if (taken == held) 
+        {
+            holder.held.remove(sku);
+        } else 
+        {
+            holder.held.put(sku, held - taken);
+        }
+        return taken;
+    }
+
+    // Ownership is checked under the holder's lock, so a drain either finds the reservation in the ledger or it is refused
+    private byte reserve(Holder holder, int sku, int quantity) 
+    {
+        synchronized (holder) 
+        {
+            Item item = partition.owns(sku) ? supermarket.getProductBySku(sku) : null;
+            if (item == null) 
+            {
+                return NOT_OWNED;
+            }
+            if (!item.reserve(quantity)) 
+            {
+                return REFUSED;
+            }
+            holder.held.merge(sku, quantity, Integer::sum);
+            return OK;
+        }
+    }
+
+    // Only units the router still holds go back; any released when its connections dropped already have
+    private byte release(Holder holder, int sku, int quantity) 
+    {
+        synchronized (holder) 
+        {
+            Item item = partition.owns(sku) ? supermarket.getProductBySku(sku) : null;
+            if (item == null) 
+            {
+                return NOT_OWNED;
+            }
+            item.release(take(holder, sku, quantity));
+            return OK;
+        }
+    }
+
+    // Turns held units into a journaled sale; units that went back on the shelf meanwhile are reserved again first
+    private byte sell(Holder holder, int sku, int quantity) throws IOException 
+    {
+        synchronized (holder) 
+        {
+            Item item = partition.owns(sku) ? supermarket.getProductBySku(sku) : null;
+            if (item == null) 
+            {
+                return NOT_OWNED;
+            }
+            int held = take(holder, sku, quantity);
+            if (held < quantity && !item.reserve(quantity - held)) 
+            {
+                if (held > 0) 
+                {
+                    holder.held.merge(sku, held, Integer::sum);
+                }
+                return REFUSED;
+            }
+        }
+        try 
+        {
+            supermarket.journalStockMovements(new int[] {sku}, new int[] {-quantity}, 1);
+        } catch (IOException e) 
+        {
+            synchronized (holder) 
+            {
+                holder.held.merge(sku, quantity, Integer::sum); // Not sold after all; they go back when the router does
+            }
+            throw e;
+        }
+        return OK;
+    }
+
+    private List<Item> listInStock(Category category) 
+    {
+        Partition current = partition;
+        List<Item> owned = new ArrayList<>();
+        for (Item item : supermarket.getCategoryItems(category, true)) 
+        {
+            if (current.owns(item.getSku())) 
+            {
+                owned.add(item);
+            }
+        }
+        return owned;
+    }
+
+    // Switches to the next partition and takes every unit of the SKUs it gives up off the shelf, journaled together.
+    // Routers' ledger entries for those SKUs are moved into leavingHoldings, so their units can be released at the new owner.
+    private synchronized List<Item> drain(Partition next, List<Holding> leavingHoldings) throws IOException 
+    {
+        Partition previous = partition;
+        partition = next;
+        // Taking each ledger's lock waits out reservations that checked ownership before the switch
+        for (Map.Entry<Long, Holder> entry : holders.entrySet()) 
+        {
+            Holder holder = entry.getValue();
+            synchronized (holder) 
+            {
+                Iterator<Map.Entry<Integer, Integer>> held = holder.held.entrySet().iterator();
+                while (held.hasNext()) 
+                {
+                    Map.Entry<Integer, Integer> units = held.next();
+                    if (previous.owns(units.getKey()) && !next.owns(units.getKey())) 
+                    {
+                        leavingHoldings.add(new Holding(entry.getKey(), units.getKey(), units.getValue()));
+                        held.remove();
+                    }
+                }
+            }
+        }
+        List<Integer> leaving = new ArrayList<>();
+        for (Category category : Category.values()) 
+        {
+            supermarket.forEachSku(category, sku -> 
+            {
+                if (previous.owns(sku) && !next.owns(sku)) 
+                {
+                    leaving.add(sku);
+                }
+            });
+        }
+        List<Item> moved = new ArrayList<>(leaving.size());
+        int[] skus = new int[leaving.size()];
+        int[] deltas = new int[leaving.size()];
+        int movements = 0;
+        for (int sku : leaving) 
+        {
+            Item item = supermarket.getProductBySku(sku);
+            int quantity;
+            do 
+            {
+                quantity = item.getQuantityAvailable(); // Only reservations already in flight can still race this
+            } while (quantity > 0 && !Supermarket.moveStock(item, -quantity));
+            if (quantity > 0) 
+            {
+                skus[movements] = sku;
+                deltas[movements++] = -quantity;
+            }
+            moved.add(new Item(sku, item.getBarcode(), item.getName(), item.getPrice(), item.getCategory(), quantity));
+        }
+        supermarket.journalStockMovements(skus, deltas, movements);
+        return moved;
+    }
+
+    // Sets the stock of SKUs handed over by other shards, replacing whatever stale count the catalog booted with
+    private synchronized void accept(Partition next, List<Item> received, List<Holding> holdings) throws IOException 
+    {
+        int[] skus = new int[received.size()];
+        int[] deltas = new int[received.size()];
+        int movements = 0;
+        for (Item record : received) 
+        {
+            Item item = supermarket.getProductBySku(record.getSku());
+            if (item == null) 
+            {
+                supermarket.addProducts(Collections.singletonList(record));
+                continue;
+            }
+            // Nobody reserves these SKUs here until the new partition is in place, so the level holds still
+            int delta = record.getQuantityAvailable() - item.getQuantityAvailable();
+            if (delta != 0 && Supermarket.moveStock(item, delta)) 
+            {
+                skus[movements] = record.getSku();
+                deltas[movements++] = delta;
+            }
+        }
+        supermarket.journalStockMovements(skus, deltas, movements);
+        for (Holding holding : holdings) 
+        {
+            holders.compute(holding.router, (key, existing) -> 
+            {
+                Holder holder = existing == null ? new Holder() : existing; // Released once the router connects and leaves
+                synchronized (holder) 
+                {
+                    holder.held.merge(holding.sku, holding.quantity, Integer::sum);
+                }
+                return holder;
+            });
+        }
+        partition = next;
+    }
+
+    static void writeItems(DataOutputStream out, List<Item> items) throws IOException 
+    {
+        out.writeInt(items.size());
+        for (Item item : items) 
+        {
+            out.writeInt(item.getSku());
+            out.writeByte(item.getCategory().ordinal());
+            out.writeUTF(item.getBarcode() == null ? "" : item.getBarcode());
+            out.writeUTF(item.getName());
+            out.writeLong(item.getPrice());
+            out.writeInt(item.getQuantityAvailable());
+        }
+    }
+
+    static void writeHoldings(DataOutputStream out, List<Holding> holdings) throws IOException 
+    {
+        out.writeInt(holdings.size());
+        for (Holding holding : holdings) 
+        {
+            out.writeLong(holding.router);
+            out.writeInt(holding.sku);
+            out.writeInt(holding.quantity);
+        }
+    }
+
+    static List<Holding> readHoldings(DataInputStream in) throws IOException 
+    {
+        int count = in.readInt();
+        List<Holding> holdings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) 
+        {
+            holdings.add(new Holding(in.readLong(), in.readInt(), in.readInt()));
+        }
+        return holdings;
+    }
+
+    static List<Item> readItems(DataInputStream in) throws IOException 
+    {
+        int count = in.readInt();
+        List<Item> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) 
+        {
+            int sku = in.readInt();
+            int category = in.readByte();
+            if (category < 0 || category >= Category.values().length) 
+            {
+                throw new IOException("Unknown category " + category + " for SKU " + sku);
+            }
+            String barcode = in.readUTF();
+            items.add(new Item(sku, barcode.isEmpty() ? null : barcode, in.readUTF(), in.readLong(), Category.values()[category], in.readInt()));
+        }
+        return items;
+    }
+}
+
+// ShardRouter class to send each reservation to the shard that owns the SKU and merge listings from all shards
+// Requests share the topology under a read lock; a rebalance takes the write lock, so no request sees it half done
+class ShardRouter implements Closeable 
+{
+    // ShardClient class to keep a pool of open connections to one shard
+    private static class ShardClient implements Closeable 
+    {
+        // Connection class to pair a socket with its buffered streams
+        private static class Connection 
+        {
+            final Socket socket;
+            final DataInputStream in;
+            final DataOutputStream out;
+
+            Connection(InetSocketAddress address, long routerId) throws IOException 
+            {
+                socket = new Socket(address.getAddress(), address.getPort());
+                socket.setTcpNoDelay(true);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                out.writeByte(InventoryShard.HELLO); // Goes out with the first request
+                out.writeLong(routerId);
+            }
+        }
+
+        final InetSocketAddress address;
+        private final long routerId;
+        private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<>();
+
+        ShardClient(InetSocketAddress address, long routerId) 
+        {
+            this.address = address;
+            this.routerId = routerId;
+        }
+
+        Connection borrow() throws IOException 
+        {
+            Connection connection = idle.poll();
+            return connection != null ? connection : new Connection(address, routerId);
+        }
+
+        void giveBack(Connection connection) 
+        {
+            idle.offer(connection);
+        }
+
+        // A connection that failed mid-request is in an unknown state, so it is closed rather than reused
+        void discard(Connection connection) 
+        {
+            try 
+            {
+                connection.socket.close();
+            } catch (IOException e) 
+            {
+                // Already broken
+            }
+        }
+
+        byte send(byte request, int sku, int quantity) throws IOException 
+        {
+            Connection connection = borrow();
+            try 
+            {
+                connection.out.writeByte(request);
+                connection.out.writeInt(sku);
+                connection.out.writeInt(quantity);
+                connection.out.flush();
+                byte reply = connection.in.readByte();
+                giveBack(connection);
+                return reply;
+            } catch (IOException e) 
+            {
+                discard(connection);
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() 
+        {
+            Connection connection;
+            while ((connection = idle.poll()) != null) 
+            {
+                discard(connection);
+            }
+        }
+    }
+
+    private static final int MOVED_ROUNDS = 100; // How many times to ask every shard for a SKU another router is moving
+    private static final long MOVED_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final ReentrantReadWriteLock topologyLock = new ReentrantReadWriteLock();
+    private final long id = new SecureRandom().nextLong(); // Names this router's ledger on every shard
+    private List<ShardClient> shards;
+
+    public ShardRouter(List<InetSocketAddress> addresses) 
+    {
+        shards = new ArrayList<>();
+        for (InetSocketAddress address : addresses) 
+        {
+            shards.add(new ShardClient(address, id));
+        }
+    }
+
+    // Parses "host:port,host:port,..." in shard index order
+    static List<InetSocketAddress> parseAddresses(String list) 
+    {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String address : list.split(",")) 
+        {
+            int colon = address.lastIndexOf(':');
+            addresses.add(new InetSocketAddress(address.substring(0, colon).trim(), Integer.parseInt(address.substring(colon + 1).trim())));
+        }
+        return addresses;
+    }
+
+    // Returns false only when the owning shard is out of stock
+    public boolean reserve(int sku, int quantity) throws IOException 
+    {
+        return sendToOwner(InventoryShard.RESERVE, sku, quantity) == InventoryShard.OK;
+    }
+
+    public void release(int sku, int quantity) throws IOException 
+    {
+        sendToOwner(InventoryShard.RELEASE, sku, quantity);
+    }
+
+    // Turns reserved units into a sale; false if they went back on the shelf and have been taken since
+    public boolean sell(int sku, int quantity) throws IOException 
+    {
+        return sendToOwner(InventoryShard.SELL, sku, quantity) == InventoryShard.OK;
+    }
+
+    // Starts at the shard that should own the SKU. NOT_OWNED means another router moved it, so every shard is asked,
+    // waiting a little between rounds while the SKU is between shards in that router's rebalance.
+    private byte sendToOwner(byte request, int sku, int quantity) throws IOException 
+    {
+        topologyLock.readLock().lock();
+        try 
+        {
+            int first = InventoryShard.ownerOf(sku, shards.size());
+            for (int round = 0; round < MOVED_ROUNDS; round++) 
+            {
+                for (int i = 0; i < shards.size(); i++) 
+                {
+                    byte reply = shards.get((first + i) % shards.size()).send(request, sku, quantity);
+                    if (reply != InventoryShard.NOT_OWNED) 
+                    {
+                        return reply;
+                    }
+                }
+                LockSupport.parkNanos(MOVED_WAIT_NANOS);
+            }
+            throw new IOException("No shard owns SKU " + sku + "; was a shard added by another router?");
+        } finally 
+        {
+            topologyLock.readLock().unlock();
+        }
+    }
+
+    // Asks every shard at once, then merges their listings into the order a single store would show
+    public List<Item> listCategory(Category category) throws IOException 
+    {
+        topologyLock.readLock().lock();
+        try 
+        {
+            ShardClient.Connection[] connections = new ShardClient.Connection[shards.size()];
+            try 
+            {
+                for (int i = 0; i < connections.length; i++) 
+                {
+                    connections[i] = shards.get(i).borrow();
+                    connections[i].out.writeByte(InventoryShard.LIST_CATEGORY);
+                    connections[i].out.writeByte(category.ordinal());
+                    connections[i].out.flush();
+                }
+                List<Item> merged = new ArrayList<>();
+                for (int i = 0; i < connections.length; i++) 
+                {
+                    merged.addAll(InventoryShard.readItems(connections[i].in));
+                    shards.get(i).giveBack(connections[i]);
+                    connections[i] = null;
+                }
+                merged.sort(CategoryShelf.ORDER);
+                return merged;
+            } catch (IOException e) 
+            {
+                for (int i = 0; i < connections.length; i++) 
+                {
+                    if (connections[i] != null) 
+                    {
+                        shards.get(i).discard(connections[i]);
+                    }
+                }
+                throw e;
+            }
+        } finally 
+        {
+            topologyLock.readLock().unlock();
+        }
+    }
+
+    public void displayProductsInCategory(Category category) throws IOException 
+    {
+        Supermarket.printProducts(category, listCategory(category));
+    }
+
+    // Moves to a new shard list: existing shards keep their positions, new ones are appended (started with --join)
+    // or the last ones are dropped. Each shard is drained once and sent one batch, so it costs two round trips per shard.
+    // Returns the number of SKUs that changed owner.
+    public int rebalance(List<InetSocketAddress> addresses) throws IOException 
+    {
+        topologyLock.writeLock().lock();
+        try 
+        {
+            for (int i = 0; i < Math.min(shards.size(), addresses.size()); i++) 
+            {
+                if (!shards.get(i).address.equals(addresses.get(i))) 
+                {
+                    throw new IllegalArgumentException("Shard " + i + " must stay at " + shards.get(i).address);
+                }
+            }
+            List<ShardClient> next = new ArrayList<>(shards.subList(0, Math.min(shards.size(), addresses.size())));
+            for (int i = next.size(); i < addresses.size(); i++) 
+            {
+                next.add(new ShardClient(addresses.get(i), id));
+            }
+
+            List<List<Item>> batches = new ArrayList<>();
+            List<List<InventoryShard.Holding>> ledgers = new ArrayList<>();
+            for (int i = 0; i < next.size(); i++) 
+            {
+                batches.add(new ArrayList<>());
+                ledgers.add(new ArrayList<>());
+            }
+            int moved = 0;
+            for (int i = 0; i < shards.size(); i++) 
+            {
+                ShardClient shard = shards.get(i);
+                ShardClient.Connection connection = shard.borrow();
+                try 
+                {
+                    connection.out.writeByte(InventoryShard.DRAIN);
+                    connection.out.writeInt(i < next.size() ? i : -1);
+                    connection.out.writeInt(next.size());
+                    connection.out.flush();
+                    for (Item item : InventoryShard.readItems(connection.in)) 
+                    {
+                        batches.get(InventoryShard.ownerOf(item.getSku(), next.size())).add(item);
+                        moved++;
+                    }
+                    for (InventoryShard.Holding holding : InventoryShard.readHoldings(connection.in)) 
+                    {
+                        ledgers.get(InventoryShard.ownerOf(holding.sku, next.size())).add(holding);
+                    }
+                    shard.giveBack(connection);
+                } catch (IOException e) 
+                {
+                    shard.discard(connection);
+                    throw new IOException("Rebalance stopped draining shard " + i + "; stock already drained is in the shard journals", e);
+                }
+            }
+            for (int i = 0; i < next.size(); i++) 
+            {
+                ShardClient shard = next.get(i);
+                ShardClient.Connection connection = shard.borrow();
+                try 
+                {
+                    connection.out.writeByte(InventoryShard.ACCEPT);
+                    connection.out.writeInt(i);
+                    connection.out.writeInt(next.size());
+                    InventoryShard.writeItems(connection.out, batches.get(i));
+                    InventoryShard.writeHoldings(connection.out, ledgers.get(i));
+                    connection.out.flush();
+                    connection.in.readByte();
+                    shard.giveBack(connection);
+                } catch (IOException e) 
+                {
+                    shard.discard(connection);
+                    throw new IOException("Rebalance stopped handing stock to shard " + i + "; stock already drained is in the shard journals", e);
+                }
+            }
+            for (int i = next.size(); i < shards.size(); i++) 
+            {
+                shards.get(i).close();
+            }
+            shards = next;
+            return moved;
+        } finally 
+        {
+            topologyLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() 
+    {
+        for (ShardClient shard : shards) 
+        {
+            shard.close();
+        }
+    }
+}
+
+// LatencyHistogram class to count latencies in log-linear buckets, HDR style, with lock-free updates
+// Each power of two is split into 16 sub-buckets, so any percentile is within about 6% of the true value
+class LatencyHistogram 
+{
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) 
+    {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        total.increment();
+        sum.add(value);
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) 
+        {
+            currentMax = max.get();
+        }
+    }
+
+    private static int bucketOf(long value) 
+    {
+        if (value < SUB_BUCKETS) 
+        {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
     }
 
-    public String getPassword()
+    // Highest value that lands in the bucket
+    private static long bucketLimit(int bucket) 
     {
-        return password;
+        if (bucket < SUB_BUCKETS) 
+        {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return ((SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) + width - 1;
     }
 
-    public ShoppingCart getCart()
+    public long getCount() 
     {
-        return cart;
+        return total.sum();
     }
 
-    public ArrayList<Item> getFavoriteItems() 
+    public long getMax() 
     {
-        return favoriteItems;
+        return max.get();
     }
 
-    public ArrayList<Item> getPurchasedItems() 
+    public long getMean() 
     {
-        return purchasedItems;
+        long count = total.sum();
+        return count == 0 ? 0 : sum.sum() / count;
     }
 
-    // Add methods for managing favorite items, purchase history, etc.
+    public long getPercentile(double percentile) 
+    {
+        long count = total.sum();
+        if (count == 0) 
+        {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) 
+        {
+            seen += counts.get(bucket);
+            if (seen >= rank) 
+            {
+                return Math.min(bucketLimit(bucket), max.get());
+            }
+        }
+        return max.get();
+    }
 }
 
-// Supermarket class to manage products, users, and orders
-class Supermarket implements Serializable 
+// CheckoutMetrics class to time hot checkout operations, published over JMX and in periodic snapshots
+// Enable with -Dsupermarket.metrics=true; when off, start() and record() fold away to nothing
+final class CheckoutMetrics 
 {
-    private HashMap<String, Item> products;
-    private ArrayList<Discount> discounts;
-    private ArrayList<User> users;
+    static final boolean ENABLED = Boolean.getBoolean("supermarket.metrics");
 
-    public Supermarket() 
-  {
-        products = new HashMap<>();
-        discounts = new ArrayList<>();
-        users = new ArrayList<>();
-        // Initialize products and discounts
-        initializeProducts();
-        initializeDiscounts();
+    // Enum for the timed operations
+    enum Operation 
+    {
+        ADD_ITEM,
+        REMOVE_ITEM,
+        CALCULATE_TOTAL_DISCOUNT,
+        GET_USER_BY_EMAIL,
+        AUTHENTICATE,
+        CONFIRM_ORDER
     }
 
-    private void initializeProducts() 
+    private static final LatencyHistogram[] HISTOGRAMS = new LatencyHistogram[Operation.values().length];
+    private static volatile Supermarket gaugeSource;
+
+    static 
     {
-        products.put("Apple", new Item("Apple", 1.0, Category.GROCERY, 50));
-        products.put("TV", new Item("TV", 500.0, Category.ELECTRONICS, 10));
-        products.put("Shirt", new Item("Shirt", 20.0, Category.CLOTHING, 30));
-        products.put("Shampoo", new Item("Shampoo", 5.0, Category.BEAUTY, 40));
-        products.put("Microwave", new Item("Microwave", 100.0, Category.HOME_APPLIANCES, 15));
+        for (int i = 0; i < HISTOGRAMS.length; i++) 
+        {
+            HISTOGRAMS[i] = new LatencyHistogram();
+        }
     }
 
-    private void initializeDiscounts() 
+    private CheckoutMetrics() 
     {
-        discounts.add(new Discount("10% Off Groceries", 10.0, true));
-        discounts.add(new Discount("$50 Off Electronics", 50.0, false));
-        discounts.add(new Discount("Buy One Get One Free on Shirts", 100.0, false));
     }
 
-    public void addUser(User user) 
+    public static long start() 
     {
-        users.add(user);
+        return ENABLED ? System.nanoTime() : 0;
     }
 
-    public User getUserByEmail(String email) 
+    public static void record(Operation operation, long start) 
     {
-        for (User user : users) 
+        if (ENABLED) 
         {
-            if (user.getEmail().equalsIgnoreCase(email)) 
-            {
-                return user;
-            }
+            HISTOGRAMS[operation.ordinal()].record(System.nanoTime() - start);
         }
-        return null;
     }
 
-    public void displayProductCategories() 
-  {
-        System.out.println("\n--- Product Categories ---");
-        Category[] categories = Category.values();
-        for (int i = 0; i < categories.length; i++) 
-        {
-            System.out.println((i + 1) + ". " + categories[i]);
-        }
+    public static LatencyHistogram getHistogram(Operation operation) 
+    {
+        return HISTOGRAMS[operation.ordinal()];
     }
 
-    public Category getCategoryFromChoice(int choice) 
-  {
-        Category[] categories = Category.values();
-        if (choice > 0 && choice <= categories.length) 
+    // Registers the JMX bean and, if -Dsupermarket.metrics.interval is set, dumps a snapshot every that many seconds
+    public static void publish(Supermarket supermarket) 
+    {
+        if (!ENABLED) 
         {
-            return categories[choice - 1];
+            return;
         }
-        return null;
-    }
-
-    public void displayProductsInCategory(Category category) 
-    {
-        System.out.println("\n--- " + category + " Products ---");
-        int productNumber = 1;
-        for (Item item : products.values()) 
+        gaugeSource = supermarket;
+        try 
         {
-            if (item.getCategory() == category && item.getQuantityAvailable() > 0) 
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(), new ObjectName("supermarket:type=CheckoutMetrics"));
+        } catch (JMException e) 
+        {
+            System.err.println("Checkout metrics not published over JMX: " + e.getMessage());
+        }
+        int interval = Integer.getInteger("supermarket.metrics.interval", 0);
+        if (interval > 0) 
+        {
+            ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(runnable -> 
             {
-                System.out.println(productNumber + ". " + item.getName() + " - $" + item.getPrice() + " - Available: " + item.getQuantityAvailable());
-                productNumber++;
-            }
+                Thread thread = new Thread(runnable, "metrics-dump");
+                thread.setDaemon(true);
+                return thread;
+            });
+            String file = System.getProperty("supermarket.metrics.file");
+            dumper.scheduleAtFixedRate(() -> dump(file), interval, interval, TimeUnit.SECONDS);
         }
     }
 
-    public Item getProductFromChoice(Category category, int choice) 
-  {
-        int productNumber = 1;
-        for (Item item : products.values()) 
+    private static void dump(String file) 
+    {
+        String snapshot = snapshot();
+        if (file == null) 
         {
-            if (item.getCategory() == category && item.getQuantityAvailable() > 0) {
-                if (productNumber == choice) 
-                {
-                    return item;
-                }
-                productNumber++;
-            }
+            System.err.print(snapshot);
+            return;
         }
-        return null;
-    }
-
-    public double calculateTotalDiscount(ShoppingCart cart) 
-  {
-        double totalDiscount = 0;
-        for (Map.Entry<Item, Integer> entry : cart.getItems().entrySet()) 
+        try 
         {
-            Item item = entry.getKey();
-            int quantity = entry.getValue();
-            double itemTotal = item.getPrice() * quantity;
-            totalDiscount += getDiscountAmount(item, itemTotal) * quantity;
+            Files.write(Paths.get(file), snapshot.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) 
+        {
+            System.err.println("Checkout metrics dump failed: " + e.getMessage());
         }
-        return totalDiscount;
     }
 
-    public double getDiscountAmount(Item item, double price) 
-  {
-        for (Discount discount : discounts) 
+    public static String snapshot() 
+    {
+        StringBuilder out = new StringBuilder(1_024);
+        out.append("--- Checkout metrics at ").append(Instant.now()).append(" ---\n");
+        for (Operation operation : Operation.values()) 
         {
-            if (discount.getName().equals("10% Off Groceries") && item.getCategory() == Category.GROCERY) 
-            {
-                return discount.applyDiscount(price);
-            } else if (discount.getName().equals("$50 Off Electronics") && item.getCategory() == Category.ELECTRONICS) 
+            LatencyHistogram histogram = getHistogram(operation);
+            out.append(String.format("%-26s count=%d mean=%dus p50=%dus p99=%dus p99.9=%dus max=%dus%n", operation, histogram.getCount(),
+                histogram.getMean() / 1_000, histogram.getPercentile(50) / 1_000, histogram.getPercentile(99) / 1_000,
+                histogram.getPercentile(99.9) / 1_000, histogram.getMax() / 1_000));
+        }
+        Supermarket supermarket = gaugeSource;
+        if (supermarket != null) 
+        {
+            for (Category category : Category.values()) 
             {
-                return discount.applyDiscount(price);
-            } else if (discount.getName().equals("Buy One Get One Free on Shirts") && item.getName().equals("Shirt")) 
+                out.append(String.format("stock %-20s units=%d skusInStock=%d%n", category, supermarket.getCategoryStock(category), supermarket.getCategoryInStockCount(category)));
+            }
+            PriceQuoteCache quotes = supermarket.getQuoteCache();
+            if (quotes != null) 
             {
-                return applyBOGODiscount(item, price);
+                out.append(String.format("quote cache hits=%d misses=%d evictions=%d hitRate=%.1f%%%n", quotes.getHits(), quotes.getMisses(),
+                    quotes.getEvictions(), quotes.getHitRate() * 100));
             }
         }
-        return 0;
+        return out.toString();
     }
 
-    public double applyBOGODiscount(Item item, double price) 
-  {
-        // For BOGO, return the price of one item
-        return item.getPrice();
-    }
+    // MetricsBean class to expose every histogram and stock gauge as read-only JMX attributes
+    private static class MetricsBean implements DynamicMBean 
+    {
+        private static final String[] STATISTICS = {"Count", "MeanMicros", "P50Micros", "P99Micros", "P999Micros", "MaxMicros"};
 
-    public void applyDiscount(ShoppingCart cart, Scanner scanner) 
-  {
-        if (!discounts.isEmpty()) 
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException 
         {
-            System.out.println("\n--- Available Discounts ---");
-            for (int i = 0; i < discounts.size(); i++) 
+            int dot = attribute.indexOf('.');
+            if (dot > 0) 
             {
-                Discount discount = discounts.get(i);
-                System.out.println((i + 1) + ". " + discount.getName());
+                String prefix = attribute.substring(0, dot);
+                String suffix = attribute.substring(dot + 1);
+                try 
+                {
+                    if (prefix.equals("Stock")) 
+                    {
+                        return gaugeSource == null ? 0L : gaugeSource.getCategoryStock(Category.valueOf(suffix));
+                    }
+                    LatencyHistogram histogram = getHistogram(Operation.valueOf(prefix));
+                    switch (suffix) 
+                    {
+                        case "Count":
+                            return histogram.getCount();
+                        case "MeanMicros":
+                            return histogram.getMean() / 1_000;
+                        case "P50Micros":
+                            return histogram.getPercentile(50) / 1_000;
+                        case "P99Micros":
+                            return histogram.getPercentile(99) / 1_000;
+                        case "P999Micros":
+                            return histogram.getPercentile(99.9) / 1_000;
+                        case "MaxMicros":
+                            return histogram.getMax() / 1_000;
+                        default:
+                            break;
+                    }
+                } catch (IllegalArgumentException e) 
+                {
+                    throw new AttributeNotFoundException(attribute);
+                }
             }
-            System.out.print("Enter discount number to apply: ");
-            int discountNumber = getIntegerInput(scanner);
-            if (discountNumber > 0 && discountNumber <= discounts.size()) 
-            {
-                Discount selectedDiscount = discounts.get(discountNumber - 1);
-                double totalDiscount = calculateTotalDiscount(cart);
-                double discountedTotal = cart.calculateTotal() - totalDiscount;
-                double newTotal = selectedDiscount.applyDiscount(discountedTotal);
+            throw new AttributeNotFoundException(attribute);
+        }
 
-                System.out.println("Discount applied: " + selectedDiscount.getName());
-                System.out.println("New Total: $" + newTotal);
-            } 
-            else 
+        @Override
+        public AttributeList getAttributes(String[] attributes) 
+        {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) 
             {
-                System.out.println("Invalid discount number.");
+                try 
+                {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) 
+                {
+                    // Unknown attributes are left out, as the DynamicMBean contract allows
+                }
             }
-        } 
-        else 
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException 
         {
-            System.out.println("No discounts available.");
+            throw new AttributeNotFoundException("Checkout metrics are read-only");
         }
-    }
 
-    public void clearCart(ShoppingCart cart, ArrayList<Item> cartItems) 
-  {
-        for (Item item : cartItems) 
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) 
         {
-            item.setQuantityAvailable(item.getQuantityAvailable() + cart.getItems().get(item));
+            return new AttributeList();
         }
-        cart.clearCart();
-        cartItems.clear();
-        System.out.println("Cart cleared.");
-    }
 
-    private int getIntegerInput(Scanner scanner) 
-  {
-        while (!scanner.hasNextInt()) 
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException 
         {
-            System.out.println("Invalid input. Please enter a valid integer.");
-            scanner.next(); // consume the invalid input
+            throw new MBeanException(new UnsupportedOperationException(actionName));
         }
-        return scanner.nextInt();
-    }
 
-    // Add more methods for the supermarket management system as needed
+        @Override
+        public MBeanInfo getMBeanInfo() 
+        {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Operation operation : Operation.values()) 
+            {
+                for (String statistic : STATISTICS) 
+                {
+                    attributes.add(new MBeanAttributeInfo(operation + "." + statistic, "long", operation + " " + statistic, true, false, false));
+                }
+            }
+            for (Category category : Category.values()) 
+            {
+                attributes.add(new MBeanAttributeInfo("Stock." + category, "long", "Units of " + category + " on the shelf", true, false, false));
+            }
+            return new MBeanInfo(MetricsBean.class.getName(), "Checkout latency histograms and stock gauges",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
 }
 
 // Main class to run the supermarket billing system
 public class SupermarketBillingSystem
 {
-    private static final double TAX_RATE = 0.1; // 10% tax rate
+    static final long TAX_RATE_BASIS_POINTS = 1_000; // 10% tax rate
     private static Supermarket supermarket;
-    private static User currentUser;
-    private static ShoppingCart cart;
-    private static ArrayList<Item> cartItems; // List to keep track of individual cart items
+    private static SessionManager sessions; // An attended till never times out; created once the supermarket is up
+    private static SessionManager.Session session; // The logged-in customer and their lane; null at the main menu
+    private static SalesAnalytics analytics;
+    private static ReceiptPrinter receiptPrinter; // Null unless -Dsupermarket.receipts is set
+    private static boolean outputsClosed; // Guarded by the class
+    private static final ReceiptRenderer CONSOLE_RECEIPTS = new ReceiptRenderer(ReceiptFormat.TEXT);
+    private static final ReceiptTemplate TOTALS = ReceiptTemplate.compile(
+        "\n--- Total with Discounts ---\nSubtotal: ${subtotal}\nTotal Discounts: ${discount}\nDiscounted Total: ${discountedTotal}\nTax: ${tax}\nTotal: ${total}\n");
 
-    public static void main(String[] args) 
+    public static void main(String[] args) throws IOException 
   {
-        supermarket = new Supermarket();
-        cart = new ShoppingCart();
-        cartItems = new ArrayList<>();
+        if (args.length > 0 && args[0].equals("--stress")) 
+        {
+            int lanes = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+            int operations = args.length > 2 ? Integer.parseInt(args[2]) : 1_000_000;
+            CheckoutStressHarness.run(lanes, operations);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--simulate")) 
+        {
+            int shoppers = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+            int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+            try 
+            {
+                ShopperSimulator.run(shoppers, seconds);
+            } catch (InterruptedException e) 
+            {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+
+        try 
+        {
+            if (args.length > 1 && args[0].equals("--shard-browse")) 
+            {
+                try (ShardRouter router = new ShardRouter(ShardRouter.parseAddresses(args[1]))) 
+                {
+                    for (Category category : Category.values()) 
+                    {
+                        router.displayProductsInCategory(category);
+                    }
+                }
+                return;
+            }
+            if (args.length > 2 && args[0].equals("--shard-rebalance")) 
+            {
+                try (ShardRouter router = new ShardRouter(ShardRouter.parseAddresses(args[1]))) 
+                {
+                    int moved = router.rebalance(ShardRouter.parseAddresses(args[2]));
+                    System.out.println("Rebalanced: " + moved + " SKUs changed shard");
+                }
+                return;
+            }
+            String catalogPath = System.getProperty("supermarket.catalog");
+            supermarket = catalogPath == null ? new Supermarket() : new Supermarket(CatalogSnapshot.open(Paths.get(catalogPath)));
+            CheckoutMetrics.publish(supermarket);
+            sessions = new SessionManager(0, supermarket);
+            if (args.length > 1 && args[0].equals("--export-catalog")) 
+            {
+                supermarket.exportCatalog(Paths.get(args[1]));
+                System.out.println("Catalog written to " + args[1]);
+                return;
+            }
+            if (args.length > 1 && args[0].equals("--batch")) 
+            {
+                int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+                new BatchBilling(supermarket, threads).run(Paths.get(args[1]));
+                return;
+            }
+            boolean shard = args.length > 3 && args[0].equals("--shard");
+            String defaultJournal = shard ? "supermarket-shard-" + args[1] + ".journal" : "supermarket.journal";
+            supermarket.openJournal(Paths.get(System.getProperty("supermarket.journal", defaultJournal)));
+            String receiptsPath = System.getProperty("supermarket.receipts");
+            if (receiptsPath != null) 
+            {
+                ReceiptFormat format = ReceiptFormat.valueOf(System.getProperty("supermarket.receipts.format", "text").toUpperCase(Locale.ROOT));
+                receiptPrinter = ReceiptPrinter.toFile(Paths.get(receiptsPath), format);
+                supermarket.setReceiptPrinter(receiptPrinter);
+                // The printer's writer is a daemon thread, so paths that never reach closeOutputs() still write out
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> 
+                {
+                    try 
+                    {
+                        closeOutputs();
+                    } catch (IOException e) 
+                    {
+                        System.err.println("Receipt printer: " + e.getMessage());
+                    }
+                }, "receipt-shutdown"));
+            }
+            if (Boolean.getBoolean("supermarket.events")) 
+            {
+                supermarket.setEventPipeline(TillEventPipeline.configured(receiptPrinter));
+            }
+            String updatesPath = System.getProperty("supermarket.updates");
+            if (updatesPath != null) 
+            {
+                new CatalogUpdater(supermarket, Paths.get(updatesPath), Long.getLong("supermarket.updates.interval", 5));
+            }
+            if (Boolean.getBoolean("supermarket.analytics")) 
+            {
+                analytics = new SalesAnalytics();
+                supermarket.addOrderListener(analytics);
+            }
+            if (shard) 
+            {
+                int index = Integer.parseInt(args[1]);
+                boolean joining = args.length > 4 && args[4].equals("--join");
+                new InventoryShard(supermarket, joining ? -1 : index, Integer.parseInt(args[2])).start(Integer.parseInt(args[3]));
+                return; // The acceptor thread keeps the JVM running
+            }
+            if (args.length > 1 && args[0].equals("--scan")) 
+            {
+                try (TillInput feed = TillInput.open(args[1])) 
+                {
+                    runScanFeed(feed);
+                } finally 
+                {
+                    closeOutputs();
+                }
+                return;
+            }
+            if (args.length > 0 && args[0].equals("--serve")) 
+            {
+                new CheckoutApi(supermarket, analytics).start(args.length > 1 ? Integer.parseInt(args[1]) : 8080);
+                return; // The server's threads keep the JVM running
+            }
+        } catch (IOException e) 
+        {
+            System.out.println("Could not start the supermarket: " + e.getMessage());
+            return;
+        } catch (InterruptedException e) 
+        {
+            Thread.currentThread().interrupt();
+            return;
+        }
 
-        Scanner scanner = new Scanner(System.in);
+        TillInput input = TillInput.stdin();
 
         while (true) 
         {
@@ -433,23 +8780,29 @@ public class SupermarketBillingSystem
             System.out.println("4. Exit");
             System.out.print("Enter your choice: ");
 
-            int choice = getIntInput(scanner);
+            int choice = getIntInput(input);
 
             switch (choice) 
             {
                 case 1:
-                    loginUser(scanner);
+                    loginUser(input);
                     break;
                 case 2:
-                    registerUser(scanner);
+                    registerUser(input);
                     break;
                 case 3:
                     // Continue as guest
-                    currentUser = null;
+                    endSession();
                     break;
                 case 4:
+                    supermarket.flushPurchaseHistories();
+                    if (analytics != null) 
+                    {
+                        analytics.close();
+                        System.out.print(analytics.report(5, supermarket));
+                    }
+                    closeOutputs();
                     System.out.println("Thank you for using the Supermarket Billing System.");
-                    scanner.close();
                     System.exit(0);
                     break;
                 default:
@@ -457,9 +8810,9 @@ public class SupermarketBillingSystem
                     break;
             }
 
-            while (currentUser != null) 
+            while (session != null) 
             {
-                System.out.println("\n--- Welcome, " + currentUser.getName() + " ---");
+                System.out.println("\n--- Welcome, " + session.getUser().getName() + " ---");
                 System.out.println("1. Add Item to Cart");
                 System.out.println("2. Remove Item from Cart");
                 System.out.println("3. Calculate Total");
@@ -468,32 +8821,30 @@ public class SupermarketBillingSystem
                 System.out.println("6. Clear Cart");
                 System.out.println("7. Confirm Order");
                 System.out.println("8. Logout");
+                System.out.println("9. Search Products by Name");
                 System.out.print("Enter your choice: ");
 
-                int userChoice = getIntInput(scanner);
+                int userChoice = getIntInput(input);
 
                 switch (userChoice) 
                 {
                     case 1:
                         supermarket.displayProductCategories();
                         System.out.print("Enter category number: ");
-                        int categoryChoice = getIntInput(scanner);
+                        int categoryChoice = getIntInput(input);
                         Category selectedCategory = supermarket.getCategoryFromChoice(categoryChoice);
                         if (selectedCategory != null) 
                         {
                             supermarket.displayProductsInCategory(selectedCategory);
                             System.out.print("Enter product number: ");
-                            int productChoice = getIntInput(scanner);
+                            int productChoice = getIntInput(input);
                             Item selectedProduct = supermarket.getProductFromChoice(selectedCategory, productChoice);
                             if (selectedProduct != null) 
                             {
                                 System.out.print("Enter quantity: ");
-                                int quantity = getIntInput(scanner);
-                                if (selectedProduct.getQuantityAvailable() >= quantity)
+                                int quantity = getIntInput(input);
+                                if (session.getLane().addItem(selectedProduct, quantity))
                                 {
-                                    cart.addItem(selectedProduct, quantity);
-                                    selectedProduct.setQuantityAvailable(selectedProduct.getQuantityAvailable() - quantity);
-                                    cartItems.add(selectedProduct);
                                     System.out.println(quantity + " " + selectedProduct.getName() + "(s) added to cart.");
                                 }
                                 else 
@@ -512,19 +8863,16 @@ public class SupermarketBillingSystem
                         }
                         break;
                     case 2:
-                        if (!cartItems.isEmpty())
+                        if (!session.getLane().getCart().isEmpty())
                         {
-                            displayCartItems();
+                            List<Item> cartItems = displayCartItems();
                             System.out.print("Enter item number to remove: ");
-                            int itemNumber = getIntInput(scanner);
+                            int itemNumber = getIntInput(input);
                             if (itemNumber > 0 && itemNumber <= cartItems.size()) 
                             {
                                 Item itemToRemove = cartItems.get(itemNumber - 1);
                                 System.out.print("Enter quantity to remove: ");
-                                int quantityToRemove = getIntInput(scanner);
-                                cart.removeItem(itemToRemove, quantityToRemove);
-                                itemToRemove.setQuantityAvailable(itemToRemove.getQuantityAvailable() + quantityToRemove);
-                                cartItems.remove(itemToRemove);
+                                int quantityToRemove = session.getLane().removeItem(itemToRemove, getIntInput(input));
                                 System.out.println(quantityToRemove + " " + itemToRemove.getName() + "(s) removed from cart.");
                             } 
                             else 
@@ -541,20 +8889,23 @@ public class SupermarketBillingSystem
                         displayTotalWithDiscounts();
                         break;
                     case 4:
-                        displayReceipt(scanner);
+                        displayReceipt(input);
                         break;
                     case 5:
-                        supermarket.applyDiscount(cart, scanner);
+                        supermarket.applyDiscount(session.getLane(), input);
                         break;
                     case 6:
-                        supermarket.clearCart(cart, cartItems);
+                        supermarket.clearCart(session.getLane());
                         break;
                     case 7:
-                        confirmOrder(scanner);
+                        confirmOrder(input);
                         break;
                     case 8:
-                        System.out.println("Logged out.");
-                        currentUser = null;
+                        System.out.println(session.getLane().getCart().isEmpty() ? "Logged out." : "Logged out. Your cart is saved for next time.");
+                        endSession();
+                        break;
+                    case 9:
+                        searchProducts(input);
                         break;
                     default:
                         System.out.println("Invalid choice. Please enter a valid option.");
@@ -564,97 +8915,260 @@ public class SupermarketBillingSystem
         }
     }
 
-    private static void loginUser(Scanner scanner) 
+    // Rings up a stream of scans. A customer's email (or "-" for a guest) may start a basket, then each line is
+    // "code [quantity]": eight or more digits are a barcode, fewer a SKU. A blank line or the end checks out.
+    private static void runScanFeed(TillInput feed) throws IOException 
+    {
+        CheckoutLane till = new CheckoutLane();
+        supermarket.attach(till);
+        User customer = null;
+        long scans = 0;
+        long rejected = 0;
+        long orders = 0;
+        long start = System.nanoTime();
+        while (true) 
+        {
+            int kind = feed.next();
+            if (kind == TillInput.RECORD) 
+            {
+                Item item = feed.getCodeDigits() >= 8 ? supermarket.getProductByBarcode(feed.codeText()) : supermarket.getProductBySku((int) feed.getCode());
+                if (item != null && till.addItem(item, feed.getQuantity())) 
+                {
+                    scans++;
+                } else 
+                {
+                    rejected++;
+                    System.out.println((item == null ? "Unknown code: " : "Insufficient quantity available: ") + feed.text().trim());
+                }
+            } else if (kind == TillInput.TEXT) 
+            {
+                String email = feed.text().trim();
+                if (!till.getCart().isEmpty()) 
+                {
+                    rejected++;
+                    System.out.println("Not a scan: " + email);
+                    continue;
+                }
+                customer = email.equals("-") ? null : supermarket.getUserByEmail(email);
+                if (customer == null && !email.equals("-")) 
+                {
+                    System.out.println("No account for " + email + "; ringing up as a guest.");
+                }
+            } else 
+            {
+                if (!till.getCart().isEmpty()) 
+                {
+                    ConfirmedOrder order = supermarket.confirmOrder(till, customer);
+                    orders++;
+                    System.out.println("Order #" + order.orderId + " - " + Money.format(order.quote.total));
+                }
+                customer = null;
+                if (kind == TillInput.END) 
+                {
+                    break;
+                }
+            }
+        }
+        supermarket.detach(till);
+        double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
+        System.out.printf("%d scans (%d rejected) in %d orders - %.0f scans/s%n", scans, rejected, orders, scans / seconds);
+    }
+
+    private static void loginUser(TillInput input) throws IOException 
   {
         System.out.print("Enter your email: ");
-        String email = scanner.nextLine().trim();
-        System.out.print("Enter your password: "); // Password should be hashed and validated
-        String password = scanner.nextLine().trim();
+        String email = input.nextLine().trim();
+        System.out.print("Enter your password: ");
+        String password = input.nextLine().trim();
 
-        User user = supermarket.getUserByEmail(email);
-        if (user != null && user.getPassword().equals(password)) 
+        User user = supermarket.authenticate(email, password);
+        if (user != null) 
         {
-            currentUser = user;
-            System.out.println("Login successful. Welcome, " + currentUser.getName() + "!");
+            startSession(user);
+            System.out.println("Login successful. Welcome, " + user.getName() + "!");
+            if (!session.getLane().getCart().isEmpty()) 
+            {
+                System.out.println("Your saved cart has been restored.");
+            }
+            if (session.getUnavailableLines() > 0) 
+            {
+                System.out.println(session.getUnavailableLines() + " saved item(s) could not be restored: not enough stock.");
+            }
+            List<Item> usual = supermarket.getFrequentlyBought(user, 5);
+            if (!usual.isEmpty()) 
+            {
+                StringBuilder names = new StringBuilder();
+                for (Item item : usual) 
+                {
+                    names.append(names.length() == 0 ? "" : ", ").append(item.getName());
+                }
+                System.out.println("Your usual items: " + names);
+            }
         } else 
         {
             System.out.println("Invalid email or password. Please try again.");
         }
     }
 
-    private static void registerUser(Scanner scanner) 
+    private static void registerUser(TillInput input) throws IOException 
   {
         System.out.print("Enter your name: ");
-        String name = scanner.nextLine().trim();
+        String name = input.nextLine().trim();
         System.out.print("Enter your email: ");
-        String email = scanner.nextLine().trim();
-        System.out.print("Enter your password: "); // Password should be hashed before storing
-        String password = scanner.nextLine().trim();
+        String email = input.nextLine().trim();
+        System.out.print("Enter your password: ");
+        String password = input.nextLine().trim();
 
         User newUser = new User(name, email, password);
-        supermarket.addUser(newUser);
-        currentUser = newUser;
-        System.out.println("Registration successful. Welcome, " + currentUser.getName() + "!");
+        if (!supermarket.addUser(newUser)) 
+        {
+            System.out.println("An account with that email already exists. Please login instead.");
+            return;
+        }
+        startSession(newUser);
+        System.out.println("Registration successful. Welcome, " + newUser.getName() + "!");
+    }
+
+    private static void startSession(User user) 
+    {
+        endSession();
+        session = sessions.open(user);
+        supermarket.attach(session.getLane());
+    }
+
+    // Parks the customer's cart on their account and puts its stock back
+    private static void endSession() 
+    {
+        if (session != null) 
+        {
+            sessions.close(session.getId());
+            supermarket.detach(session.getLane());
+            session = null;
+        }
+    }
+
+    // Lets the till event stages catch up and reports what they saw, then writes out every queued receipt.
+    // The pipeline goes first, as its receipt stage writes through the printer. Only the first call does anything.
+    private static synchronized void closeOutputs() throws IOException 
+    {
+        if (outputsClosed) 
+        {
+            return;
+        }
+        outputsClosed = true;
+        try 
+        {
+            TillEventPipeline events = supermarket.getEventPipeline();
+            if (events != null) 
+            {
+                endSession();
+                events.close();
+                System.out.print(events.report());
+            }
+        } finally 
+        {
+            if (receiptPrinter != null) 
+            {
+                receiptPrinter.close();
+            }
+        }
+    }
+
+    private static void searchProducts(TillInput input) throws IOException 
+    {
+        System.out.print("Search for: ");
+        String query = input.nextLine().trim();
+        List<Item> matches = supermarket.searchProducts(query, 10);
+        if (matches.isEmpty()) 
+        {
+            System.out.println("No products in stock match \"" + query + "\".");
+            return;
+        }
+        System.out.println("\n--- Search Results ---");
+        for (int i = 0; i < matches.size(); i++) 
+        {
+            Item item = matches.get(i);
+            System.out.println((i + 1) + ". " + item.getName() + " - " + Money.format(item.getPrice()) + " - Available: " + item.getQuantityAvailable());
+        }
+        System.out.print("Enter product number (0 to cancel): ");
+        int productChoice = getIntInput(input);
+        if (productChoice <= 0 || productChoice > matches.size()) 
+        {
+            return;
+        }
+        Item selectedProduct = matches.get(productChoice - 1);
+        System.out.print("Enter quantity: ");
+        int quantity = getIntInput(input);
+        if (session.getLane().addItem(selectedProduct, quantity)) 
+        {
+            System.out.println(quantity + " " + selectedProduct.getName() + "(s) added to cart.");
+        } else 
+        {
+            System.out.println("Insufficient quantity available.");
+        }
     }
 
-    private static void displayCartItems() 
+    private static List<Item> displayCartItems() 
   {
         System.out.println("\n--- Cart Items ---");
-        int itemNumber = 1;
-        for (Item item : cartItems) {
-            System.out.println(itemNumber + ". " + item.getName() + " - Quantity: " + cartItems.size());
-            itemNumber++;
+        ShoppingCart cart = session.getLane().getCart();
+        List<Item> cartItems = new ArrayList<>(cart.size());
+        for (int line = 0; line < cart.size(); line++) {
+            cartItems.add(cart.getLineItem(line));
+            System.out.println((line + 1) + ". " + cart.getLineItem(line).getName() + " - Quantity: " + cart.getLineQuantity(line));
         }
+        return cartItems;
     }
 
     private static void displayTotalWithDiscounts() 
    {
-        double subtotal = cart.calculateTotal();
-        double totalDiscount = supermarket.calculateTotalDiscount(cart);
-        double discountedTotal = subtotal - totalDiscount;
-        double tax = discountedTotal * TAX_RATE;
-        double total = discountedTotal + tax;
-
-        System.out.println("\n--- Total with Discounts ---");
-        System.out.println("Subtotal: $" + subtotal);
-        System.out.println("Total Discounts: $" + totalDiscount);
-        System.out.println("Discounted Total: $" + discountedTotal);
-        System.out.println("Tax: $" + tax);
-        System.out.println("Total: $" + total);
+        printRendered(CONSOLE_RECEIPTS.render(Receipt.of(0, session.getLane().getCart(), supermarket, null, null), TOTALS));
     }
 
-    private static void displayReceipt(Scanner scanner) 
+    private static void displayReceipt(TillInput input) throws IOException 
     {
-        if (currentUser == null) 
+        if (session == null) 
         {
             System.out.println("Please login or register to display the receipt.");
             return;
         }
         System.out.print("Enter your name: ");
-        String customerName = scanner.nextLine();
+        String customerName = input.nextLine();
         System.out.print("Enter your email: ");
-        String customerEmail = scanner.nextLine();
-        cart.displayReceipt(customerName, customerEmail);
+        String customerEmail = input.nextLine();
+        printRendered(CONSOLE_RECEIPTS.render(Receipt.of(0, session.getLane().getCart(), supermarket, customerName, customerEmail)));
+    }
+
+    private static void printRendered(ByteBuffer rendered) 
+    {
+        System.out.write(rendered.array(), rendered.arrayOffset() + rendered.position(), rendered.remaining());
+        System.out.flush();
     }
 
-    private static void confirmOrder(Scanner scanner) 
+    private static void confirmOrder(TillInput input) throws IOException 
     {
-        if (currentUser == null) 
+        if (session == null) 
         {
             System.out.println("Please login or register to confirm the order.");
             return;
         }
-        if (!cartItems.isEmpty()) 
+        if (!session.getLane().getCart().isEmpty()) 
         {
             System.out.println("\n--- Confirm Order ---");
             displayCartItems();
-            System.out.println("Total: $" + cart.calculateTotal());
+            System.out.println("Total: " + Money.format(session.getLane().getCart().calculateTotal()));
             System.out.print("Confirm order (yes/no): ");
-            String confirm = scanner.nextLine().toLowerCase();
+            String confirm = input.nextLine().toLowerCase();
             if (confirm.equals("yes")) 
             {
-                System.out.println("Order confirmed. Thank you!");
-                supermarket.clearCart(cart, cartItems);
+                try 
+                {
+                    ConfirmedOrder order = supermarket.confirmOrder(session.getLane(), session.getUser());
+                    System.out.println("Order #" + order.orderId + " confirmed. Thank you!");
+                } catch (IOException e) 
+                {
+                    System.out.println("Order could not be recorded, please try again: " + e.getMessage());
+                }
             } 
             else
             {
@@ -667,14 +9181,14 @@ public class SupermarketBillingSystem
         }
     }
 
-    private static int getIntInput(Scanner scanner)
+    private static int getIntInput(TillInput input) throws IOException
   {
-        while (!scanner.hasNextInt()) 
+        long value;
+        while ((value = input.nextNumber()) < Integer.MIN_VALUE || value > Integer.MAX_VALUE) 
         {
             System.out.println("Invalid input. Please enter a valid integer.");
-            scanner.next(); // consume the invalid input
         }
-        return scanner.nextInt();
+        return (int) value;
     }
 }
                      
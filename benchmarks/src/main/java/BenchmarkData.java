@@ -0,0 +1,72 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// BenchmarkData class to build reproducible catalogs, promotions and users for the benchmarks
+final class BenchmarkData 
+{
+    private BenchmarkData() 
+    {
+    }
+
+    public static List<Item> items(int count, int firstSku) 
+    {
+        Category[] categories = Category.values();
+        List<Item> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) 
+        {
+            int sku = firstSku + i;
+            items.add(new Item(sku, "BC" + sku, "Product " + sku, 100 + (sku * 37L) % 10_000, categories[sku % categories.length], 1_000_000));
+        }
+        return items;
+    }
+
+    public static Supermarket supermarket(int catalogSize) 
+    {
+        Supermarket supermarket = new Supermarket();
+        supermarket.addProducts(items(catalogSize, 1_000));
+        return supermarket;
+    }
+
+    // A mix of category, SKU, buy-one-get-one and spend-threshold rules
+    public static void addPromotions(Supermarket supermarket, int count, int catalogSize) 
+    {
+        Category[] categories = Category.values();
+        Discount[] promotions = new Discount[count];
+        for (int i = 0; i < count; i++) 
+        {
+            int sku = 1_000 + (i * 7_919) % catalogSize;
+            switch (i % 4) 
+            {
+                case 0:
+                    promotions[i] = Discount.forSku("SKU " + i, sku, 500 + i % 1_000, true, i % 8 == 0);
+                    break;
+                case 1:
+                    promotions[i] = Discount.forCategory("Category " + i, categories[i % categories.length], 100 + i % 50, false, i % 8 == 1);
+                    break;
+                case 2:
+                    promotions[i] = Discount.buyOneGetOne("BOGO " + i, sku);
+                    break;
+                default:
+                    promotions[i] = Discount.forSpendOver("Spend " + i, 1_000L * (i % 500), 200 + i % 300, i % 2 == 0, false);
+                    break;
+            }
+        }
+        supermarket.addDiscounts(Arrays.asList(promotions));
+    }
+
+    public static ShoppingCart basket(Supermarket supermarket, int basketSize, int catalogSize) 
+    {
+        ShoppingCart cart = new ShoppingCart();
+        for (int i = 0; i < basketSize; i++) 
+        {
+            cart.addItem(supermarket.getProductBySku(1_000 + (i * 104_729) % catalogSize), 1 + i % 3);
+        }
+        return cart;
+    }
+
+    public static String email(int user) 
+    {
+        return "shopper" + user + "@example.com";
+    }
+}
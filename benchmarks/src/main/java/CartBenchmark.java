@@ -0,0 +1,70 @@
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// CartBenchmark class to measure ShoppingCart add, remove and total at different basket sizes
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CartBenchmark 
+{
+    @Param({"10", "100", "300"})
+    public int basketSize;
+
+    private Item[] items;
+    private ShoppingCart cart;
+    private int next;
+
+    @Setup
+    public void setUp() 
+    {
+        List<Item> generated = BenchmarkData.items(basketSize * 2, 1_000);
+        items = generated.toArray(new Item[0]);
+        cart = new ShoppingCart();
+        for (int i = 0; i < basketSize; i++) 
+        {
+            cart.addItem(items[i], 1);
+        }
+    }
+
+    // Scanning an item not yet in the basket, then voiding it
+    @Benchmark
+    public long addAndRemoveNewLine() 
+    {
+        Item item = items[basketSize + (next++ % basketSize)];
+        cart.addItem(item, 1);
+        cart.removeItem(item, 1);
+        return cart.calculateTotal();
+    }
+
+    // Scanning another unit of a line already in the basket
+    @Benchmark
+    public long addAndRemoveExistingLine() 
+    {
+        Item item = items[next++ % basketSize];
+        cart.addItem(item, 1);
+        cart.removeItem(item, 1);
+        return cart.calculateTotal();
+    }
+
+    @Benchmark
+    public long calculateTotal() 
+    {
+        return cart.calculateTotal();
+    }
+
+    // Building a whole basket from empty
+    @Benchmark
+    public int fillBasket() 
+    {
+        ShoppingCart fresh = new ShoppingCart();
+        for (int i = 0; i < basketSize; i++) 
+        {
+            fresh.addItem(items[i], 1);
+        }
+        return fresh.size();
+    }
+}
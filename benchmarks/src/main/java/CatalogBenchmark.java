@@ -0,0 +1,47 @@
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// CatalogBenchmark class to measure product selection and lookup as the catalog grows
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CatalogBenchmark 
+{
+    @Param({"1000", "200000"})
+    public int catalogSize;
+
+    private Supermarket supermarket;
+    private Category[] categories;
+    private int[] choices;
+    private int next;
+
+    @Setup
+    public void setUp() 
+    {
+        supermarket = BenchmarkData.supermarket(catalogSize);
+        categories = new Category[1_024];
+        choices = new int[1_024];
+        Category[] all = Category.values();
+        for (int i = 0; i < choices.length; i++) 
+        {
+            categories[i] = all[i % all.length];
+            choices[i] = 1 + (i * 7_919) % (catalogSize / all.length);
+        }
+    }
+
+    @Benchmark
+    public Item getProductFromChoice() 
+    {
+        int i = next++ & (choices.length - 1);
+        return supermarket.getProductFromChoice(categories[i], choices[i]);
+    }
+
+    @Benchmark
+    public Item getProductBySku() 
+    {
+        return supermarket.getProductBySku(1_000 + (next++ * 7_919) % catalogSize);
+    }
+}
@@ -0,0 +1,92 @@
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// ConcurrentCheckoutBenchmark class to measure how stock reservation scales with the number of lanes
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrentCheckoutBenchmark 
+{
+    // Catalog class to share one set of items, and their stock, between all benchmark threads
+    @State(Scope.Benchmark)
+    public static class Catalog 
+    {
+        @Param({"16", "10000"}) // 16 makes every lane fight over the same hot SKUs
+        public int catalogSize;
+
+        @Param({"false", "true"}) // true also publishes every change to a till event pipeline
+        public boolean events;
+
+        Supermarket supermarket;
+
+        @Setup
+        public void setUp() 
+        {
+            supermarket = BenchmarkData.supermarket(catalogSize);
+            if (events) 
+            {
+                supermarket.setEventPipeline(new TillEventPipeline(1_024, null, null));
+            }
+        }
+
+        @TearDown
+        public void tearDown() throws IOException 
+        {
+            if (events) 
+            {
+                supermarket.getEventPipeline().close();
+            }
+        }
+    }
+
+    // Lane class to give each benchmark thread its own till
+    @State(Scope.Thread)
+    public static class Lane 
+    {
+        CheckoutLane lane = new CheckoutLane();
+
+        @Setup
+        public void attach(Catalog catalog) 
+        {
+            catalog.supermarket.attach(lane);
+        }
+
+        @TearDown
+        public void detach(Catalog catalog) 
+        {
+            catalog.supermarket.detach(lane);
+        }
+    }
+
+    private static int scanAndVoid(Catalog catalog, Lane lane) 
+    {
+        Item item = catalog.supermarket.getProductBySku(1_000 + ThreadLocalRandom.current().nextInt(catalog.catalogSize));
+        lane.lane.addItem(item, 1);
+        return lane.lane.removeItem(item, 1);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int oneLane(Catalog catalog, Lane lane) 
+    {
+        return scanAndVoid(catalog, lane);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int fourLanes(Catalog catalog, Lane lane) 
+    {
+        return scanAndVoid(catalog, lane);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public int allLanes(Catalog catalog, Lane lane) 
+    {
+        return scanAndVoid(catalog, lane);
+    }
+}
@@ -0,0 +1,62 @@
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// DiscountBenchmark class to measure promotion evaluation as the number of active promotions grows
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DiscountBenchmark 
+{
+    private static final int CATALOG_SIZE = 10_000;
+
+    @Param({"10", "300"})
+    public int basketSize;
+
+    @Param({"3", "1000", "10000"})
+    public int promotions;
+
+    private Supermarket supermarket;
+    private ShoppingCart cart;
+    private Item[] scanned;
+    private int next;
+
+    @Setup
+    public void setUp() 
+    {
+        supermarket = BenchmarkData.supermarket(CATALOG_SIZE);
+        BenchmarkData.addPromotions(supermarket, promotions, CATALOG_SIZE);
+        cart = BenchmarkData.basket(supermarket, basketSize, CATALOG_SIZE);
+        scanned = new Item[1_024];
+        for (int i = 0; i < scanned.length; i++) 
+        {
+            scanned[i] = supermarket.getProductBySku(1_000 + (i * 31) % CATALOG_SIZE);
+        }
+        supermarket.calculateTotalDiscount(cart);
+    }
+
+    @Benchmark
+    public long calculateTotalDiscount() 
+    {
+        return supermarket.calculateTotalDiscount(cart);
+    }
+
+    // The till re-totals after every scan
+    @Benchmark
+    public long scanThenTotalDiscount() 
+    {
+        Item item = scanned[next++ & (scanned.length - 1)];
+        cart.addItem(item, 1);
+        long discount = supermarket.calculateTotalDiscount(cart);
+        cart.removeItem(item, 1);
+        return discount;
+    }
+
+    @Benchmark
+    public long getDiscountAmount() 
+    {
+        return supermarket.getDiscountAmount(scanned[next++ & (scanned.length - 1)], 3);
+    }
+}
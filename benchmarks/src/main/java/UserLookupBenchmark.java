@@ -0,0 +1,50 @@
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// UserLookupBenchmark class to measure finding and re-authenticating users as the user base grows
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dsupermarket.kdf.iterations=1000") // Keeps registering the users quick
+@State(Scope.Thread)
+public class UserLookupBenchmark 
+{
+    @Param({"1000", "100000"})
+    public int users;
+
+    private Supermarket supermarket;
+    private String[] emails;
+    private String[] logins; // Remembered-login tokens for the same users
+    private int next;
+
+    @Setup
+    public void setUp() 
+    {
+        supermarket = new Supermarket();
+        for (int i = 0; i < users; i++) 
+        {
+            supermarket.addUser(new User("Shopper " + i, BenchmarkData.email(i), "secret" + i));
+        }
+        emails = new String[1_024];
+        logins = new String[emails.length];
+        for (int i = 0; i < emails.length; i++) 
+        {
+            emails[i] = BenchmarkData.email((i * 7_919) % users).toUpperCase();
+            logins[i] = supermarket.rememberLogin(supermarket.authenticate(emails[i], "secret" + ((i * 7_919) % users)));
+        }
+    }
+
+    @Benchmark
+    public User getUserByEmail() 
+    {
+        return supermarket.getUserByEmail(emails[next++ & (emails.length - 1)]);
+    }
+
+    // A repeat login presenting the token from a password login within the TTL
+    @Benchmark
+    public User resumeLogin() 
+    {
+        return supermarket.resumeLogin(logins[next++ & (logins.length - 1)]);
+    }
+}